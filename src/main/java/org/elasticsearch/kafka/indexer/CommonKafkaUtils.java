@@ -4,10 +4,12 @@
  */
 package org.elasticsearch.kafka.indexer;
 
+import java.nio.charset.StandardCharsets;
 import java.util.Map;
 import java.util.Properties;
 
 import org.apache.commons.lang3.StringUtils;
+import org.apache.kafka.clients.consumer.ConsumerRecord;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -44,4 +46,39 @@ public class CommonKafkaUtils {
         return kafkaProperties;
     }
 
+    /**
+     * Get a record with a String value from a record consumed either with the StringDeserializer or - 
+     * in the raw bytes mode - with the ByteArrayDeserializer; in the latter case the value is decoded as UTF-8
+     * into a copy of the record, so this should only be done when the String value is really needed 
+     * (for example, to log a failed event)
+     * 
+     * @param record
+     * @return the same record if its value is not a byte[], or a copy of it with the decoded value
+     */
+    @SuppressWarnings("unchecked")
+    public static ConsumerRecord<String, String> toStringValueRecord(ConsumerRecord<String, ?> record) {
+        if (!(record.value() instanceof byte[])) {
+            return (ConsumerRecord<String, String>) record;
+        }
+        return new ConsumerRecord<>(record.topic(), record.partition(), record.offset(), record.timestamp(),
+            record.timestampType(), null, record.serializedKeySize(), record.serializedValueSize(),
+            record.key(), new String((byte[]) record.value(), StandardCharsets.UTF_8), record.headers());
+    }
+
+    /**
+     * Get the value of a record consumed either with the StringDeserializer or with the ByteArrayDeserializer as bytes:
+     * raw values are returned as is - so that binary (Avro, Protobuf, ...) values are never corrupted by decoding them - 
+     * and String values are encoded as UTF-8
+     * 
+     * @param record
+     * @return value bytes; NULL if the record has no value
+     */
+    public static byte[] toValueBytes(ConsumerRecord<String, ?> record) {
+        Object value = record.value();
+        if (value == null || value instanceof byte[]) {
+            return (byte[]) value;
+        }
+        return value.toString().getBytes(StandardCharsets.UTF_8);
+    }
+
 }
@@ -0,0 +1,142 @@
+package org.elasticsearch.kafka.indexer;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Properties;
+
+import org.apache.kafka.clients.consumer.ConsumerRecord;
+import org.elasticsearch.kafka.indexer.exception.ConsumerRecoverableException;
+import org.elasticsearch.kafka.indexer.service.IBatchMessageProcessor;
+import org.elasticsearch.kafka.indexer.service.impl.MappedSegmentDeadLetterStore;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.context.support.ClassPathXmlApplicationContext;
+
+/**
+ * Command line tool that replays events from the segments of a MappedSegmentDeadLetterStore
+ * through the messageProcessor bean of the spring/kafka-es-replay-context.xml;
+ *
+ * Usage: DeadLetterReplayProcess <storeDir> [<fromSegmentId> [<toSegmentId>]]
+ * segment ids are inclusive; if not specified - all segments of the store are replayed;
+ * events are handed to the processor in batches of elasticsearch.deadletter.replay.batch.size events,
+ * and each batch is posted to ES the same way as the events of one poll();
+ * events are replayed via processRawMessage() - with the values as they were stored, byte for byte
+ */
+public class DeadLetterReplayProcess {
+    private static final Logger logger = LoggerFactory.getLogger(DeadLetterReplayProcess.class);
+    // consumer id passed to the message processor callbacks
+    private static final int REPLAY_CONSUMER_ID = 0;
+
+    private final IBatchMessageProcessor batchMessageProcessor;
+    private final int replayBatchSize;
+    private final int retryLimit;
+    private final long retryIntervalMs;
+    private final List<ConsumerRecord<String, byte[]>> currentBatch = new ArrayList<>();
+    private long numReplayedEvents = 0L;
+    private long numFailedEvents = 0L;
+
+    public DeadLetterReplayProcess(IBatchMessageProcessor batchMessageProcessor, int replayBatchSize, int retryLimit, long retryIntervalMs) {
+        this.batchMessageProcessor = batchMessageProcessor;
+        this.replayBatchSize = Math.max(1, replayBatchSize);
+        this.retryLimit = retryLimit;
+        this.retryIntervalMs = retryIntervalMs;
+    }
+
+    public static void main(String[] args) throws Exception {
+        if (args.length < 1) {
+            System.err.println("Usage: DeadLetterReplayProcess <storeDir> [<fromSegmentId> [<toSegmentId>]]");
+            System.exit(1);
+        }
+        File storeDir = new File(args[0]);
+        long fromSegmentId = args.length > 1 ? Long.parseLong(args[1]) : 0L;
+        long toSegmentId = args.length > 2 ? Long.parseLong(args[2]) : Long.MAX_VALUE;
+        logger.info("Starting DeadLetterReplayProcess for store {}, segments {} - {}", storeDir.getAbsolutePath(), fromSegmentId, toSegmentId);
+        try (ClassPathXmlApplicationContext replayContext = new ClassPathXmlApplicationContext("spring/kafka-es-replay-context.xml")) {
+            Properties applicationProperties = replayContext.getBean("applicationProperties", Properties.class);
+            DeadLetterReplayProcess replayProcess = new DeadLetterReplayProcess(
+                replayContext.getBean("messageProcessor", IBatchMessageProcessor.class),
+                Integer.parseInt(applicationProperties.getProperty("elasticsearch.deadletter.replay.batch.size", "5000")),
+                Integer.parseInt(applicationProperties.getProperty("kafka.consumer.poll.retry.limit", "5")),
+                Long.parseLong(applicationProperties.getProperty("kafka.consumer.poll.retry.delay.interval.ms", "1000")));
+            replayProcess.replay(storeDir, fromSegmentId, toSegmentId);
+        }
+    }
+
+    /**
+     * replay all events of the segments in the [fromSegmentId, toSegmentId] range, in the order they were written
+     * @return number of replayed events
+     * @throws Exception
+     */
+    public long replay(File storeDir, long fromSegmentId, long toSegmentId) throws Exception {
+        long replayStartMs = System.currentTimeMillis();
+        batchMessageProcessor.onStartup(REPLAY_CONSUMER_ID);
+        try {
+            for (Long segmentId : MappedSegmentDeadLetterStore.listSegmentIds(storeDir)) {
+                if (segmentId < fromSegmentId || segmentId > toSegmentId) {
+                    continue;
+                }
+                File segmentFile = MappedSegmentDeadLetterStore.getSegmentFile(storeDir, segmentId);
+                List<ConsumerRecord<String, byte[]>> segmentRecords = new ArrayList<>();
+                int numSegmentRecords = MappedSegmentDeadLetterStore.readSegment(segmentFile, segmentRecords::add);
+                logger.info("Replaying segment {}: {} events", segmentFile.getName(), numSegmentRecords);
+                for (ConsumerRecord<String, byte[]> record : segmentRecords) {
+                    currentBatch.add(record);
+                    if (currentBatch.size() >= replayBatchSize) {
+                        replayCurrentBatch();
+                    }
+                }
+            }
+            replayCurrentBatch();
+        } finally {
+            batchMessageProcessor.onShutdown(REPLAY_CONSUMER_ID);
+        }
+        logger.info("DeadLetterReplayProcess finished: numReplayedEvents: {}, numFailedEvents: {}, totalTime: {}ms",
+            numReplayedEvents, numFailedEvents, System.currentTimeMillis() - replayStartMs);
+        return numReplayedEvents;
+    }
+
+    private void replayCurrentBatch() throws Exception {
+        if (currentBatch.isEmpty()) {
+            return;
+        }
+        batchMessageProcessor.onPollBeginCallBack(REPLAY_CONSUMER_ID);
+        processCurrentBatch();
+        for (int retryCount = 0; ; retryCount++) {
+            try {
+                batchMessageProcessor.onPollEndCallBack(REPLAY_CONSUMER_ID, Collections.emptyMap());
+                break;
+            } catch (ConsumerRecoverableException e) {
+                if (retryCount >= retryLimit) {
+                    logger.error("Failed to replay a batch of {} events after {} re-tries - exiting", currentBatch.size(), retryCount);
+                    throw e;
+                }
+                logger.warn("Recoverable error replaying a batch of {} events, re-try# {}: {}", currentBatch.size(), retryCount + 1, e.getMessage());
+                Thread.sleep(retryIntervalMs);
+                if (e.isPollReprocessingNeeded()) {
+                    processCurrentBatch();
+                }
+            }
+        }
+        numReplayedEvents += currentBatch.size();
+        currentBatch.clear();
+    }
+
+    private void processCurrentBatch() {
+        for (ConsumerRecord<String, byte[]> record : currentBatch) {
+            try {
+                if (!batchMessageProcessor.processRawMessage(record, REPLAY_CONSUMER_ID)) {
+                    FailedEventsLogger.logFailedEvent("Failed to replay event: ", 
+                        CommonKafkaUtils.toStringValueRecord(record).value(), record.offset());
+                    numFailedEvents++;
+                }
+            } catch (Exception e) {
+                FailedEventsLogger.logFailedEventWithException(e.getMessage(), 
+                    CommonKafkaUtils.toStringValueRecord(record).value(), record.offset(), e);
+                numFailedEvents++;
+            }
+        }
+    }
+
+}
@@ -0,0 +1,33 @@
+package org.elasticsearch.kafka.indexer;
+
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * Capped exponential backoff with jitter - used for all re-tries of the indexer, 
+ * so that consumer threads that failed at the same moment do not re-try at the same moment as well
+ */
+public class ExponentialBackoff {
+
+	/**
+	 * Delay before the given re-try attempt: initialDelayMs * 2^(retryAttempt - 1), capped at maxDelayMs,
+	 * with "equal jitter" - a random value between half of that delay and the whole delay
+	 * 
+	 * @param initialDelayMs - delay before the first re-try
+	 * @param maxDelayMs - max delay before any re-try
+	 * @param retryAttempt - re-try attempt number, starting from 1
+	 * @return delay in ms
+	 */
+	public static long getDelayMs(long initialDelayMs, long maxDelayMs, int retryAttempt) {
+		if (initialDelayMs <= 0) {
+			return 0L;
+		}
+		long cappedDelayMs = initialDelayMs;
+		for (int i = 1; i < retryAttempt && cappedDelayMs < maxDelayMs; i++) {
+			cappedDelayMs *= 2;
+		}
+		cappedDelayMs = Math.min(cappedDelayMs, Math.max(initialDelayMs, maxDelayMs));
+		long halfDelayMs = cappedDelayMs / 2;
+		return halfDelayMs + ThreadLocalRandom.current().nextLong(cappedDelayMs - halfDelayMs + 1);
+	}
+
+}
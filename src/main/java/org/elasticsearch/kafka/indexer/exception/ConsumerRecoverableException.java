@@ -4,8 +4,19 @@
  */
 package org.elasticsearch.kafka.indexer.exception;
 
+import java.util.Set;
+
+import org.apache.kafka.common.TopicPartition;
+
 public class ConsumerRecoverableException extends Exception {
 
+	// if FALSE - the batch message processor keeps the failed batch itself, and events from the poll
+	// should NOT be re-processed before the onPollEndCallBack() is re-tried
+	private boolean pollReprocessingNeeded = true;
+	// partitions whose events failed; events of all other partitions of the poll were processed OK, 
+	// and their offsets can be committed right away; NULL - not known, all partitions of the poll have to be re-tried
+	private Set<TopicPartition> failedPartitions = null;
+
 	/**
 	 * 
 	 */
@@ -38,6 +49,29 @@ public class ConsumerRecoverableException extends Exception {
 		// TODO Auto-generated constructor stub
 	}
 
+	/**
+	 * @param message
+	 * @param cause
+	 * @param pollReprocessingNeeded
+	 */
+	public ConsumerRecoverableException(String message, Throwable cause, boolean pollReprocessingNeeded) {
+		super(message, cause);
+		this.pollReprocessingNeeded = pollReprocessingNeeded;
+	}
+
+	/**
+	 * @param message
+	 * @param cause
+	 * @param pollReprocessingNeeded
+	 * @param failedPartitions
+	 */
+	public ConsumerRecoverableException(String message, Throwable cause, boolean pollReprocessingNeeded,
+			Set<TopicPartition> failedPartitions) {
+		super(message, cause);
+		this.pollReprocessingNeeded = pollReprocessingNeeded;
+		this.failedPartitions = failedPartitions;
+	}
+
 	/**
 	 * @param message
 	 * @param cause
@@ -50,4 +84,12 @@ public class ConsumerRecoverableException extends Exception {
 		// TODO Auto-generated constructor stub
 	}
 
+	public boolean isPollReprocessingNeeded() {
+		return pollReprocessingNeeded;
+	}
+
+	public Set<TopicPartition> getFailedPartitions() {
+		return failedPartitions;
+	}
+
 }
@@ -18,6 +18,7 @@ import org.apache.kafka.clients.consumer.ConsumerConfig;
 import org.apache.kafka.clients.consumer.KafkaConsumer;
 import org.apache.kafka.clients.consumer.OffsetAndMetadata;
 import org.apache.kafka.common.TopicPartition;
+import org.apache.kafka.common.serialization.ByteArrayDeserializer;
 import org.apache.kafka.common.serialization.StringDeserializer;
 import org.elasticsearch.kafka.indexer.CommonKafkaUtils;
 import org.slf4j.Logger;
@@ -132,12 +133,13 @@ public class ConsumerManager {
         Properties kafkaProperties = CommonKafkaUtils.extractKafkaProperties(applicationProperties, consumerKafkaPropertyPrefix);
         // add non-configurable properties
         kafkaProperties.put(ConsumerConfig.KEY_DESERIALIZER_CLASS_CONFIG, StringDeserializer.class.getName());
-        kafkaProperties.put(ConsumerConfig.VALUE_DESERIALIZER_CLASS_CONFIG, StringDeserializer.class.getName());
+        // values are never used here - do not decode them; they can be in any format (JSON, Avro, Protobuf, ...)
+        kafkaProperties.put(ConsumerConfig.VALUE_DESERIALIZER_CLASS_CONFIG, ByteArrayDeserializer.class.getName());
         kafkaProperties.put(ConsumerConfig.ENABLE_AUTO_COMMIT_CONFIG, false);
         String consumerClientId = consumerInstanceName + "-offset-reset";
         kafkaProperties.put(ConsumerConfig.CLIENT_ID_CONFIG, consumerClientId);
 
-        Consumer<String, String> consumer = getConsumerInstance(kafkaProperties);
+        Consumer<String, byte[]> consumer = getConsumerInstance(kafkaProperties);
         consumer.subscribe(Arrays.asList(kafkaTopic));
 
         //Make init poll to get assigned partitions
@@ -196,7 +198,7 @@ public class ConsumerManager {
         consumer.close();
     }
 
-    public Consumer<String, String> getConsumerInstance(Properties properties) {
+    public Consumer<String, byte[]> getConsumerInstance(Properties properties) {
         return new KafkaConsumer<>(properties);
     }
 
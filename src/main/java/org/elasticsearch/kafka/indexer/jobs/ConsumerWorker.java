@@ -5,10 +5,19 @@
 package org.elasticsearch.kafka.indexer.jobs;
 
 import java.time.Duration;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collection;
+import java.util.Deque;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
 import java.util.Map;
 import java.util.Properties;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
 import java.util.concurrent.atomic.AtomicBoolean;
 
 import javax.annotation.Resource;
@@ -22,14 +31,18 @@ import org.apache.kafka.clients.consumer.OffsetAndMetadata;
 import org.apache.kafka.clients.consumer.RetriableCommitFailedException;
 import org.apache.kafka.common.TopicPartition;
 import org.apache.kafka.common.errors.WakeupException;
+import org.apache.kafka.common.serialization.ByteArrayDeserializer;
 import org.apache.kafka.common.serialization.StringDeserializer;
 import org.elasticsearch.kafka.indexer.CommonKafkaUtils;
+import org.elasticsearch.kafka.indexer.ExponentialBackoff;
 import org.elasticsearch.kafka.indexer.FailedEventsLogger;
 import org.elasticsearch.kafka.indexer.exception.ConsumerNonRecoverableException;
 import org.elasticsearch.kafka.indexer.exception.ConsumerRecoverableException;
 import org.elasticsearch.kafka.indexer.service.IBatchMessageProcessor;
+import org.elasticsearch.kafka.indexer.service.IDeadLetterSink;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.beans.factory.annotation.Value;
 
 public class ConsumerWorker implements AutoCloseable, IConsumerWorker {
@@ -37,8 +50,11 @@ public class ConsumerWorker implements AutoCloseable, IConsumerWorker {
     private static final Logger logger = LoggerFactory.getLogger(ConsumerWorker.class);
     @Value("${kafka.consumer.poll.retry.limit:5}")
     private int pollRetryLimit;
+    // delay before the first re-try of a poll(); it doubles with each next re-try (with jitter), up to pollRetryMaxIntervalMs
     @Value("${kafka.consumer.poll.retry.delay.interval.ms:1000}")
     private long pollRetryIntervalMs;
+    @Value("${kafka.consumer.poll.retry.max.delay.interval.ms:30000}")
+    private long pollRetryMaxIntervalMs;
     @Value("${kafka.consumer.ignore.overlimit.recoverable.errors:false}")
     private boolean ignoreOverlimitRecoverableErrors;
     @Value("${kafka.consumer.source.topic:testTopic}")
@@ -50,15 +66,47 @@ public class ConsumerWorker implements AutoCloseable, IConsumerWorker {
     private long pollIntervalMs;
     @Value("${kafka.consumer.property.prefix:consumer.kafka.property.}")
     private String consumerKafkaPropertyPrefix;
+    // if TRUE - next poll() is fetched and processed while the batch of the previous poll() is still being indexed
+    @Value("${kafka.consumer.pipelined.mode.enabled:false}")
+    private boolean pipelinedModeEnabled;
+    // if TRUE - assigned partitions are paused while the batchMessageProcessor is saturated or while a poll() is being re-tried,
+    // and poll() keeps being called, without fetching events, so that the consumer does not miss max.poll.interval.ms;
+    // pipelined mode only
+    @Value("${kafka.consumer.backpressure.enabled:false}")
+    private boolean backpressureEnabled;
+    // timeout of the poll() calls made while the partitions are paused
+    @Value("${kafka.consumer.backpressure.poll.interval.ms:100}")
+    private long pausedPollIntervalMs;
+    // number of threads to process events of each poll() on; 1 - events are processed on the consumer thread
+    @Value("${kafka.consumer.processing.parallelism:1}")
+    private int processingParallelism;
+    // if TRUE - order of events is preserved per partition when processing them in parallel, otherwise - per key
+    @Value("${kafka.consumer.processing.order.by.partition:false}")
+    private boolean processingOrderByPartition;
+    // if TRUE - event values are consumed as raw bytes (ByteArrayDeserializer) and passed to the 
+    // batchMessageProcessor.processRawMessage() - without decoding them into Strings
+    @Value("${kafka.consumer.raw.bytes.mode.enabled:false}")
+    private boolean rawBytesModeEnabled;
     @Resource(name = "applicationProperties")
     private Properties applicationProperties;
 
     private OffsetLoggingCallbackImpl offsetLoggingCallback;
     private IBatchMessageProcessor batchMessageProcessor;
+    // optional sink for events that failed to be processed; if not set - they are logged via the FailedEventsLogger
+    @Autowired(required = false)
+    private IDeadLetterSink deadLetterSink;
     
-    private Consumer<String, String> consumer;
+    private Consumer<String, ?> consumer;
     private AtomicBoolean running = new AtomicBoolean(false);
     private int consumerInstanceId;
+    // pipelined mode only: polls whose batches were handed off but not yet completed, in the poll order
+    private Deque<PendingPoll> pendingPolls = new ArrayDeque<>();
+    // created on the first poll if kafka.consumer.processing.parallelism > 1
+    private StripedRecordProcessor stripedRecordProcessor;
+    // committable watermark of each partition whose processed events were not committed yet - for example, 
+    // when the batchMessageProcessor accumulates events of several polls into one batch, or when events of 
+    // some other partition failed and are being re-tried
+    private Map<TopicPartition, OffsetAndMetadata> uncommittedOffsets = new HashMap<>();
 
     public ConsumerWorker() {        
     }
@@ -66,16 +114,27 @@ public class ConsumerWorker implements AutoCloseable, IConsumerWorker {
     @Override
     public void initConsumerInstance(int consumerInstanceId) {
         logger.info("init() is starting ....");
+        if (backpressureEnabled && !pipelinedModeEnabled) {
+            // in the non-pipelined mode batches are posted - and re-tried - on the consumer thread, 
+            // so it would still stop calling poll() while a batch is being indexed
+            throw new IllegalStateException("kafka.consumer.backpressure.enabled=true requires " + 
+                "kafka.consumer.pipelined.mode.enabled=true");
+        }
         this.consumerInstanceId = consumerInstanceId;
         Properties kafkaProperties = CommonKafkaUtils.extractKafkaProperties(applicationProperties, consumerKafkaPropertyPrefix);
         // add non-configurable properties
         kafkaProperties.put(ConsumerConfig.KEY_DESERIALIZER_CLASS_CONFIG, StringDeserializer.class.getName());
-        kafkaProperties.put(ConsumerConfig.VALUE_DESERIALIZER_CLASS_CONFIG, StringDeserializer.class.getName());
+        kafkaProperties.put(ConsumerConfig.VALUE_DESERIALIZER_CLASS_CONFIG, 
+            rawBytesModeEnabled ? ByteArrayDeserializer.class.getName() : StringDeserializer.class.getName());
         kafkaProperties.put(ConsumerConfig.ENABLE_AUTO_COMMIT_CONFIG, false);
         String consumerClientId = consumerInstanceName + "-" + consumerInstanceId;
         kafkaProperties.put(ConsumerConfig.CLIENT_ID_CONFIG, consumerClientId);
         kafkaProperties.put(ConsumerConfig.AUTO_OFFSET_RESET_CONFIG, "earliest");
-        consumer = new KafkaConsumer<>(kafkaProperties);
+        if (rawBytesModeEnabled) {
+            consumer = new KafkaConsumer<String, byte[]>(kafkaProperties);
+        } else {
+            consumer = new KafkaConsumer<String, String>(kafkaProperties);
+        }
         logger.info(
             "Created ConsumerWorker with properties: consumerClientId={}, consumerInstanceName={}, kafkaTopic={}, kafkaProperties={}",
             consumerClientId, consumerInstanceName, kafkaTopic, kafkaProperties);        
@@ -103,6 +162,10 @@ public class ConsumerWorker implements AutoCloseable, IConsumerWorker {
                 .forEach((topicPartition, offset)
                      -> logger.info("Offset position during the shutdown for consumerInstanceId : {}, partition : {}, offset : {}",
                      consumerInstanceId, topicPartition.partition(), offset.offset()));
+            completeAllPendingPolls();
+            if (stripedRecordProcessor != null) {
+                stripedRecordProcessor.close();
+            }
             batchMessageProcessor.onShutdown(consumerInstanceId);
             consumer.close();
         }
@@ -114,43 +177,50 @@ public class ConsumerWorker implements AutoCloseable, IConsumerWorker {
 	 */
 	public void processPoll() throws Exception {
 		logger.debug("consumerInstanceId={}; about to call consumer.poll() ...", consumerInstanceId);
-		ConsumerRecords<String, String> records = consumer.poll(Duration.ofMillis(pollIntervalMs));
+		boolean isPaused = backpressureEnabled && applyBackpressure();
+		ConsumerRecords<String, ?> records = consumer.poll(Duration.ofMillis(isPaused ? pausedPollIntervalMs : pollIntervalMs));
 		batchMessageProcessor.onPollBeginCallBack(consumerInstanceId);
-		boolean isPollFirstRecord = true;
-		int numProcessedMessages = 0;
-		int numFailedMessages = 0;
-		int numMessagesInBatch = 0;
+		int numMessagesInBatch = records.count();
 		long pollStartMs = 0L;
-		for (ConsumerRecord<String, String> record : records) {
-		    numMessagesInBatch++;
-		    logger.debug("consumerInstanceId={}; received record: partition: {}, offset: {}, value: {}",
-		            consumerInstanceId, record.partition(), record.offset(), record.value());
-		    if (isPollFirstRecord) {
-		        isPollFirstRecord = false;
-		        logger.info("Start offset for partition {} in this poll : {}", record.partition(), record.offset());
-		        pollStartMs = System.currentTimeMillis();
-		    }
-		    try {
-		        boolean processedOK = batchMessageProcessor.processMessage(record, consumerInstanceId);
-		        if (processedOK) {
-		            numProcessedMessages++;
-		        } else {
-		            FailedEventsLogger.logFailedEvent("Failed to process event: ", record.value(), record.offset());
-		            numFailedMessages++;                            
-		        }
-		    } catch (Exception e) {
-		        FailedEventsLogger.logFailedEventWithException(e.getMessage(), record.value(), record.offset(), e);
-		        numFailedMessages++;
-		    }
+		if (numMessagesInBatch > 0) {
+		    ConsumerRecord<String, ?> firstRecord = records.iterator().next();
+		    logger.info("Start offset for partition {} in this poll : {}", firstRecord.partition(), firstRecord.offset());
+		    pollStartMs = System.currentTimeMillis();
 		}
+		int numFailedMessages = processRecords(records, true);
+		int numProcessedMessages = numMessagesInBatch - numFailedMessages;
 		long endOfPollLoopMs = System.currentTimeMillis();
-	    Map<TopicPartition, OffsetAndMetadata> previousPollEndPosition = getPreviousPollEndPosition();
-	    boolean shouldCommitThisPoll = performCallbackWithRetry(records, previousPollEndPosition);
+	    Map<TopicPartition, OffsetAndMetadata> pollEndPosition = getPollEndPosition(records);
+	    if (pipelinedModeEnabled) {
+	    	if (isPaused && records.isEmpty()) {
+	    		// nothing to hand off - only complete the polls whose batches were acknowledged meanwhile
+	    		completeAcknowledgedPendingPolls();
+	    		return;
+	    	}
+	    	processPollEndPipelined(records, pollEndPosition);
+	    	long afterPipelineHandOffMs = System.currentTimeMillis();
+	    	if (numMessagesInBatch > 0) {
+	    		logger.info(
+	    			"Last poll snapshot (pipelined): numMessagesInBatch: {}, numProcessedMessages: {}, numFailedMessages: {}, " +
+	    			"numPendingPolls: {}, timeToProcessLoop: {}ms, timeToHandOffAndCompletePreviousPolls: {}ms, totalPollTime: {}ms",
+	    			numMessagesInBatch, numProcessedMessages, numFailedMessages, pendingPolls.size(),
+	    			endOfPollLoopMs - pollStartMs,
+	    			afterPipelineHandOffMs - endOfPollLoopMs,
+	    			afterPipelineHandOffMs - pollStartMs);
+	    	} else {
+	    		logger.info("No messages recieved during this poll");
+	    	}
+	    	return;
+	    }
+	    uncommittedOffsets.putAll(pollEndPosition);
+	    boolean shouldCommitThisPoll = performCallbackWithRetry(records, pollEndPosition);
 	    long afterProcessorCallbacksMs = System.currentTimeMillis();
+		if (!uncommittedOffsets.isEmpty()) {
+		    commitOffsetsIfNeeded(shouldCommitThisPoll);
+		    exposeOffsetPosition(pollEndPosition);
+		}
+		long afterOffsetsCommitMs = System.currentTimeMillis();
 		if (numMessagesInBatch > 0) {
-		    commitOffsetsIfNeeded(shouldCommitThisPoll, previousPollEndPosition);
-		    long afterOffsetsCommitMs = System.currentTimeMillis();
-		    exposeOffsetPosition(previousPollEndPosition);
 		    logger.info(
 		        "Last poll snapshot: numMessagesInBatch: {}, numProcessedMessages: {}, numFailedMessages: {}, " + 
 		        "timeToProcessLoop: {}ms, timeInMessageProcessor: {}ms, timeToCommit: {}ms, totalPollTime: {}ms",
@@ -178,6 +248,9 @@ public class ConsumerWorker implements AutoCloseable, IConsumerWorker {
      * If some other non-recoverable exceptions happen - an instance of some other Exception should be thrown out;
      * it will cause the consumer to shutdown
      * 
+     * If the ConsumerRecoverableException reports which partitions failed - offsets of all other partitions are committed
+     * right away, and only events of the failed partitions are re-processed
+     * 
      * WARNING!!! it is very important to make sure that the event processing (the batchMessageProcessor.processMessage() method)
      * is IDEMPOTENT! - meaning that it can safely re-process the same events multiple times
      * 
@@ -187,10 +260,11 @@ public class ConsumerWorker implements AutoCloseable, IConsumerWorker {
      * @throws Exception
      */
     public boolean performCallbackWithRetry(
-    	ConsumerRecords<String, String> records, 
+    	ConsumerRecords<String, ?> records, 
     	Map<TopicPartition, OffsetAndMetadata> previousPollEndPosition) throws Exception {
     	boolean shouldCommitThisPoll = true;
     	int retryAttempt = 0;
+    	ConsumerRecords<String, ?> recordsToRetry = records;
  		// only catch recoverable exception and try to re-process all records from the current poll();
 		// any other Exception thrown from this method will be propagated up and will cause the consumer to shutdown
 		boolean keepRetrying = true;
@@ -201,6 +275,7 @@ public class ConsumerWorker implements AutoCloseable, IConsumerWorker {
 	    		keepRetrying = false;
 	    	} catch (ConsumerRecoverableException e) {
 	    		// ignore this exception - it is recoverable - if the retry limit is not reached
+	    		recordsToRetry = commitHealthyPartitions(e, recordsToRetry);
     			retryAttempt++;
     			if (retryAttempt > pollRetryLimit) {
     				keepRetrying = false;
@@ -208,6 +283,7 @@ public class ConsumerWorker implements AutoCloseable, IConsumerWorker {
     					logger.warn("FAILED to re-process poll(): {} - reached limit of retry attempts: retryAttempt = {} out of {};" + 
         						"; ignoreOverlimitRecoverableErrors=TRUE - ignoring and continuing with the next poll()", 
         						e.getMessage(), retryAttempt, pollRetryLimit);
+    					batchMessageProcessor.onRetriesExhausted(consumerInstanceId);
     				} else {
     					logger.error("FAILED to re-process poll(): {} - reached limit of retry attempts: retryAttempt = {} out of {};" + 
     						" ignoreOverlimitRecoverableErrors=FALSE - will throw ConsumerNonRecoverableException and shutdown", 
@@ -215,38 +291,262 @@ public class ConsumerWorker implements AutoCloseable, IConsumerWorker {
     					throw new ConsumerNonRecoverableException(e.getMessage() + ": after retrying failed");
     				}
     			} else {
+					long retryDelayMs = ExponentialBackoff.getDelayMs(pollRetryIntervalMs, pollRetryMaxIntervalMs, retryAttempt);
 					logger.warn("Re-trying poll() afer getting ConsumerRecoverableException: {}; retryAttempt = {} out of {};" + 
 							" will sleep for {}ms before re-trying", 
-							e.getMessage(), retryAttempt, pollRetryLimit, pollRetryIntervalMs);
-					// sleep for a configured delay and try to re-process events from the last poll() again
-					Thread.sleep(pollRetryIntervalMs);
-	    			reprocessPollEvents(retryAttempt, records);
+							e.getMessage(), retryAttempt, pollRetryLimit, retryDelayMs);
+					// sleep with an exponential backoff and try to re-process events from the last poll() again
+					sleepBeforeRetry(retryDelayMs);
+					if (e.isPollReprocessingNeeded()) {
+						reprocessPollEvents(retryAttempt, recordsToRetry);
+					}
     			}
 	    	}
 		}
     	return shouldCommitThisPoll;
     }
     
-    public void reprocessPollEvents(int retryAttempt, ConsumerRecords<String, String> records) {
-    	int numProcessedMessages = 0;
-    	int numFailedMessages = 0;
+    /**
+     * Pipelined mode: hand the batch of the current poll() off to the batchMessageProcessor and,
+     * while it is being processed (for example - posted to ES), complete all previous polls whose batches 
+     * are already acknowledged and commit their offsets; 
+     * polls are completed strictly in order, and offsets of a poll are only committed after its batch is acknowledged;
+     * the number of batches in flight is limited by the batchMessageProcessor - 
+     * for ES: by the elasticsearch.bulk.max.in.flight property
+     *
+     * @param records
+     * @param pollEndPosition
+     * @throws Exception
+     */
+    private void processPollEndPipelined(
+    	ConsumerRecords<String, ?> records,
+    	Map<TopicPartition, OffsetAndMetadata> pollEndPosition) throws Exception {
+    	pendingPolls.addLast(new PendingPoll(records, pollEndPosition,
+    		batchMessageProcessor.onPollEndCallBackAsync(consumerInstanceId, pollEndPosition)));
+    	completeAcknowledgedPendingPolls();
+    }
+
+    private void completeAcknowledgedPendingPolls() throws Exception {
+    	while (!pendingPolls.isEmpty() && pendingPolls.peekFirst().shouldCommitFuture.isDone()) {
+    		completePendingPoll(pendingPolls.pollFirst());
+    	}
+    }
+
+    /**
+     * Wait for the batch of a pipelined poll() to be acknowledged and commit its offsets if needed;
+     * if the batch failed with a ConsumerRecoverableException - re-process the poll synchronously,
+     * with the same retry rules as in the non-pipelined mode
+     *
+     * @param completedPoll
+     * @throws Exception
+     */
+    private void completePendingPoll(PendingPoll completedPoll) throws Exception {
+    	boolean shouldCommitThisPoll;
+    	uncommittedOffsets.putAll(completedPoll.pollEndPosition);
+    	try {
+    		shouldCommitThisPoll = completedPoll.shouldCommitFuture.get();
+    	} catch (ExecutionException e) {
+    		if (!(e.getCause() instanceof ConsumerRecoverableException)) {
+    			throw (e.getCause() instanceof Exception) ? (Exception) e.getCause() : e;
+    		}
+    		ConsumerRecoverableException recoverableException = (ConsumerRecoverableException) e.getCause();
+    		ConsumerRecords<String, ?> recordsToRetry = commitHealthyPartitions(recoverableException, completedPoll.records);
+    		long retryDelayMs = ExponentialBackoff.getDelayMs(pollRetryIntervalMs, pollRetryMaxIntervalMs, 1);
+    		logger.warn("Re-trying pipelined poll() afer getting ConsumerRecoverableException: {};" +
+    			" will sleep for {}ms before re-trying", recoverableException.getMessage(), retryDelayMs);
+    		sleepBeforeRetry(retryDelayMs);
+    		if (recoverableException.isPollReprocessingNeeded()) {
+    			reprocessPollEvents(1, recordsToRetry);
+    		}
+    		shouldCommitThisPoll = performCallbackWithRetry(recordsToRetry, completedPoll.pollEndPosition);
+    	}
+    	if (!uncommittedOffsets.isEmpty()) {
+    		commitOffsetsIfNeeded(shouldCommitThisPoll);
+    		exposeOffsetPosition(completedPoll.pollEndPosition);
+    	}
+    }
+
+    /**
+     * Pipelined mode: wait for and complete all handed-off polls before the consumer is closed,
+     * so that their offsets are not left uncommitted if their batches were indexed OK
+     */
+    private void completeAllPendingPolls() {
+    	try {
+    		while (!pendingPolls.isEmpty()) {
+    			completePendingPoll(pendingPolls.pollFirst());
+    		}
+    	} catch (Exception e) {
+    		logger.warn("ConsumerWorker [consumerInstanceId={}] failed to complete pipelined polls during the shutdown " +
+    			"- offsets of {} remaining polls will not be committed: {}", consumerInstanceId, pendingPolls.size(), e.getMessage());
+    		pendingPolls.clear();
+    	}
+    }
+
+    /**
+     * Backpressure mode: pause all assigned partitions while the batchMessageProcessor is saturated - 
+     * for ES: while the max number of bulk requests is in flight - and resume them once it is not;
+     * partitions are paused again before each poll(), since partitions assigned during a re-balance are not paused
+     *
+     * @return TRUE if the partitions are paused
+     */
+    private boolean applyBackpressure() {
+    	if (batchMessageProcessor.isSaturated(consumerInstanceId)) {
+    		if (consumer.paused().isEmpty()) {
+    			logger.warn("ConsumerWorker [consumerInstanceId={}]: batchMessageProcessor is saturated - pausing partitions {}",
+    				consumerInstanceId, consumer.assignment());
+    		}
+    		consumer.pause(consumer.assignment());
+    		return true;
+    	}
+    	if (!consumer.paused().isEmpty()) {
+    		logger.info("ConsumerWorker [consumerInstanceId={}]: batchMessageProcessor is drained - resuming partitions {}",
+    			consumerInstanceId, consumer.paused());
+    		consumer.resume(consumer.paused());
+    	}
+    	return false;
+    }
+
+    /**
+     * Sleep before re-trying a poll(); in the backpressure mode - all assigned partitions are paused and poll() keeps
+     * being called during the sleep, so that the consumer stays in the group even if the re-tries take longer 
+     * than max.poll.interval.ms; 
+     * events fetched meanwhile from partitions assigned during a re-balance are not processed - the consumer seeks back 
+     * to them, and they are fetched again once the partitions are resumed
+     *
+     * @param retryDelayMs
+     * @throws InterruptedException
+     */
+    private void sleepBeforeRetry(long retryDelayMs) throws InterruptedException {
+    	if (!backpressureEnabled) {
+    		Thread.sleep(retryDelayMs);
+    		return;
+    	}
+    	Set<TopicPartition> pausedBeforeRetry = new HashSet<>(consumer.paused());
+    	consumer.pause(consumer.assignment());
+    	try {
+    		long sleepEndMs = System.currentTimeMillis() + retryDelayMs;
+    		for (long remainingMs = retryDelayMs; remainingMs > 0; remainingMs = sleepEndMs - System.currentTimeMillis()) {
+    			ConsumerRecords<String, ?> records = consumer.poll(Duration.ofMillis(Math.min(remainingMs, pausedPollIntervalMs)));
+    			for (TopicPartition topicPartition : records.partitions()) {
+    				consumer.seek(topicPartition, records.records(topicPartition).get(0).offset());
+    				consumer.pause(Arrays.asList(topicPartition));
+    			}
+    		}
+    	} finally {
+    		Set<TopicPartition> partitionsToResume = new HashSet<>(consumer.paused());
+    		partitionsToResume.removeAll(pausedBeforeRetry);
+    		consumer.resume(partitionsToResume);
+    	}
+    }
+
+    public void reprocessPollEvents(int retryAttempt, ConsumerRecords<String, ?> records) throws Exception {
     	// do not log failed events when reprocessing
-        for (ConsumerRecord<String, String> record : records) {
-            try {
-                boolean processedOK = batchMessageProcessor.processMessage(record, consumerInstanceId);
-                if (processedOK) {
-                    numProcessedMessages++;
-                } else {
-                    numFailedMessages++;                            
-                }
-            } catch (Exception e) {
-                numFailedMessages++;
-            }
-        }
+    	int numFailedMessages = processRecords(records, false);
+    	int numProcessedMessages = records.count() - numFailedMessages;
         logger.info("Poll re-processing snapshot, retryAttempt={}: numProcessedMessages: {}, numFailedMessages: {} ",
         		retryAttempt, numProcessedMessages, numFailedMessages);   	
     }
     
+    /**
+     * Process all events of a poll() - on the consumer thread, or, if kafka.consumer.processing.parallelism > 1, 
+     * on the threads of the stripedRecordProcessor - with the order of events preserved per key (or per partition);
+     * returns only when all events are processed - so the onPollEndCallBack() always sees the whole poll
+     * 
+     * @param records
+     * @param handleFailures - if TRUE - failed events are sent to the dead letter sink or the failed events log
+     * @return number of events that failed to be processed
+     * @throws Exception
+     */
+    private <V> int processRecords(ConsumerRecords<String, V> records, boolean handleFailures) throws Exception {
+    	if (processingParallelism > 1 && records.count() > 1) {
+    		if (stripedRecordProcessor == null) {
+    			stripedRecordProcessor = new StripedRecordProcessor(processingParallelism, processingOrderByPartition, 
+    				consumerInstanceName + "-" + consumerInstanceId + "-processor-%d");
+    		}
+    		return stripedRecordProcessor.processRecords(records, stripe -> processRecordBatch(stripe, handleFailures));
+    	}
+    	List<ConsumerRecord<String, V>> pollRecords = new ArrayList<>(records.count());
+    	records.forEach(pollRecords::add);
+    	return processRecordBatch(pollRecords, handleFailures);
+    }
+
+    /**
+     * Process events in order - with one batchMessageProcessor.processMessages() (or processRawMessages() - in the raw bytes mode)
+     * call if the processor supports batch processing, or with one processMessage() (or processRawMessage()) call per event otherwise
+     * 
+     * @param batch
+     * @param handleFailures - if TRUE - failed events are sent to the dead letter sink or the failed events log
+     * @return number of events that failed to be processed
+     */
+    private int processRecordBatch(List<? extends ConsumerRecord<String, ?>> batch, boolean handleFailures) {
+    	int numFailedMessages = 0;
+    	if (batchMessageProcessor.isBatchProcessingSupported()) {
+    		boolean[] processedOK;
+    		try {
+    			processedOK = processRecords(batch);
+    		} catch (Exception e) {
+    			// the whole batch failed
+    			if (handleFailures) {
+    				batch.forEach(record -> handleFailedEvent(record, e.getMessage(), e));
+    			}
+    			return batch.size();
+    		}
+    		if (processedOK == null || processedOK.length != batch.size()) {
+    			throw new IllegalStateException((rawBytesModeEnabled ? "processRawMessages()" : "processMessages()") + " returned " + 
+    				(processedOK == null ? "NULL" : processedOK.length) + " outcomes for " + batch.size() + " events");
+    		}
+    		for (int i = 0; i < processedOK.length; i++) {
+    			if (!processedOK[i]) {
+    				if (handleFailures) {
+    					handleFailedEvent(batch.get(i), "Failed to process event: ", null);
+    				}
+    				numFailedMessages++;
+    			}
+    		}
+    		return numFailedMessages;
+    	}
+    	for (ConsumerRecord<String, ?> record : batch) {
+    		logger.debug("consumerInstanceId={}; received record: partition: {}, offset: {}, value: {}",
+    			consumerInstanceId, record.partition(), record.offset(), record.value());
+    		try {
+    			if (!processRecord(record)) {
+    				if (handleFailures) {
+    					handleFailedEvent(record, "Failed to process event: ", null);
+    				}
+    				numFailedMessages++;
+    			}
+    		} catch (Exception e) {
+    			if (handleFailures) {
+    				handleFailedEvent(record, e.getMessage(), e);
+    			}
+    			numFailedMessages++;
+    		}
+    	}
+    	return numFailedMessages;
+    }
+
+    /**
+     * process events with one call - their value type depends on the value deserializer, as per the raw bytes mode
+     */
+    @SuppressWarnings("unchecked")
+    private boolean[] processRecords(List<? extends ConsumerRecord<String, ?>> batch) throws Exception {
+    	if (rawBytesModeEnabled) {
+    		return batchMessageProcessor.processRawMessages((List<ConsumerRecord<String, byte[]>>) batch, consumerInstanceId);
+    	}
+    	return batchMessageProcessor.processMessages((List<ConsumerRecord<String, String>>) batch, consumerInstanceId);
+    }
+
+    /**
+     * process one event - its value type depends on the value deserializer, as per the raw bytes mode
+     */
+    @SuppressWarnings("unchecked")
+    private boolean processRecord(ConsumerRecord<String, ?> record) throws Exception {
+    	if (rawBytesModeEnabled) {
+    		return batchMessageProcessor.processRawMessage((ConsumerRecord<String, byte[]>) record, consumerInstanceId);
+    	}
+    	return batchMessageProcessor.processMessage((ConsumerRecord<String, String>) record, consumerInstanceId);
+    }
+
     /**
      * this method can be overwritten (implemented) in your own ConsumerManager 
      * if you want to expose custom JMX metrics
@@ -256,29 +556,102 @@ public class ConsumerWorker implements AutoCloseable, IConsumerWorker {
         // NO OP
     }
     
-    private void commitOffsetsIfNeeded(boolean shouldCommitThisPoll, Map<TopicPartition, OffsetAndMetadata> partitionOffsetMap) {
-        try {
-            if (shouldCommitThisPoll) {
-                long commitStartTime = System.nanoTime();
-                if(partitionOffsetMap == null){
-                    consumer.commitAsync(offsetLoggingCallback);
-                } else {
-                    consumer.commitAsync(partitionOffsetMap, offsetLoggingCallback);
-                }
-                long commitTime = System.nanoTime() - commitStartTime;
-                logger.info("Commit successful for partitions/offsets : {} in {} ns", partitionOffsetMap, commitTime);
-            } else {
-                logger.debug("shouldCommitThisPoll = FALSE --> not committing offsets yet");
+    private void commitOffsetsIfNeeded(boolean shouldCommitThisPoll) {
+        if (shouldCommitThisPoll) {
+            commitOffsets(new HashSet<>(uncommittedOffsets.keySet()));
+        } else {
+            logger.debug("shouldCommitThisPoll = FALSE --> not committing offsets yet");
+        }
+    }
+
+    /**
+     * commit the watermarks of the given partitions and stop tracking them; partitions that are no longer assigned
+     * to this consumer after a re-balance are dropped - their new owner re-processes them from its committed offsets
+     * 
+     * @param partitions
+     */
+    private void commitOffsets(Collection<TopicPartition> partitions) {
+        Set<TopicPartition> assignment = consumer.assignment();
+        Map<TopicPartition, OffsetAndMetadata> partitionOffsetMap = new HashMap<>();
+        for (TopicPartition topicPartition : partitions) {
+            OffsetAndMetadata offset = uncommittedOffsets.remove(topicPartition);
+            if (offset != null && assignment.contains(topicPartition)) {
+                partitionOffsetMap.put(topicPartition, offset);
             }
+        }
+        if (partitionOffsetMap.isEmpty()) {
+            return;
+        }
+        try {
+            long commitStartTime = System.nanoTime();
+            consumer.commitAsync(partitionOffsetMap, offsetLoggingCallback);
+            long commitTime = System.nanoTime() - commitStartTime;
+            logger.info("Commit successful for partitions/offsets : {} in {} ns", partitionOffsetMap, commitTime);
         } catch (RetriableCommitFailedException e){
             logger.error("caught RetriableCommitFailedException while committing offsets : {}; abandoning the commit", partitionOffsetMap, e);
         }
     }
 
-    private Map<TopicPartition, OffsetAndMetadata> getPreviousPollEndPosition() {
+    /**
+     * if the batchMessageProcessor reported which partitions failed - commit offsets of all other partitions right away,
+     * so that a failure of one partition's events does not hold back (or cause re-processing of) the healthy ones
+     * 
+     * @param e
+     * @param records - events being re-tried
+     * @return events of the failed partitions only, or all events if the failed partitions are not known
+     */
+    private <V> ConsumerRecords<String, V> commitHealthyPartitions(ConsumerRecoverableException e, ConsumerRecords<String, V> records) {
+        Set<TopicPartition> failedPartitions = e.getFailedPartitions();
+        if (failedPartitions == null) {
+            return records;
+        }
+        Set<TopicPartition> healthyPartitions = new HashSet<>(uncommittedOffsets.keySet());
+        healthyPartitions.removeAll(failedPartitions);
+        if (!healthyPartitions.isEmpty()) {
+            logger.info("ConsumerWorker [consumerInstanceId={}]: events of partitions {} failed - committing offsets of healthy partitions {}",
+                consumerInstanceId, failedPartitions, healthyPartitions);
+            commitOffsets(healthyPartitions);
+        }
+        Map<TopicPartition, List<ConsumerRecord<String, V>>> failedPartitionRecords = new HashMap<>();
+        for (TopicPartition topicPartition : records.partitions()) {
+            if (failedPartitions.contains(topicPartition)) {
+                failedPartitionRecords.put(topicPartition, records.records(topicPartition));
+            }
+        }
+        return new ConsumerRecords<>(failedPartitionRecords);
+    }
+
+    private void handleFailedEvent(ConsumerRecord<String, ?> failedRecord, String errorMessage, Exception cause) {
+        if (deadLetterSink != null) {
+            try {
+                // raw values are sent as is
+                deadLetterSink.sendFailedEvent(failedRecord, errorMessage);
+                return;
+            } catch (Exception e) {
+                logger.error("Failed to send event to the dead letter sink: partition={}, offset={}: {}",
+                    failedRecord.partition(), failedRecord.offset(), e.getMessage());
+            }
+        }
+        ConsumerRecord<String, String> record = CommonKafkaUtils.toStringValueRecord(failedRecord);
+        if (cause != null) {
+            FailedEventsLogger.logFailedEventWithException(errorMessage, record.value(), record.offset(), cause);
+        } else {
+            FailedEventsLogger.logFailedEvent(errorMessage, record.value(), record.offset());
+        }
+    }
+
+    /**
+     * committable position of each partition the poll() returned events for: offset of its last event + 1;
+     * it is taken from the events themselves - no calls to consumer.position() are needed
+     * 
+     * @param records
+     * @return
+     */
+    private <V> Map<TopicPartition, OffsetAndMetadata> getPollEndPosition(ConsumerRecords<String, V> records) {
         Map<TopicPartition, OffsetAndMetadata> nextCommitableOffset = new HashMap<>();
-        for (TopicPartition topicPartition : consumer.assignment()) {
-            nextCommitableOffset.put(topicPartition, new OffsetAndMetadata(consumer.position(topicPartition)));
+        for (TopicPartition topicPartition : records.partitions()) {
+            List<ConsumerRecord<String, V>> partitionRecords = records.records(topicPartition);
+            nextCommitableOffset.put(topicPartition, new OffsetAndMetadata(partitionRecords.get(partitionRecords.size() - 1).offset() + 1));
         }
         return nextCommitableOffset;
     }
@@ -332,7 +705,11 @@ public class ConsumerWorker implements AutoCloseable, IConsumerWorker {
 		this.pollRetryIntervalMs = pollRetryIntervalMs;
 	}
 
-	public void setConsumer(Consumer<String, String> consumer) {
+	public void setPollRetryMaxIntervalMs(long pollRetryMaxIntervalMs) {
+		this.pollRetryMaxIntervalMs = pollRetryMaxIntervalMs;
+	}
+
+	public void setConsumer(Consumer<String, ?> consumer) {
 		this.consumer = consumer;
 	}
 
@@ -348,4 +725,49 @@ public class ConsumerWorker implements AutoCloseable, IConsumerWorker {
 		this.ignoreOverlimitRecoverableErrors = ignoreOverlimitRecoverableErrors;
 	}
 
+	public void setPipelinedModeEnabled(boolean pipelinedModeEnabled) {
+		this.pipelinedModeEnabled = pipelinedModeEnabled;
+	}
+
+	public void setBackpressureEnabled(boolean backpressureEnabled) {
+		this.backpressureEnabled = backpressureEnabled;
+	}
+
+	public void setPausedPollIntervalMs(long pausedPollIntervalMs) {
+		this.pausedPollIntervalMs = pausedPollIntervalMs;
+	}
+
+	public void setProcessingParallelism(int processingParallelism) {
+		this.processingParallelism = processingParallelism;
+	}
+
+	public void setProcessingOrderByPartition(boolean processingOrderByPartition) {
+		this.processingOrderByPartition = processingOrderByPartition;
+	}
+
+	public void setRawBytesModeEnabled(boolean rawBytesModeEnabled) {
+		this.rawBytesModeEnabled = rawBytesModeEnabled;
+	}
+
+	public void setDeadLetterSink(IDeadLetterSink deadLetterSink) {
+		this.deadLetterSink = deadLetterSink;
+	}
+
+	/**
+	 * records and end position of a poll() whose batch was handed off in the pipelined mode,
+	 * together with the future of its shouldCommitThisPoll flag
+	 */
+	private static class PendingPoll {
+		private final ConsumerRecords<String, ?> records;
+		private final Map<TopicPartition, OffsetAndMetadata> pollEndPosition;
+		private final CompletableFuture<Boolean> shouldCommitFuture;
+
+		private PendingPoll(ConsumerRecords<String, ?> records,
+			Map<TopicPartition, OffsetAndMetadata> pollEndPosition, CompletableFuture<Boolean> shouldCommitFuture) {
+			this.records = records;
+			this.pollEndPosition = pollEndPosition;
+			this.shouldCommitFuture = shouldCommitFuture;
+		}
+	}
+
 }
@@ -0,0 +1,110 @@
+package org.elasticsearch.kafka.indexer.jobs;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.function.ToIntFunction;
+
+import org.apache.kafka.clients.consumer.ConsumerRecord;
+import org.apache.kafka.clients.consumer.ConsumerRecords;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
+/**
+ * Processes events of one poll() in parallel, on a fixed number of threads of one ConsumerWorker:
+ * events are split into stripes by the hash of their key (or by their partition), and each stripe is processed
+ * by one thread in the poll order - so events with the same key (or from the same partition) are never processed
+ * out of order; processRecords() returns only when all events of the poll are processed
+ */
+public class StripedRecordProcessor implements AutoCloseable {
+
+	private static final Logger logger = LoggerFactory.getLogger(StripedRecordProcessor.class);
+
+	private final int parallelism;
+	private final boolean stripeByPartition;
+	private final ExecutorService executorService;
+
+	/**
+	 * @param parallelism - number of processing threads
+	 * @param stripeByPartition - if TRUE - order of events is preserved per partition, otherwise - per key;
+	 * events without a key are always striped by their partition
+	 * @param threadNameFormat - name format of the processing threads, with one %d for the thread number
+	 */
+	public StripedRecordProcessor(int parallelism, boolean stripeByPartition, String threadNameFormat) {
+		this.parallelism = Math.max(1, parallelism);
+		this.stripeByPartition = stripeByPartition;
+		this.executorService = Executors.newFixedThreadPool(this.parallelism,
+			new ThreadFactoryBuilder().setNameFormat(threadNameFormat).setDaemon(true).build());
+		logger.info("Created StripedRecordProcessor: parallelism={}, stripeByPartition={}", this.parallelism, stripeByPartition);
+	}
+
+	/**
+	 * process all events and wait until they are processed
+	 *
+	 * @param records
+	 * @param stripeHandler - processes events of one stripe, in order, and returns the number of events that failed; 
+	 * called concurrently from several threads
+	 * @return total number of failed events
+	 * @throws Exception - the first exception thrown by the stripeHandler, if any
+	 */
+	public <V> int processRecords(ConsumerRecords<String, V> records, ToIntFunction<List<ConsumerRecord<String, V>>> stripeHandler)
+			throws Exception {
+		List<List<ConsumerRecord<String, V>>> stripes = new ArrayList<>(parallelism);
+		for (int i = 0; i < parallelism; i++) {
+			stripes.add(new ArrayList<>());
+		}
+		for (ConsumerRecord<String, V> record : records) {
+			stripes.get(getStripe(record)).add(record);
+		}
+		List<Future<Integer>> stripeFutures = new ArrayList<>(parallelism);
+		for (List<ConsumerRecord<String, V>> stripe : stripes) {
+			if (stripe.isEmpty()) {
+				continue;
+			}
+			stripeFutures.add(executorService.submit(() -> stripeHandler.applyAsInt(stripe)));
+		}
+		// wait for all stripes - even if some of them failed - so that no events are still being processed on return
+		int numFailedRecords = 0;
+		Exception stripeException = null;
+		for (Future<Integer> stripeFuture : stripeFutures) {
+			try {
+				numFailedRecords += stripeFuture.get();
+			} catch (ExecutionException e) {
+				if (stripeException == null) {
+					stripeException = (e.getCause() instanceof Exception) ? (Exception) e.getCause() : e;
+				}
+			}
+		}
+		if (stripeException != null) {
+			throw stripeException;
+		}
+		return numFailedRecords;
+	}
+
+	private int getStripe(ConsumerRecord<String, ?> record) {
+		if (stripeByPartition || record.key() == null) {
+			return Math.floorMod(record.partition(), parallelism);
+		}
+		return Math.floorMod(record.key().hashCode(), parallelism);
+	}
+
+	@Override
+	public void close() {
+		executorService.shutdown();
+		try {
+			if (!executorService.awaitTermination(5, TimeUnit.SECONDS)) {
+				executorService.shutdownNow();
+			}
+		} catch (InterruptedException e) {
+			executorService.shutdownNow();
+			Thread.currentThread().interrupt();
+		}
+	}
+
+}
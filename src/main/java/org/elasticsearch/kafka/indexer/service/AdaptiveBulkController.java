@@ -0,0 +1,159 @@
+package org.elasticsearch.kafka.indexer.service;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.jmx.export.annotation.ManagedAttribute;
+import org.springframework.jmx.export.annotation.ManagedResource;
+
+/**
+ * AIMD controller of the bulk request size and of the number of bulk requests in flight, shared by all
+ * ElasticSearchBatchServices - so that all consumer threads react to the load of the ES cluster together:
+ *
+ * while bulk requests complete within elasticsearch.bulk.adaptive.target.latency.ms - the max bulk size grows
+ * by elasticsearch.bulk.adaptive.increase.actions after each of them, and the max number of bulk requests in flight
+ * grows by 1 after each elasticsearch.bulk.adaptive.increase.in.flight.after consecutive fast bulk requests;
+ * when a bulk request is slower than the target or is rejected by ES - both are multiplied by
+ * elasticsearch.bulk.adaptive.decrease.factor;
+ *
+ * the current state is exposed via JMX
+ */
+@ManagedResource(objectName = "org.elasticsearch.kafka.indexer:name=AdaptiveBulkController")
+public class AdaptiveBulkController {
+
+	private static final Logger logger = LoggerFactory.getLogger(AdaptiveBulkController.class);
+
+	@Value("${elasticsearch.bulk.adaptive.target.latency.ms:1000}")
+	private long targetLatencyMs;
+	@Value("${elasticsearch.bulk.adaptive.min.actions:100}")
+	private int minBulkActions;
+	@Value("${elasticsearch.bulk.adaptive.max.actions:20000}")
+	private int maxBulkActions;
+	@Value("${elasticsearch.bulk.adaptive.increase.actions:100}")
+	private int increaseBulkActionsStep;
+	@Value("${elasticsearch.bulk.adaptive.min.in.flight:1}")
+	private int minInFlightBulks;
+	@Value("${elasticsearch.bulk.adaptive.max.in.flight:4}")
+	private int maxInFlightBulks;
+	@Value("${elasticsearch.bulk.adaptive.increase.in.flight.after:10}")
+	private int increaseInFlightAfter;
+	@Value("${elasticsearch.bulk.adaptive.decrease.factor:0.5}")
+	private double decreaseFactor;
+
+	private int currentBulkActionsLimit = -1;
+	private int currentInFlightBulksLimit = -1;
+	private int numConsecutiveFastBulks = 0;
+	private long lastBulkLatencyMs = 0L;
+	private long numRejectedBulks = 0L;
+	private long numSlowBulks = 0L;
+
+	private void initLimitsIfNeeded() {
+		if (currentBulkActionsLimit < 0) {
+			// start from the bottom - the limits grow quickly while the cluster keeps up
+			currentBulkActionsLimit = Math.max(1, minBulkActions);
+			currentInFlightBulksLimit = Math.max(1, minInFlightBulks);
+		}
+	}
+
+	/**
+	 * callback method - called when a bulk request was indexed by ES without rejections
+	 *
+	 * @param numberOfActions - number of actions in the bulk request
+	 * @param latencyMs - time it took ES to respond
+	 */
+	public synchronized void onBulkCompleted(int numberOfActions, long latencyMs) {
+		initLimitsIfNeeded();
+		lastBulkLatencyMs = latencyMs;
+		if (latencyMs > targetLatencyMs) {
+			numSlowBulks++;
+			decrease("latency " + latencyMs + "ms is over the target " + targetLatencyMs + "ms");
+			return;
+		}
+		// do not grow the limit while bulk requests are not even reaching it
+		if (numberOfActions >= currentBulkActionsLimit) {
+			currentBulkActionsLimit = Math.min(maxBulkActions, currentBulkActionsLimit + increaseBulkActionsStep);
+		}
+		numConsecutiveFastBulks++;
+		if (numConsecutiveFastBulks >= increaseInFlightAfter) {
+			numConsecutiveFastBulks = 0;
+			currentInFlightBulksLimit = Math.min(maxInFlightBulks, currentInFlightBulksLimit + 1);
+		}
+	}
+
+	/**
+	 * callback method - called when a bulk request (or some of its items) was rejected by ES because it is overloaded
+	 */
+	public synchronized void onBulkRejected() {
+		initLimitsIfNeeded();
+		numRejectedBulks++;
+		decrease("bulk request was rejected");
+	}
+
+	private void decrease(String reason) {
+		numConsecutiveFastBulks = 0;
+		currentBulkActionsLimit = Math.max(minBulkActions, (int) (currentBulkActionsLimit * decreaseFactor));
+		currentInFlightBulksLimit = Math.max(Math.max(1, minInFlightBulks), (int) (currentInFlightBulksLimit * decreaseFactor));
+		logger.warn("Decreasing bulk limits: {}; bulkActionsLimit: {}, inFlightBulksLimit: {}",
+			reason, currentBulkActionsLimit, currentInFlightBulksLimit);
+	}
+
+	@ManagedAttribute(description = "current max number of actions in one bulk request")
+	public synchronized int getBulkActionsLimit() {
+		initLimitsIfNeeded();
+		return currentBulkActionsLimit;
+	}
+
+	@ManagedAttribute(description = "current max number of bulk requests in flight per consumer thread")
+	public synchronized int getInFlightBulksLimit() {
+		initLimitsIfNeeded();
+		return currentInFlightBulksLimit;
+	}
+
+	@ManagedAttribute(description = "latency of the last bulk request in ms")
+	public synchronized long getLastBulkLatencyMs() {
+		return lastBulkLatencyMs;
+	}
+
+	@ManagedAttribute(description = "number of bulk requests rejected by ES")
+	public synchronized long getNumRejectedBulks() {
+		return numRejectedBulks;
+	}
+
+	@ManagedAttribute(description = "number of bulk requests slower than the target latency")
+	public synchronized long getNumSlowBulks() {
+		return numSlowBulks;
+	}
+
+	public void setTargetLatencyMs(long targetLatencyMs) {
+		this.targetLatencyMs = targetLatencyMs;
+	}
+
+	public void setMinBulkActions(int minBulkActions) {
+		this.minBulkActions = minBulkActions;
+	}
+
+	public void setMaxBulkActions(int maxBulkActions) {
+		this.maxBulkActions = maxBulkActions;
+	}
+
+	public void setIncreaseBulkActionsStep(int increaseBulkActionsStep) {
+		this.increaseBulkActionsStep = increaseBulkActionsStep;
+	}
+
+	public void setMinInFlightBulks(int minInFlightBulks) {
+		this.minInFlightBulks = minInFlightBulks;
+	}
+
+	public void setMaxInFlightBulks(int maxInFlightBulks) {
+		this.maxInFlightBulks = maxInFlightBulks;
+	}
+
+	public void setIncreaseInFlightAfter(int increaseInFlightAfter) {
+		this.increaseInFlightAfter = increaseInFlightAfter;
+	}
+
+	public void setDecreaseFactor(double decreaseFactor) {
+		this.decreaseFactor = decreaseFactor;
+	}
+
+}
@@ -0,0 +1,152 @@
+package org.elasticsearch.kafka.indexer.service;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.apache.kafka.clients.consumer.ConsumerRecord;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+
+/**
+ * Derives ES document ids from the Kafka records, as per the elasticsearch.document.id.strategy:
+ * NONE - no id, ES generates one (re-processed events are indexed again as new documents);
+ * TOPIC_PARTITION_OFFSET - "topic-partition-offset" - one document per event, re-processing an event overwrites it;
+ * KEY - the record key - one document per entity, the last event of each key wins;
+ * FIELD - value of the elasticsearch.document.id.field of the JSON event;
+ * and the routing values - from the elasticsearch.document.routing.field of the JSON event, if set;
+ *
+ * fields are JSON pointers (like /customer/id) or names of top level fields; they are read with one
+ * {@link JsonFieldExtractor} pass, which stops reading the event as soon as both fields are found
+ *
+ * shared by all consumer threads
+ */
+public class DocumentIdResolver {
+
+	private static final Logger logger = LoggerFactory.getLogger(DocumentIdResolver.class);
+
+	public enum Strategy {
+		NONE, TOPIC_PARTITION_OFFSET, KEY, FIELD
+	}
+
+	@Value("${elasticsearch.document.id.strategy:NONE}")
+	private Strategy strategy = Strategy.NONE;
+	@Value("${elasticsearch.document.id.field:id}")
+	private String idField = "id";
+	// no routing if empty
+	@Value("${elasticsearch.document.routing.field:}")
+	private String routingField = "";
+	// compiled on the first use - from the fields set at that time
+	private volatile JsonFieldExtractor fieldExtractor;
+
+	/**
+	 * id and routing value of the document of an event; NULL values - if ES should generate the id / use no routing
+	 */
+	public static class DocumentRef {
+		public static final DocumentRef EMPTY = new DocumentRef(null, null);
+
+		private final String documentId;
+		private final String routingValue;
+
+		private DocumentRef(String documentId, String routingValue) {
+			this.documentId = documentId;
+			this.routingValue = routingValue;
+		}
+
+		public String getDocumentId() {
+			return documentId;
+		}
+
+		public String getRoutingValue() {
+			return routingValue;
+		}
+	}
+
+	/**
+	 * @param record - record with a String (JSON) or byte[] (UTF-8 JSON) value
+	 * @return document id, or NULL if ES should generate one - also if the record has no key (KEY strategy)
+	 * or no id field (FIELD strategy)
+	 * @throws IOException - if the value is not valid JSON (FIELD strategy)
+	 */
+	public String getDocumentId(ConsumerRecord<String, ?> record) throws IOException {
+		return getDocumentRef(record, true).getDocumentId();
+	}
+
+	/**
+	 * @param record - record with a String (JSON) or byte[] (UTF-8 JSON) value
+	 * @param jsonValue - FALSE if the value is not JSON (like Avro): the FIELD id strategy and the routing field
+	 * are not applied then
+	 * @return document id and routing value of the event
+	 * @throws IOException - if the value is not valid JSON (FIELD strategy or routing field)
+	 */
+	public DocumentRef getDocumentRef(ConsumerRecord<String, ?> record, boolean jsonValue) throws IOException {
+		boolean readIdField = jsonValue && strategy == Strategy.FIELD;
+		boolean readRoutingField = jsonValue && !routingField.isEmpty();
+		String documentId = null;
+		String routingValue = null;
+		if (readIdField || readRoutingField) {
+			// paths of the extractor: the id field (FIELD strategy), then the routing field (if set)
+			String[] fieldValues = getFieldExtractor().extract(record.value());
+			documentId = readIdField ? fieldValues[0] : null;
+			routingValue = readRoutingField ? fieldValues[fieldValues.length - 1] : null;
+			if (readIdField && documentId == null) {
+				logger.debug("No {} field in the event - ES will generate its id; topic={}, partition={}, offset={}",
+					idField, record.topic(), record.partition(), record.offset());
+			}
+		}
+		switch (strategy) {
+		case TOPIC_PARTITION_OFFSET:
+			documentId = record.topic() + "-" + record.partition() + "-" + record.offset();
+			break;
+		case KEY:
+			documentId = record.key();
+			break;
+		case FIELD:
+			break;
+		default:
+			documentId = null;
+		}
+		if (documentId == null && routingValue == null) {
+			return DocumentRef.EMPTY;
+		}
+		return new DocumentRef(documentId, routingValue);
+	}
+
+	private JsonFieldExtractor getFieldExtractor() {
+		JsonFieldExtractor extractor = fieldExtractor;
+		if (extractor == null) {
+			// only the fields in use are looked for - the extractor stops as soon as all of them are found
+			List<String> fields = new ArrayList<>(2);
+			if (strategy == Strategy.FIELD) {
+				fields.add(idField);
+			}
+			if (!routingField.isEmpty()) {
+				fields.add(routingField);
+			}
+			extractor = new JsonFieldExtractor(fields.toArray(new String[fields.size()]));
+			fieldExtractor = extractor;
+		}
+		return extractor;
+	}
+
+	public Strategy getStrategy() {
+		return strategy;
+	}
+
+	public void setStrategy(Strategy strategy) {
+		this.strategy = strategy;
+		this.fieldExtractor = null;
+	}
+
+	public void setIdField(String idField) {
+		this.idField = idField;
+		this.fieldExtractor = null;
+	}
+
+	public void setRoutingField(String routingField) {
+		this.routingField = routingField;
+		this.fieldExtractor = null;
+	}
+
+}
@@ -0,0 +1,107 @@
+package org.elasticsearch.kafka.indexer.service;
+
+import java.util.Arrays;
+
+/**
+ * Open addressing (linear probing) hash map of (index name, document id) -> position of the document's action
+ * in a bulk request; used by the ElasticSearchBatchService in the coalescing mode to find the action
+ * of the previous version of a document in the current bulk request;
+ *
+ * keys are kept in two parallel arrays - no key objects or map entries are allocated per document;
+ * entries are never removed one by one - only all at once, when a new bulk request is started;
+ * not thread-safe
+ */
+class DocumentPositionMap {
+
+	private static final int DEFAULT_INITIAL_CAPACITY = 1024;
+	// max load factor is 1/2 - probe sequences stay short even for clustered hashes
+	private String[] indexNames;
+	private String[] documentIds;
+	private int[] positions;
+	private int size = 0;
+
+	DocumentPositionMap() {
+		this(DEFAULT_INITIAL_CAPACITY);
+	}
+
+	DocumentPositionMap(int initialCapacity) {
+		int capacity = Integer.highestOneBit(Math.max(2, initialCapacity - 1)) << 1;
+		allocate(capacity);
+	}
+
+	private void allocate(int capacity) {
+		indexNames = new String[capacity];
+		documentIds = new String[capacity];
+		positions = new int[capacity];
+	}
+
+	private static int hash(String indexName, String documentId) {
+		int h = 31 * indexName.hashCode() + documentId.hashCode();
+		// spread the high bits into the low ones - only the low bits select the slot
+		return h ^ (h >>> 16);
+	}
+
+	private int findSlot(String indexName, String documentId) {
+		int mask = documentIds.length - 1;
+		int slot = hash(indexName, documentId) & mask;
+		while (documentIds[slot] != null &&
+			!(documentIds[slot].equals(documentId) && indexNames[slot].equals(indexName))) {
+			slot = (slot + 1) & mask;
+		}
+		return slot;
+	}
+
+	/**
+	 * @return position of the document, or -1 if there is no such document in the map
+	 */
+	int get(String indexName, String documentId) {
+		int slot = findSlot(indexName, documentId);
+		return documentIds[slot] == null ? -1 : positions[slot];
+	}
+
+	/**
+	 * add the document, or replace its position if it is in the map already
+	 */
+	void put(String indexName, String documentId, int position) {
+		int slot = findSlot(indexName, documentId);
+		if (documentIds[slot] == null) {
+			if ((size + 1) * 2 > documentIds.length) {
+				resize();
+				slot = findSlot(indexName, documentId);
+			}
+			indexNames[slot] = indexName;
+			documentIds[slot] = documentId;
+			size++;
+		}
+		positions[slot] = position;
+	}
+
+	private void resize() {
+		String[] oldIndexNames = indexNames;
+		String[] oldDocumentIds = documentIds;
+		int[] oldPositions = positions;
+		allocate(oldDocumentIds.length * 2);
+		for (int i = 0; i < oldDocumentIds.length; i++) {
+			if (oldDocumentIds[i] != null) {
+				int slot = findSlot(oldIndexNames[i], oldDocumentIds[i]);
+				indexNames[slot] = oldIndexNames[i];
+				documentIds[slot] = oldDocumentIds[i];
+				positions[slot] = oldPositions[i];
+			}
+		}
+	}
+
+	int size() {
+		return size;
+	}
+
+	void clear() {
+		if (size == 0) {
+			return;
+		}
+		Arrays.fill(indexNames, null);
+		Arrays.fill(documentIds, null);
+		size = 0;
+	}
+
+}
@@ -0,0 +1,161 @@
+package org.elasticsearch.kafka.indexer.service;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.stream.Collectors;
+
+import javax.annotation.PostConstruct;
+
+import org.elasticsearch.common.bytes.BytesReference;
+import org.elasticsearch.common.io.stream.BytesStreamOutput;
+import org.elasticsearch.common.xcontent.DeprecationHandler;
+import org.elasticsearch.common.xcontent.NamedXContentRegistry;
+import org.elasticsearch.common.xcontent.XContentBuilder;
+import org.elasticsearch.common.xcontent.XContentGenerator;
+import org.elasticsearch.common.xcontent.XContentParser;
+import org.elasticsearch.common.xcontent.XContentType;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+
+/**
+ * Shrinks JSON events before they are indexed: only the elasticsearch.document.projection.includes fields are kept
+ * (all fields if not set), the elasticsearch.document.projection.excludes fields are dropped, and string values
+ * longer than elasticsearch.document.projection.max.string.length chars are truncated;
+ * includes and excludes are comma separated paths in the ES source filtering notation - like "message,user.*" or "debug,*.stack_trace";
+ *
+ * events are rewritten in one streaming pass - parser tokens are copied into a filtering builder, no tree of the event is built;
+ * bytes saved by the projection and truncated string values (only the ones kept by the includes / excludes) are counted
+ *
+ * shared by all consumer threads
+ */
+public class DocumentProjection {
+
+	private static final Logger logger = LoggerFactory.getLogger(DocumentProjection.class);
+
+	@Value("${elasticsearch.document.projection.includes:}")
+	private String includes = "";
+	@Value("${elasticsearch.document.projection.excludes:}")
+	private String excludes = "";
+	// 0 - strings are not truncated
+	@Value("${elasticsearch.document.projection.max.string.length:0}")
+	private int maxStringLength = 0;
+
+	private Set<String> includePaths;
+	private Set<String> excludePaths;
+
+	private final AtomicLong numProjectedEvents = new AtomicLong();
+	private final AtomicLong numInputBytes = new AtomicLong();
+	private final AtomicLong numSavedBytes = new AtomicLong();
+	private final AtomicLong numTruncatedStrings = new AtomicLong();
+
+	@PostConstruct
+	public void init() {
+		includePaths = toPaths(includes);
+		excludePaths = toPaths(excludes);
+		logger.info("DocumentProjection created: includes={}, excludes={}, maxStringLength={}", includePaths, excludePaths, maxStringLength);
+	}
+
+	private static Set<String> toPaths(String paths) {
+		return Arrays.stream(paths.split(","))
+			.map(String::trim)
+			.filter(path -> !path.isEmpty())
+			.collect(Collectors.toSet());
+	}
+
+	/**
+	 * @param value - JSON event: String or UTF-8 bytes
+	 * @return projected JSON document
+	 * @throws IOException - if the event is not valid JSON
+	 */
+	public BytesReference project(Object value) throws IOException {
+		byte[] bytes = (value instanceof byte[]) ? (byte[]) value : value.toString().getBytes(StandardCharsets.UTF_8);
+		BytesReference projected;
+		BytesStreamOutput output = new BytesStreamOutput();
+		try (XContentParser parser = XContentType.JSON.xContent().createParser(
+				NamedXContentRegistry.EMPTY, DeprecationHandler.THROW_UNSUPPORTED_OPERATION, bytes);
+			XContentBuilder builder = new XContentBuilder(XContentType.JSON.xContent(), output, includePaths, excludePaths)) {
+			// the builder drops the fields filtered out by the includes / excludes - as they are written
+			XContentGenerator generator = builder.generator();
+			while (parser.nextToken() != null) {
+				if (maxStringLength > 0 && parser.currentToken() == XContentParser.Token.VALUE_STRING &&
+						parser.textLength() > maxStringLength) {
+					writeTruncated(parser, generator, output);
+				} else {
+					generator.copyCurrentEvent(parser);
+				}
+			}
+			projected = BytesReference.bytes(builder);
+		}
+		numProjectedEvents.incrementAndGet();
+		numInputBytes.addAndGet(bytes.length);
+		numSavedBytes.addAndGet(bytes.length - projected.length());
+		return projected;
+	}
+
+	private void writeTruncated(XContentParser parser, XContentGenerator generator, BytesStreamOutput output) throws IOException {
+		int length = maxStringLength;
+		char[] text = parser.textCharacters();
+		int offset = parser.textOffset();
+		// do not split a surrogate pair
+		if (Character.isHighSurrogate(text[offset + length - 1])) {
+			length--;
+		}
+		boolean isFiltered = !includePaths.isEmpty() || !excludePaths.isEmpty();
+		long sizeBeforeWrite = 0L;
+		if (isFiltered) {
+			generator.flush();
+			sizeBeforeWrite = output.size();
+		}
+		generator.writeString(text, offset, length);
+		if (isFiltered) {
+			generator.flush();
+			if (output.size() == sizeBeforeWrite) {
+				// dropped by the includes / excludes - nothing was truncated in the document
+				return;
+			}
+		}
+		numTruncatedStrings.incrementAndGet();
+	}
+
+	public long getNumberOfProjectedEvents() {
+		return numProjectedEvents.get();
+	}
+
+	/**
+	 * @return total size of the projected events, before the projection
+	 */
+	public long getNumberOfInputBytes() {
+		return numInputBytes.get();
+	}
+
+	/**
+	 * @return number of bytes the projection removed from the events
+	 */
+	public long getNumberOfSavedBytes() {
+		return numSavedBytes.get();
+	}
+
+	/**
+	 * @return number of truncated string values written into the projected events
+	 */
+	public long getNumberOfTruncatedStrings() {
+		return numTruncatedStrings.get();
+	}
+
+	public void setIncludes(String includes) {
+		this.includes = includes;
+	}
+
+	public void setExcludes(String excludes) {
+		this.excludes = excludes;
+	}
+
+	public void setMaxStringLength(int maxStringLength) {
+		this.maxStringLength = maxStringLength;
+	}
+
+}
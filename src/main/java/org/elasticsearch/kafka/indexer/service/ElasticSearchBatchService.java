@@ -1,19 +1,41 @@
 package org.elasticsearch.kafka.indexer.service;
 
+import java.util.ArrayList;
 import java.util.HashSet;
 import java.util.Iterator;
+import java.util.List;
+import java.util.Queue;
 import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
 import java.util.concurrent.ExecutionException;
+import java.util.concurrent.atomic.AtomicLong;
 
+import org.apache.kafka.clients.consumer.ConsumerRecord;
+import org.apache.kafka.common.TopicPartition;
 import org.elasticsearch.ElasticsearchException;
+import org.elasticsearch.action.ActionListener;
+import org.elasticsearch.action.DocWriteRequest;
 import org.elasticsearch.action.bulk.BulkItemResponse;
+import org.elasticsearch.action.bulk.BulkRequest;
 import org.elasticsearch.action.bulk.BulkRequestBuilder;
 import org.elasticsearch.action.bulk.BulkResponse;
+import org.elasticsearch.action.delete.DeleteRequest;
+import org.elasticsearch.action.index.IndexRequest;
 import org.elasticsearch.action.index.IndexRequestBuilder;
+import org.elasticsearch.action.update.UpdateRequest;
 import org.elasticsearch.client.transport.NoNodeAvailableException;
+import org.elasticsearch.common.bytes.BytesArray;
+import org.elasticsearch.common.bytes.BytesReference;
+import org.elasticsearch.common.xcontent.XContentBuilder;
 import org.elasticsearch.common.xcontent.XContentType;
+import org.elasticsearch.index.VersionType;
 import org.elasticsearch.kafka.indexer.exception.IndexerESNotRecoverableException;
 import org.elasticsearch.kafka.indexer.exception.IndexerESRecoverableException;
+import org.elasticsearch.kafka.indexer.CommonKafkaUtils;
+import org.elasticsearch.kafka.indexer.ExponentialBackoff;
+import org.elasticsearch.kafka.indexer.FailedEventsLogger;
+import org.elasticsearch.rest.RestStatus;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.annotation.Autowired;
@@ -31,18 +53,77 @@ public class ElasticSearchBatchService {
     private static final Logger logger = LoggerFactory.getLogger(ElasticSearchBatchService.class);
     private static final String SERVICE_UNAVAILABLE = "SERVICE_UNAVAILABLE";
     private static final String INTERNAL_SERVER_ERROR = "INTERNAL_SERVER_ERROR";
+    private static final String TOO_MANY_REQUESTS = "TOO_MANY_REQUESTS";
     private BulkRequestBuilder bulkRequestBuilder;
+    // bulk requests that reached the max number of actions or max size - ready to be posted on the next flush
+    private List<BulkRequestBuilder> fullBulkRequests = new ArrayList<>();
+    // bulk requests that failed with a recoverable error - they are re-posted by the next flushIfNeeded() call;
+    // can be added to from the ES callback threads
+    private Queue<BulkRequestBuilder> failedBulkRequests = new ConcurrentLinkedQueue<>();
+    // time when the first event that is not posted to ES yet was added; 0 if there are no such events
+    private long firstNotFlushedEventTimeMs = 0L;
     private Set<String> indexNames = new HashSet<>();
+    // number of bulk requests posted via postToElasticSearchAsync() that are in flight now; guarded by inFlightBulksLock
+    private int numInFlightBulks = 0;
+    private final Object inFlightBulksLock = new Object();
+    // coalescing mode: (index name, document id) -> position of the document's action in the current bulk request
+    private final DocumentPositionMap documentPositions = new DocumentPositionMap();
+    // number of events that replaced a previous version of their document in the coalescing mode
+    private long numCoalescedEvents = 0L;
+    // number of events ES ignored because a later version of their document was indexed already (external versioning);
+    // can be updated from the ES callback threads
+    private final AtomicLong numStaleVersionEvents = new AtomicLong();
    
-    @Value("${elasticsearch.reconnect.attempt.wait.ms:10000}")
-    private long sleepBetweenESReconnectAttempts;
+    // delay in ms before the first re-try of the items rejected by ES; it doubles with each re-try (with jitter)
+    @Value("${elasticsearch.bulk.retry.initial.backoff.ms:100}")
+    private long bulkRetryInitialBackoffMs;
+    // max delay in ms between re-tries of the items rejected by ES
+    @Value("${elasticsearch.bulk.retry.max.backoff.ms:${elasticsearch.reconnect.attempt.wait.ms:10000}}")
+    private long bulkRetryMaxBackoffMs;
+    // total time in ms rejected items are re-tried for by one flush, before the batch is failed with a recoverable error
+    @Value("${elasticsearch.bulk.retry.time.budget.ms:60000}")
+    private long bulkRetryTimeBudgetMs;
+    // max number of bulk requests of this service that can be in flight at the same time in the pipelined mode
+    @Value("${elasticsearch.bulk.max.in.flight:1}")
+    private int maxInFlightBulks;
+    // max time in ms postToElasticSearchAsync() waits for one of the in-flight bulk requests to complete
+    @Value("${elasticsearch.bulk.max.in.flight.wait.ms:10000}")
+    private long maxInFlightWaitMs;
+    // max number of actions in one bulk request; 0 - no limit
+    @Value("${elasticsearch.bulk.flush.max.actions:0}")
+    private int maxBulkActions;
+    // max estimated size of one bulk request in bytes; 0 - no limit
+    @Value("${elasticsearch.bulk.flush.max.bytes:0}")
+    private long maxBulkSizeInBytes;
+    // max time in ms events can be accumulated across polls before they are posted to ES; 
+    // 0 - events are posted after each poll
+    @Value("${elasticsearch.bulk.flush.linger.ms:0}")
+    private long bulkLingerMs;
+    // if TRUE - only the last version of each document (by index name and id) is kept in the current bulk request
+    @Value("${elasticsearch.bulk.coalescing.enabled:false}")
+    private boolean coalescingEnabled;
+    // if TRUE - offsets of the source records are used as external versions of the documents with ids
+    @Value("${elasticsearch.document.version.external.enabled:false}")
+    private boolean externalVersioningEnabled;
     
     @Autowired
-    private ElasticSearchClientService elasticSearchClientService;
+    private IElasticSearchClientService elasticSearchClientService;
+    // optional sink for events that failed to be indexed with a not recoverable error
+    @Autowired(required = false)
+    private IDeadLetterSink deadLetterSink;
+    // optional controller of the bulk size and of the number of bulks in flight - if not set,
+    // the static elasticsearch.bulk.flush.max.actions and elasticsearch.bulk.max.in.flight limits are used
+    @Autowired(required = false)
+    private AdaptiveBulkController adaptiveBulkController;
 
     private void initBulkRequestBuilder(){
     	if (bulkRequestBuilder == null){
     		bulkRequestBuilder = elasticSearchClientService.prepareBulk();
+    		// the coalescing window is the current bulk request
+    		documentPositions.clear();
+    	}
+    	if (firstNotFlushedEventTimeMs == 0L) {
+    		firstNotFlushedEventTimeMs = System.currentTimeMillis();
     	}
     }
     
@@ -56,94 +137,770 @@ public class ElasticSearchBatchService {
      * @throws ExecutionException
      */
     public void addEventToBulkRequest(String inputMessage, String indexName, String indexType, String eventUUID, String routingValue) throws ExecutionException {
+    	addEventToBulkRequest(inputMessage, indexName, indexType, eventUUID, routingValue, null);
+    }
+
+    /**
+     * 
+     * @param inputMessage - message body 	
+     * @param indexName - ES index name to index this event into 
+     * @param indexType - index type of the ES 
+     * @param eventUUID - uuid of the event - if needed for routing or as a UUID to use for ES documents; can be NULL
+     * @param routingValue - value to use for ES index routing - if needed; can be null if routing is not needed 
+     * @param sourceRecord - Kafka record this event was created from; it is kept with the index request, so that 
+     * the record can be sent to the dead letter sink if indexing of the event fails; can be NULL
+     * 
+     * this method is thread-safe - events can be added from several processing threads 
+     * (kafka.consumer.processing.parallelism > 1); events added by one thread keep their order in the bulk requests
+     * @throws ExecutionException
+     */
+    public synchronized void addEventToBulkRequest(String inputMessage, String indexName, String indexType, String eventUUID, String routingValue,
+    		ConsumerRecord<String, String> sourceRecord) throws ExecutionException {
     	initBulkRequestBuilder();
         IndexRequestBuilder indexRequestBuilder = elasticSearchClientService.prepareIndex(indexName, indexType, eventUUID);
         indexRequestBuilder.setSource(inputMessage, XContentType.JSON);
+        addIndexRequest(indexRequestBuilder, indexName, routingValue, sourceRecord);
+    }
+
+    /**
+     * Raw bytes version of the addEventToBulkRequest(): the UTF-8 JSON bytes of the event become the source 
+     * of the index request as is - without copying them and without decoding them into a String
+     * 
+     * @param inputMessage - UTF-8 JSON bytes of the message; must not be modified after this call
+     * @param indexName - ES index name to index this event into 
+     * @param indexType - index type of the ES 
+     * @param eventUUID - uuid of the event - if needed for routing or as a UUID to use for ES documents; can be NULL
+     * @param routingValue - value to use for ES index routing - if needed; can be null if routing is not needed 
+     * @param sourceRecord - Kafka record this event was created from - see the String version; can be NULL
+     * @throws ExecutionException
+     */
+    public void addEventToBulkRequest(byte[] inputMessage, String indexName, String indexType, String eventUUID, String routingValue,
+    		ConsumerRecord<String, byte[]> sourceRecord) throws ExecutionException {
+    	addEventToBulkRequest(new BytesArray(inputMessage), indexName, indexType, eventUUID, routingValue, sourceRecord);
+    }
+
+    /**
+     * BytesReference version of the addEventToBulkRequest(): the JSON bytes become the source of the index request as is - 
+     * for example, a document rewritten by the DocumentProjection
+     * 
+     * @param source - JSON bytes of the document
+     * @param indexName - ES index name to index this event into 
+     * @param indexType - index type of the ES 
+     * @param eventUUID - uuid of the event - if needed for routing or as a UUID to use for ES documents; can be NULL
+     * @param routingValue - value to use for ES index routing - if needed; can be null if routing is not needed 
+     * @param sourceRecord - Kafka record this event was created from - see the String version; can be NULL
+     * @throws ExecutionException
+     */
+    public synchronized void addEventToBulkRequest(BytesReference source, String indexName, String indexType, String eventUUID, String routingValue,
+    		ConsumerRecord<String, ?> sourceRecord) throws ExecutionException {
+    	initBulkRequestBuilder();
+        IndexRequestBuilder indexRequestBuilder = elasticSearchClientService.prepareIndex(indexName, indexType, eventUUID);
+        indexRequestBuilder.setSource(source, XContentType.JSON);
+        addIndexRequest(indexRequestBuilder, indexName, routingValue, sourceRecord);
+    }
+
+    /**
+     * XContentBuilder version of the addEventToBulkRequest(): the document was already written into the builder -
+     * for example, by an IRecordValueConverter from an Avro or Protobuf event value
+     *
+     * @param source - builder with the document; it is closed by this call
+     * @param indexName - ES index name to index this event into
+     * @param indexType - index type of the ES
+     * @param eventUUID - uuid of the event - if needed for routing or as a UUID to use for ES documents; can be NULL
+     * @param routingValue - value to use for ES index routing - if needed; can be null if routing is not needed
+     * @param sourceRecord - Kafka record this event was created from - see the String version; can be NULL
+     * @throws ExecutionException
+     */
+    public synchronized void addEventToBulkRequest(XContentBuilder source, String indexName, String indexType, String eventUUID, String routingValue,
+    		ConsumerRecord<String, byte[]> sourceRecord) throws ExecutionException {
+    	initBulkRequestBuilder();
+        IndexRequestBuilder indexRequestBuilder = elasticSearchClientService.prepareIndex(indexName, indexType, eventUUID);
+        indexRequestBuilder.setSource(source);
+        addIndexRequest(indexRequestBuilder, indexName, routingValue, sourceRecord);
+    }
+
+    /**
+     * Delete the document with the given id - for example, when a tombstone (null valued) event 
+     * of a compacted topic is consumed
+     * 
+     * @param indexName - ES index name to delete the document from 
+     * @param indexType - index type of the ES 
+     * @param eventUUID - id of the document to delete
+     * @param routingValue - value to use for ES index routing - if needed; can be null if routing is not needed 
+     * @param sourceRecord - Kafka record this action was created from - see the String version of addEventToBulkRequest(); can be NULL
+     */
+    public void addDeleteToBulkRequest(String indexName, String indexType, String eventUUID, String routingValue,
+    		ConsumerRecord<String, ?> sourceRecord) {
+    	DeleteRequest deleteRequest = new DeleteRequest(indexName, indexType, eventUUID);
+        if (routingValue != null && routingValue.trim().length()>0) {
+        	deleteRequest.routing(routingValue);
+        }
+    	addActionToBulkRequest(deleteRequest, sourceRecord);
+    }
+
+    /**
+     * Add any bulk action - index, create, update or delete - to the bulk request, as is; 
+     * the same bulk size limits, coalescing and failure handling apply as for the events added via addEventToBulkRequest()
+     * 
+     * @param request - IndexRequest, UpdateRequest or DeleteRequest, with the index, type, id and routing already set 
+     * @param sourceRecord - Kafka record this action was created from - see the String version of addEventToBulkRequest(); can be NULL
+     */
+    public synchronized void addActionToBulkRequest(DocWriteRequest<?> request, ConsumerRecord<String, ?> sourceRecord) {
+    	initBulkRequestBuilder();
+    	addAction(request, request.index(), sourceRecord, null);
+    }
+
+    private void addIndexRequest(IndexRequestBuilder indexRequestBuilder, String indexName, String routingValue,
+    		ConsumerRecord<String, ?> sourceRecord) {
         if (routingValue != null && routingValue.trim().length()>0) {
             indexRequestBuilder.setRouting(routingValue);
         }
-        bulkRequestBuilder.add(indexRequestBuilder);
+        addAction(indexRequestBuilder.request(), indexName, sourceRecord, indexRequestBuilder);
+    }
+
+    /**
+     * @param indexRequestBuilder - builder of the index request, if the request was created by one; can be NULL
+     */
+    private void addAction(DocWriteRequest<?> request, String indexName, ConsumerRecord<String, ?> sourceRecord,
+    		IndexRequestBuilder indexRequestBuilder) {
+    	if (externalVersioningEnabled) {
+    		setExternalVersion(request, sourceRecord);
+    	}
+        if (replacePreviousVersion(request, indexName, sourceRecord)) {
+        	return;
+        }
+        // do not let the current bulk request grow over the max size - start a new one instead
+        if (maxBulkSizeInBytes > 0 && bulkRequestBuilder.numberOfActions() > 0 &&
+        	bulkRequestBuilder.request().estimatedSizeInBytes() + getSourceSizeInBytes(request) > maxBulkSizeInBytes) {
+        	sealCurrentBulkRequest();
+        	initBulkRequestBuilder();
+        }
+        if (indexRequestBuilder != null && sourceRecord == null) {
+        	bulkRequestBuilder.add(indexRequestBuilder);
+        } else {
+        	bulkRequestBuilder.request().add(request, sourceRecord);
+        }
+        if (coalescingEnabled && request.id() != null) {
+        	documentPositions.put(indexName, request.id(), bulkRequestBuilder.numberOfActions() - 1);
+        }
         indexNames.add(indexName);
+        int currentMaxBulkActions = getMaxBulkActions();
+        if (currentMaxBulkActions > 0 && bulkRequestBuilder.numberOfActions() >= currentMaxBulkActions) {
+        	sealCurrentBulkRequest();
+        }
+    }
+
+    /**
+     * external versioning: the offset of the source record becomes the version of the document - so ES ignores 
+     * re-processed (replayed or re-tried) events if a later event of the same document is indexed already; 
+     * this requires all events of a document to be in the same partition - for example, with the document id
+     * derived from the record key or from the topic, partition and offset;
+     * update and create actions do not support external versions (ES rejects the whole bulk request) and are left as is - 
+     * a create action never overwrites an existing document anyway
+     */
+    private static void setExternalVersion(DocWriteRequest<?> request, ConsumerRecord<String, ?> sourceRecord) {
+    	if (sourceRecord == null || request.id() == null || request instanceof UpdateRequest || 
+    			request.opType() == DocWriteRequest.OpType.CREATE) {
+    		return;
+    	}
+    	request.version(sourceRecord.offset());
+    	request.versionType(VersionType.EXTERNAL);
+    }
+
+    private static long getSourceSizeInBytes(DocWriteRequest<?> request) {
+    	if (request instanceof IndexRequest) {
+    		return ((IndexRequest) request).source().length();
+    	}
+    	if (request instanceof UpdateRequest) {
+    		UpdateRequest updateRequest = (UpdateRequest) request;
+    		long sourceSize = updateRequest.doc() != null ? updateRequest.doc().source().length() : 0L;
+    		return sourceSize + (updateRequest.upsertRequest() != null ? updateRequest.upsertRequest().source().length() : 0L);
+    	}
+    	return 0L;
+    }
+
+    /**
+     * coalescing mode: if the current bulk request already has an action for the same document (same index and id) - 
+     * replace it with the new version of the document, instead of adding one more action;
+     * offsets of the replaced events are committed together with the offsets of the whole poll, as usual
+     * 
+     * note: the estimated size of the bulk request keeps the size of the replaced version
+     * 
+     * @return TRUE if the previous version was replaced; FALSE if the request has to be added as a new action
+     */
+    private boolean replacePreviousVersion(DocWriteRequest<?> request, String indexName, ConsumerRecord<String, ?> sourceRecord) {
+    	if (!coalescingEnabled || request.id() == null) {
+    		return false;
+    	}
+    	int position = documentPositions.get(indexName, request.id());
+    	if (position < 0) {
+    		return false;
+    	}
+    	BulkRequest bulkRequest = bulkRequestBuilder.request();
+    	List<Object> payloads = bulkRequest.payloads();
+    	if (payloads == null && sourceRecord != null) {
+    		// source records can only be added to this bulk request together with a new action
+    		return false;
+    	}
+    	bulkRequest.requests().set(position, request);
+    	if (payloads != null) {
+    		payloads.set(position, sourceRecord);
+    	}
+    	numCoalescedEvents++;
+    	return true;
+    }
+
+    private void sealCurrentBulkRequest() {
+    	fullBulkRequests.add(bulkRequestBuilder);
+    	bulkRequestBuilder = null;
+    }
+
+    /**
+     * Detach all bulk requests collected so far - full ones first, then the current one
+     * 
+     * @return bulk requests in the order they should be posted to ES
+     */
+    private synchronized List<BulkRequestBuilder> detachBulkRequests() {
+    	List<BulkRequestBuilder> detachedBulkRequests = new ArrayList<>(fullBulkRequests);
+    	if (bulkRequestBuilder != null) {
+    		detachedBulkRequests.add(bulkRequestBuilder);
+    	}
+    	fullBulkRequests.clear();
+    	bulkRequestBuilder = null;
+    	firstNotFlushedEventTimeMs = 0L;
+    	return detachedBulkRequests;
+    }
+
+    /**
+     * Check whether events collected so far should be posted to ES now:
+     * if elasticsearch.bulk.flush.linger.ms is not set - always TRUE (one poll == one or more bulk requests);
+     * otherwise - TRUE only if there is at least one full bulk request (as per the elasticsearch.bulk.flush.max.actions
+     * and elasticsearch.bulk.flush.max.bytes limits) or the oldest not posted event waited longer than the linger time;
+     * it is also TRUE if there is nothing to post - so that offsets of polls without any events to index can be committed
+     * 
+     * @return
+     */
+    public synchronized boolean isFlushNeeded() {
+    	if (bulkLingerMs <= 0 || !fullBulkRequests.isEmpty()) {
+    		return true;
+    	}
+    	if (bulkRequestBuilder == null || bulkRequestBuilder.numberOfActions() <= 0) {
+    		return true;
+    	}
+    	return System.currentTimeMillis() - firstNotFlushedEventTimeMs >= bulkLingerMs;
+    }
+
+    /**
+     * Post all events collected so far to ES - if the flush is needed as per the isFlushNeeded(); 
+     * bulk requests that failed before with a recoverable error are re-posted first;
+     * 
+     * If posting fails with a recoverable error - the failed bulk request and all not yet posted ones
+     * are kept and will be re-posted by the next call of this method, so events do not have to be re-added
+     * 
+     * @return TRUE if all events added so far are indexed into ES (and offsets can be committed);
+     * FALSE if events are still being accumulated
+     * @throws InterruptedException
+     * @throws IndexerESRecoverableException
+     * @throws IndexerESNotRecoverableException
+     */
+    public boolean flushIfNeeded() throws InterruptedException, IndexerESRecoverableException, IndexerESNotRecoverableException {
+    	if (failedBulkRequests.isEmpty() && !isFlushNeeded()) {
+    		logger.debug("Flush is not needed yet - accumulating events; # of full bulk requests: {}", fullBulkRequests.size());
+    		return false;
+    	}
+    	flush();
+    	return true;
     }
 
+    /**
+     * Post all events collected so far to ES right away - regardless of the elasticsearch.bulk.flush.linger.ms;
+     * failed bulk requests are handled the same way as by the flushIfNeeded(): the failed bulk request and all
+     * not yet posted ones are kept and re-posted by the next call of this method or of the flushIfNeeded()
+     * 
+     * @throws InterruptedException
+     * @throws IndexerESRecoverableException
+     * @throws IndexerESNotRecoverableException
+     */
 	public void postToElasticSearch() throws InterruptedException, IndexerESRecoverableException, IndexerESNotRecoverableException {
-		try {
-			if (bulkRequestBuilder != null) {
-				logger.info("Starting bulk posts to ES");
+		flush();
+	}
+
+    private void flush() throws InterruptedException, IndexerESRecoverableException, IndexerESNotRecoverableException {
+    	List<BulkRequestBuilder> bulkRequestsToPost = new ArrayList<>();
+    	BulkRequestBuilder failedBulkRequest;
+    	while ((failedBulkRequest = failedBulkRequests.poll()) != null) {
+    		bulkRequestsToPost.add(failedBulkRequest);
+    	}
+    	bulkRequestsToPost.addAll(detachBulkRequests());
+    	logger.info("Starting bulk posts to ES; # of bulk requests: {}", bulkRequestsToPost.size());
+    	for (int i = 0; i < bulkRequestsToPost.size(); i++) {
+    		BulkRequestBuilder retryBulkRequestBuilder;
+    		try {
+    			retryBulkRequestBuilder = postBulkToEsAndGetRetryBulk(bulkRequestsToPost.get(i));
+    		} catch (IndexerESRecoverableException e) {
+    			failedBulkRequests.addAll(bulkRequestsToPost.subList(i, bulkRequestsToPost.size()));
+    			throw e;
+    		}
+    		if (retryBulkRequestBuilder != null) {
+    			// only items that failed are re-tried - successfully indexed items are never re-sent
+    			retryBulkRequestBuilder = retryWithBackoff(retryBulkRequestBuilder);
+    		}
+    		if (retryBulkRequestBuilder != null) {
+    			failedBulkRequests.add(retryBulkRequestBuilder);
+    			failedBulkRequests.addAll(bulkRequestsToPost.subList(i + 1, bulkRequestsToPost.size()));
+    			throw new IndexerESRecoverableException("Failed to index " + retryBulkRequestBuilder.numberOfActions() + 
+    				" rejected items within the re-try time budget - will re-try failed items of the current batch");
+    		}
+    	}
+    	logger.info("Bulk post to ES finished Ok for indexes: {}; # of bulk requests: {}", indexNames, bulkRequestsToPost.size());
+    	indexNames.clear();
+    }
+
+	/**
+	 * Asynchronous version of the postToElasticSearch(): detaches bulk requests collected so far and
+	 * posts them to ES without waiting for the responses, so that new events can be added to the next bulk request
+	 * while these are being indexed;
+	 * at most elasticsearch.bulk.max.in.flight bulk requests can be in flight at the same time - 
+	 * if the limit is reached, this method waits until one of the in-flight bulk requests completes, but not longer than
+	 * elasticsearch.bulk.max.in.flight.wait.ms: bulk requests that could not be posted within that time are treated 
+	 * as failed with a recoverable error - so that the caller is never blocked indefinitely;
+	 * bulk requests that fail with a recoverable error are kept and will be re-posted by the next flushIfNeeded() call
+	 * 
+	 * @return completion handle of the detached bulk requests: it completes when all of them are acknowledged by ES, 
+	 * or completes exceptionally with an IndexerESRecoverableException if any of them has to be re-tried
+	 */
+	public CompletableFuture<Void> postToElasticSearchAsync() {
+		List<BulkRequestBuilder> detachedBulkRequests = detachBulkRequests();
+		Set<String> detachedIndexNames = new HashSet<>(indexNames);
+		indexNames.clear();
+		List<CompletableFuture<Void>> bulkFutures = new ArrayList<>(detachedBulkRequests.size());
+		long inFlightWaitDeadlineMs = System.currentTimeMillis() + maxInFlightWaitMs;
+		for (int i = 0; i < detachedBulkRequests.size(); i++) {
+			BulkRequestBuilder detachedBulkRequestBuilder = detachedBulkRequests.get(i);
+			if (detachedBulkRequestBuilder.numberOfActions() <= 0) {
+				continue;
+			}
+			CompletableFuture<Void> notPostedFuture = new CompletableFuture<>();
+			try {
+				if (!acquireInFlightBulk(inFlightWaitDeadlineMs)) {
+					notPostedFuture.completeExceptionally(new IndexerESRecoverableException("No bulk request in flight completed within " + 
+						maxInFlightWaitMs + "ms - will re-try posting " + (detachedBulkRequests.size() - i) + " bulk requests of the current batch"));
+				}
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				notPostedFuture.completeExceptionally(e);
+			}
+			if (notPostedFuture.isDone()) {
+				// this and all next bulk requests are kept - in order - and re-posted by the next flushIfNeeded() call
+				failedBulkRequests.addAll(detachedBulkRequests.subList(i, detachedBulkRequests.size()));
+				bulkFutures.add(notPostedFuture);
+				break;
+			}
+			bulkFutures.add(postBulkToEsAsync(detachedBulkRequestBuilder, detachedIndexNames));
+		}
+		return CompletableFuture.allOf(bulkFutures.toArray(new CompletableFuture<?>[0]));
+	}
+
+	/**
+	 * post one bulk request - an in-flight slot is acquired for it already
+	 */
+	private CompletableFuture<Void> postBulkToEsAsync(BulkRequestBuilder detachedBulkRequestBuilder, Set<String> detachedIndexNames) {
+		CompletableFuture<Void> bulkFuture = new CompletableFuture<>();
+		logger.info("Starting async bulk post to ES; # of bulks in flight: {}", getNumberOfInFlightBulks());
+		long bulkStartMs = System.currentTimeMillis();
+		elasticSearchClientService.bulk(detachedBulkRequestBuilder.request(), new ActionListener<BulkResponse>() {
+			@Override
+			public void onResponse(BulkResponse bulkResponse) {
+				releaseInFlightBulk();
+				try {
+					BulkRequestBuilder retryBulkRequestBuilder = handleBulkResponse(detachedBulkRequestBuilder, bulkResponse,
+						System.currentTimeMillis() - bulkStartMs);
+					if (retryBulkRequestBuilder != null) {
+						// do not sleep on the ES callback thread - the re-try delay is up to the caller
+						failedBulkRequests.add(retryBulkRequestBuilder);
+						bulkFuture.completeExceptionally(new IndexerESRecoverableException(
+							"Failed to index " + retryBulkRequestBuilder.numberOfActions() +
+							" rejected items - will re-try failed items of the current batch"));
+						return;
+					}
+					logger.info("Async bulk post to ES finished Ok for indexes: {}; # of messages: {}",
+						detachedIndexNames, detachedBulkRequestBuilder.numberOfActions());
+					bulkFuture.complete(null);
+				} catch (Exception e) {
+					bulkFuture.completeExceptionally(e);
+				}
+			}
 
-				postBulkToEs(bulkRequestBuilder);
-				logger.info("Bulk post to ES finished Ok for indexes: {}; # of messages: {}", indexNames, bulkRequestBuilder.numberOfActions());
+			@Override
+			public void onFailure(Exception e) {
+				releaseInFlightBulk();
+				reportBulkRejected();
+				// the ES client is re-initialized (if needed) when this batch is re-tried synchronously
+				logger.error("Failed to post messages to ElasticSearch asynchronously: " + e.getMessage(), e);
+				failedBulkRequests.add(detachedBulkRequestBuilder);
+				bulkFuture.completeExceptionally(new IndexerESRecoverableException(
+					"Failed to post messages to ElasticSearch asynchronously - will re-try processing current batch", e));
 			}
-		} finally {
-			bulkRequestBuilder = null;
-			indexNames.clear();
+		});
+		return bulkFuture;
+	}
+
+	public int getNumberOfInFlightBulks() {
+		synchronized (inFlightBulksLock) {
+			return numInFlightBulks;
+		}
+	}
+
+	/**
+	 * @return TRUE if the next postToElasticSearchAsync() call would have to wait for one of the in-flight bulk requests
+	 */
+	public boolean isInFlightBulksLimitReached() {
+		synchronized (inFlightBulksLock) {
+			return numInFlightBulks >= getMaxInFlightBulks();
+		}
+	}
+
+	/**
+	 * wait until the number of bulk requests in flight is below the current limit and take one slot;
+	 * the limit is re-checked on each release - as it can change if the adaptiveBulkController is used
+	 * 
+	 * @param deadlineMs - time to stop waiting at
+	 * @return FALSE if no slot was free until the deadline
+	 */
+	private boolean acquireInFlightBulk(long deadlineMs) throws InterruptedException {
+		synchronized (inFlightBulksLock) {
+			while (numInFlightBulks >= getMaxInFlightBulks()) {
+				long waitMs = deadlineMs - System.currentTimeMillis();
+				if (waitMs <= 0L) {
+					return false;
+				}
+				inFlightBulksLock.wait(waitMs);
+			}
+			numInFlightBulks++;
+			return true;
+		}
+	}
+
+	private void releaseInFlightBulk() {
+		synchronized (inFlightBulksLock) {
+			numInFlightBulks--;
+			inFlightBulksLock.notifyAll();
+		}
+	}
+
+	private int getMaxInFlightBulks() {
+		if (adaptiveBulkController != null) {
+			return adaptiveBulkController.getInFlightBulksLimit();
+		}
+		return Math.max(1, maxInFlightBulks);
+	}
+
+	private int getMaxBulkActions() {
+		if (adaptiveBulkController != null) {
+			return adaptiveBulkController.getBulkActionsLimit();
+		}
+		return maxBulkActions;
+	}
+
+	private void reportBulkRejected() {
+		if (adaptiveBulkController != null) {
+			adaptiveBulkController.onBulkRejected();
 		}
 	}
 
-    protected void postBulkToEs(BulkRequestBuilder bulkRequestBuilder)
+    /**
+     * Re-post items that were rejected by ES with a recoverable error (TOO_MANY_REQUESTS, SERVICE_UNAVAILABLE, 
+     * INTERNAL_SERVER_ERROR) with a capped exponential backoff with jitter - until all of them are indexed or 
+     * elasticsearch.bulk.retry.time.budget.ms is used up
+     * 
+     * @param retryBulkRequestBuilder - bulk request with the rejected items
+     * @return NULL if all items were indexed, or the bulk request with the items that still have to be re-tried
+     * @throws InterruptedException
+     * @throws IndexerESNotRecoverableException
+     */
+    private BulkRequestBuilder retryWithBackoff(BulkRequestBuilder retryBulkRequestBuilder) 
+    		throws InterruptedException, IndexerESNotRecoverableException {
+    	long retryDeadlineMs = System.currentTimeMillis() + bulkRetryTimeBudgetMs;
+    	for (int retryAttempt = 1; retryBulkRequestBuilder != null; retryAttempt++) {
+    		long retryDelayMs = ExponentialBackoff.getDelayMs(bulkRetryInitialBackoffMs, bulkRetryMaxBackoffMs, retryAttempt);
+    		if (System.currentTimeMillis() + retryDelayMs >= retryDeadlineMs) {
+    			logger.error("Re-try time budget of {} ms is used up after {} re-try attempts; {} items are still not indexed", 
+    				bulkRetryTimeBudgetMs, retryAttempt - 1, retryBulkRequestBuilder.numberOfActions());
+    			return retryBulkRequestBuilder;
+    		}
+    		logger.warn("{} items were rejected by ES - re-trying them after {} ms; retryAttempt = {}", 
+    			retryBulkRequestBuilder.numberOfActions(), retryDelayMs, retryAttempt);
+    		Thread.sleep(retryDelayMs);
+    		try {
+    			retryBulkRequestBuilder = postBulkToEsAndGetRetryBulk(retryBulkRequestBuilder);
+    		} catch (IndexerESRecoverableException e) {
+    			logger.error("Failed to re-post rejected items: {}", e.getMessage());
+    			return retryBulkRequestBuilder;
+    		}
+    	}
+    	return null;
+    }
+
+    /**
+     * Post one bulk request to ES and wait for the response
+     * 
+     * @param bulkRequestBuilder
+     * @return bulk request with the items that failed with a recoverable error and have to be re-tried,
+     * or NULL if there are no such items
+     * @throws InterruptedException
+     * @throws IndexerESRecoverableException - if the whole bulk request failed and has to be re-tried
+     * @throws IndexerESNotRecoverableException
+     */
+    private BulkRequestBuilder postBulkToEsAndGetRetryBulk(BulkRequestBuilder bulkRequestBuilder)
             throws InterruptedException, IndexerESRecoverableException, IndexerESNotRecoverableException {
         BulkResponse bulkResponse = null;
-        BulkItemResponse bulkItemResp = null;
         //Nothing/NoMessages to post to ElasticSearch
         if (bulkRequestBuilder.numberOfActions() <= 0) {
             logger.warn("No messages to post to ElasticSearch - returning");
-            return;
+            return null;
         }
+        long bulkStartMs = System.currentTimeMillis();
+        // the client is only re-connected if it is still the one this bulk request failed on
+        long clientGeneration = elasticSearchClientService.getClientGeneration();
         try {
-            bulkResponse = bulkRequestBuilder.execute().actionGet();
+            bulkResponse = elasticSearchClientService.bulk(bulkRequestBuilder.request());
         } catch (NoNodeAvailableException e) {
             // ES cluster is unreachable or down. Re-try up to the configured number of times
             // if fails even after then - throw an exception out to retry indexing the batch
             logger.error("Error posting messages to ElasticSearch: " +
                     "NoNodeAvailableException - ES cluster is unreachable, will try to re-connect after sleeping ... ", e);
-            elasticSearchClientService.reInitElasticSearch();
+            elasticSearchClientService.reInitElasticSearch(clientGeneration);
             //even if re-init of ES succeeded - throw an Exception to re-process the current batch
             throw new IndexerESRecoverableException("Recovering after an NoNodeAvailableException posting messages to Elastic Search " +
                     " - will re-try processing current batch");
         } catch (ElasticsearchException e) {
             logger.error("Failed to post messages to ElasticSearch: " + e.getMessage(), e);
+            reportBulkRejected();
             throw new IndexerESRecoverableException(e);
         } 
+        return handleBulkResponse(bulkRequestBuilder, bulkResponse, System.currentTimeMillis() - bulkStartMs);
+    }
+
+    /**
+     * Check the bulk response for failed items: items that failed with a recoverable error 
+     * (TOO_MANY_REQUESTS, SERVICE_UNAVAILABLE, INTERNAL_SERVER_ERROR) are collected into a new bulk request, so that only they
+     * can be re-tried; other failed items are counted and logged
+     * 
+     * @param bulkRequestBuilder - bulk request the response is for
+     * @param bulkResponse
+     * @param bulkLatencyMs - time it took to get the response
+     * @return bulk request with the items to re-try, or NULL if there are no such items
+     */
+    private BulkRequestBuilder handleBulkResponse(BulkRequestBuilder bulkRequestBuilder, BulkResponse bulkResponse, long bulkLatencyMs) {
+        BulkItemResponse bulkItemResp = null;
+        BulkRequestBuilder retryBulkRequestBuilder = null;
         logger.debug("Time to post messages to ElasticSearch: {} ms", bulkResponse.getIngestTookInMillis());
         if (bulkResponse.hasFailures()) {
             logger.error("Bulk Message Post to ElasticSearch has errors: {}",
                     bulkResponse.buildFailureMessage());
             int failedCount = 0;
+            int retryCount = 0;
             Iterator<BulkItemResponse> bulkRespItr = bulkResponse.iterator();
-            //TODO research if there is a way to get all failed messages without iterating over
-            // ALL messages in this bulk post request
+            // with the TransportClient the response has ALL items; with the ElasticSearchHttpClientService - failed items only
             while (bulkRespItr.hasNext()) {
                 bulkItemResp = bulkRespItr.next();
                 if (bulkItemResp.isFailed()) {
+                    if (externalVersioningEnabled && isStaleVersion(bulkRequestBuilder, bulkItemResp)) {
+                    	// a later version of the document is indexed already - nothing to do
+                    	numStaleVersionEvents.incrementAndGet();
+                    	continue;
+                    }
                     failedCount++;
                     String errorMessage = bulkItemResp.getFailure().getMessage();
                     String restResponse = bulkItemResp.getFailure().getStatus().name();
                     logger.error("Failed Message #{}, REST response:{}; errorMessage:{}",
                             failedCount, restResponse, errorMessage);
                     
-                    if (SERVICE_UNAVAILABLE.equals(restResponse) || INTERNAL_SERVER_ERROR.equals(restResponse)){
-                    	logger.error("ES cluster unavailable, thread is sleeping for {} ms, after this current batch will be reprocessed",
-                    			sleepBetweenESReconnectAttempts);
-                    	Thread.sleep(sleepBetweenESReconnectAttempts);
-                    	throw new IndexerESRecoverableException("Recovering after an SERVICE_UNAVAILABLE response from Elastic Search " +
-                                " - will re-try processing current batch");
+                    if (SERVICE_UNAVAILABLE.equals(restResponse) || INTERNAL_SERVER_ERROR.equals(restResponse) ||
+                    	TOO_MANY_REQUESTS.equals(restResponse)){
+                    	// item ID is the position of the item in the bulk request - use it to find the failed request
+                    	if (retryBulkRequestBuilder == null) {
+                    		retryBulkRequestBuilder = elasticSearchClientService.prepareBulk();
+                    	}
+                    	DocWriteRequest<?> failedRequest = bulkRequestBuilder.request().requests().get(bulkItemResp.getItemId());
+                    	retryBulkRequestBuilder.request().add(failedRequest, getSourceRecord(bulkRequestBuilder, bulkItemResp.getItemId()));
+                    	retryCount++;
+                    	continue;
+                    }
+                    ConsumerRecord<String, ?> failedRecord = getSourceRecord(bulkRequestBuilder, bulkItemResp.getItemId());
+                    if (failedRecord != null) {
+                    	handleFailedEvent(failedRecord, restResponse + ": " + errorMessage);
                     }
-                    
-                    
-                    // TODO: there does not seem to be a way to get the actual failed event
-                    // until it is possible - do not log anything into the failed events log file
-                    //FailedEventsLogger.logFailedToPostToESEvent(restResponse, errorMessage);
                 }
             }
-            logger.error("FAILURES: # of failed to post messages to ElasticSearch: {} ", failedCount);
+            logger.error("FAILURES: # of failed to post messages to ElasticSearch: {}; # of them to be re-tried: {}", 
+            		failedCount, retryCount);
         } 
+        if (adaptiveBulkController != null) {
+        	if (retryBulkRequestBuilder != null) {
+        		adaptiveBulkController.onBulkRejected();
+        	} else {
+        		adaptiveBulkController.onBulkCompleted(bulkRequestBuilder.numberOfActions(), bulkLatencyMs);
+        	}
+        }
+        return retryBulkRequestBuilder;
     }
 
-    public ElasticSearchClientService getElasticSearchClientService() {
+    private static boolean isStaleVersion(BulkRequestBuilder bulkRequestBuilder, BulkItemResponse bulkItemResp) {
+    	if (bulkItemResp.getFailure().getStatus() != RestStatus.CONFLICT) {
+    		return false;
+    	}
+    	List<DocWriteRequest<?>> requests = bulkRequestBuilder.request().requests();
+    	int itemId = bulkItemResp.getItemId();
+    	return itemId < requests.size() && requests.get(itemId).versionType() == VersionType.EXTERNAL;
+    }
+
+    /**
+     * Partitions of the Kafka records whose events are in the failed bulk requests - that will be re-posted 
+     * by the next flush; events of all other partitions added so far are indexed into ES already
+     * 
+     * @return failed partitions, or NULL if they are not known - some of the failed events were added 
+     * without their source Kafka records
+     */
+    public Set<TopicPartition> getPartitionsOfFailedEvents() {
+    	Set<TopicPartition> failedPartitions = new HashSet<>();
+    	for (BulkRequestBuilder failedBulkRequest : failedBulkRequests) {
+    		for (int itemId = 0; itemId < failedBulkRequest.numberOfActions(); itemId++) {
+    			ConsumerRecord<String, ?> failedRecord = getSourceRecord(failedBulkRequest, itemId);
+    			if (failedRecord == null) {
+    				return null;
+    			}
+    			failedPartitions.add(new TopicPartition(failedRecord.topic(), failedRecord.partition()));
+    		}
+    	}
+    	return failedPartitions;
+    }
+
+    /**
+     * Give up on the failed bulk requests - so that they are not re-posted by the next flush: 
+     * their events are sent to the dead letter sink (or logged via the FailedEventsLogger if it is not set);
+     * used when the consumer commits the offsets of a poll that could not be indexed within its re-try limit
+     * 
+     * @param errorMessage - reason the events are given up on
+     * @return number of the events given up on
+     */
+    public int discardFailedBulkRequests(String errorMessage) {
+    	int numDiscardedEvents = 0;
+    	BulkRequestBuilder failedBulkRequest;
+    	while ((failedBulkRequest = failedBulkRequests.poll()) != null) {
+    		for (int itemId = 0; itemId < failedBulkRequest.numberOfActions(); itemId++) {
+    			ConsumerRecord<String, ?> failedRecord = getSourceRecord(failedBulkRequest, itemId);
+    			if (failedRecord != null) {
+    				handleFailedEvent(failedRecord, errorMessage);
+    			} else {
+    				// added without the source record - only the action itself is known
+    				FailedEventsLogger.logFailedEvent(errorMessage, failedBulkRequest.request().requests().get(itemId).toString());
+    			}
+    			numDiscardedEvents++;
+    		}
+    	}
+    	if (numDiscardedEvents > 0) {
+    		logger.warn("Discarded {} events of the failed bulk requests: {}", numDiscardedEvents, errorMessage);
+    	}
+    	return numDiscardedEvents;
+    }
+
+    /**
+     * Find the Kafka record the bulk request item was created from - it is stored as the payload of the item
+     * 
+     * @param bulkRequestBuilder
+     * @param itemId - position of the item in the bulk request
+     * @return source Kafka record - with a String or, in the raw bytes mode, byte[] value - 
+     * or NULL if it was not provided when the event was added
+     */
+    @SuppressWarnings("unchecked")
+    private ConsumerRecord<String, ?> getSourceRecord(BulkRequestBuilder bulkRequestBuilder, int itemId) {
+    	List<Object> payloads = bulkRequestBuilder.request().payloads();
+    	if (payloads == null || itemId >= payloads.size() || !(payloads.get(itemId) instanceof ConsumerRecord)) {
+    		return null;
+    	}
+    	return (ConsumerRecord<String, ?>) payloads.get(itemId);
+    }
+
+    private void handleFailedEvent(ConsumerRecord<String, ?> failedRecord, String errorMessage) {
+    	if (deadLetterSink == null) {
+    		FailedEventsLogger.logFailedEvent(errorMessage, CommonKafkaUtils.toStringValueRecord(failedRecord).value(), failedRecord.offset());
+    		return;
+    	}
+    	try {
+    		deadLetterSink.sendFailedEvent(failedRecord, errorMessage);
+    	} catch (Exception e) {
+    		logger.error("Failed to send event to the dead letter sink: topic={}, partition={}, offset={}: {}",
+    			failedRecord.topic(), failedRecord.partition(), failedRecord.offset(), e.getMessage());
+    		FailedEventsLogger.logFailedEvent(errorMessage, CommonKafkaUtils.toStringValueRecord(failedRecord).value(), failedRecord.offset());
+    	}
+    }
+
+	public void setBulkRetryInitialBackoffMs(long bulkRetryInitialBackoffMs) {
+		this.bulkRetryInitialBackoffMs = bulkRetryInitialBackoffMs;
+	}
+
+	public void setBulkRetryMaxBackoffMs(long bulkRetryMaxBackoffMs) {
+		this.bulkRetryMaxBackoffMs = bulkRetryMaxBackoffMs;
+	}
+
+	public void setBulkRetryTimeBudgetMs(long bulkRetryTimeBudgetMs) {
+		this.bulkRetryTimeBudgetMs = bulkRetryTimeBudgetMs;
+	}
+
+	public void setMaxInFlightBulks(int maxInFlightBulks) {
+		this.maxInFlightBulks = maxInFlightBulks;
+	}
+
+	public void setMaxInFlightWaitMs(long maxInFlightWaitMs) {
+		this.maxInFlightWaitMs = maxInFlightWaitMs;
+	}
+
+	public void setMaxBulkActions(int maxBulkActions) {
+		this.maxBulkActions = maxBulkActions;
+	}
+
+	public void setMaxBulkSizeInBytes(long maxBulkSizeInBytes) {
+		this.maxBulkSizeInBytes = maxBulkSizeInBytes;
+	}
+
+	public synchronized long getNumberOfCoalescedEvents() {
+		return numCoalescedEvents;
+	}
+
+	public long getNumberOfStaleVersionEvents() {
+		return numStaleVersionEvents.get();
+	}
+
+	public boolean isExternalVersioningEnabled() {
+		return externalVersioningEnabled;
+	}
+
+	public void setExternalVersioningEnabled(boolean externalVersioningEnabled) {
+		this.externalVersioningEnabled = externalVersioningEnabled;
+	}
+
+	public void setCoalescingEnabled(boolean coalescingEnabled) {
+		this.coalescingEnabled = coalescingEnabled;
+	}
+
+	public void setBulkLingerMs(long bulkLingerMs) {
+		this.bulkLingerMs = bulkLingerMs;
+	}
+
+    public IElasticSearchClientService getElasticSearchClientService() {
         return elasticSearchClientService;
     }
 
-    public void setElasticSearchClientService(ElasticSearchClientService elasticSearchClientService) {
+    public void setElasticSearchClientService(IElasticSearchClientService elasticSearchClientService) {
         this.elasticSearchClientService = elasticSearchClientService;
     }
+
+	public void setDeadLetterSink(IDeadLetterSink deadLetterSink) {
+		this.deadLetterSink = deadLetterSink;
+	}
+
+	public void setAdaptiveBulkController(AdaptiveBulkController adaptiveBulkController) {
+		this.adaptiveBulkController = adaptiveBulkController;
+	}
 }
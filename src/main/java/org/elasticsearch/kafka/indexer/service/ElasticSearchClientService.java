@@ -2,17 +2,24 @@ package org.elasticsearch.kafka.indexer.service;
 
 import java.net.InetSocketAddress;
 import java.util.List;
+import java.util.Properties;
+import java.util.concurrent.atomic.AtomicLong;
 
 import javax.annotation.PostConstruct;
 import javax.annotation.PreDestroy;
+import javax.annotation.Resource;
 
+import org.elasticsearch.action.ActionListener;
 import org.elasticsearch.action.admin.indices.alias.Alias;
+import org.elasticsearch.action.bulk.BulkRequest;
 import org.elasticsearch.action.bulk.BulkRequestBuilder;
+import org.elasticsearch.action.bulk.BulkResponse;
 import org.elasticsearch.action.index.IndexRequestBuilder;
 import org.elasticsearch.client.transport.TransportClient;
 import org.elasticsearch.common.settings.Settings;
 import org.elasticsearch.common.transport.TransportAddress;
 import org.elasticsearch.index.query.QueryBuilders;
+import org.elasticsearch.kafka.indexer.CommonKafkaUtils;
 import org.elasticsearch.kafka.indexer.exception.IndexerESNotRecoverableException;
 import org.elasticsearch.transport.client.PreBuiltTransportClient;
 import org.slf4j.Logger;
@@ -22,10 +29,12 @@ import org.springframework.stereotype.Service;
 
 /**
  * Created by dhyan on 8/31/15.
+ * 
+ * Singleton ES client service: one thread-safe TransportClient (with its connections and thread pools) 
+ * is shared by all ConsumerWorkers and their ElasticSearchBatchServices
  */
-// TODO convert to a singleton Spring ES service when ready
 @Service
-public class ElasticSearchClientService {
+public class ElasticSearchClientService implements IElasticSearchClientService {
 
     private static final Logger logger = LoggerFactory.getLogger(ElasticSearchClientService.class);
     public static final String CLUSTER_NAME = "cluster.name";
@@ -40,20 +49,29 @@ public class ElasticSearchClientService {
     // number of times to try to index data into ES if ES cluster is not reachable
     @Value("${elasticsearch.indexing.retry.attempts:2}")
     private   int numberOfEsIndexingRetryAttempts;
-
-    // TODO add when we can inject partition number into each bean
-	//private int currentPartition;
-	private TransportClient esTransportClient;
+    // prefix of the application properties that are passed to the TransportClient as is (with the prefix removed) -
+    // for example, to tune the size of its connection pool: transport.connections_per_node.bulk
+    @Value("${elasticsearch.client.setting.prefix:elasticsearch.client.setting.}")
+    private String esClientSettingPrefix;
+    @Resource(name = "applicationProperties")
+    private Properties applicationProperties;
+
+	private volatile TransportClient esTransportClient;
+	// incremented each time the client is re-created - so that the workers that wait for the re-connect
+	// started by another worker do not re-connect again
+	private final AtomicLong esClientGeneration = new AtomicLong(0L);
 
     @PostConstruct
     public void init() throws Exception {
     	logger.info("Initializing ElasticSearchClient ...");
         // connect to elasticsearch cluster
-        Settings settings = Settings.builder().put(CLUSTER_NAME, esClusterName).build();
+        Settings.Builder settingsBuilder = Settings.builder();
+        CommonKafkaUtils.extractKafkaProperties(applicationProperties, esClientSettingPrefix)
+        	.forEach((settingName, settingValue) -> settingsBuilder.put(settingName.toString(), settingValue.toString()));
+        Settings settings = settingsBuilder.put(CLUSTER_NAME, esClusterName).build();
+        TransportClient newEsTransportClient = null;
         try {
-        	
-        	//new PreBuiltTransportClient(
-            esTransportClient  = new PreBuiltTransportClient(settings);
+        	newEsTransportClient = new PreBuiltTransportClient(settings);
             for (String eachHostPort : esHostPortList) {
                 logger.info("adding [{}] to TransportClient ... ", eachHostPort);
                 String[] hostPortTokens = eachHostPort.split(":");
@@ -66,25 +84,56 @@ public class ElasticSearchClientService {
                 } catch (Throwable e){
                 	logger.error("ERROR parsing port from the ES config [{}]- using default port 9300", eachHostPort);
                 }
-                esTransportClient.addTransportAddress(new TransportAddress(
+                newEsTransportClient.addTransportAddress(new TransportAddress(
                 		new InetSocketAddress(hostPortTokens[0].trim(), port)));
             }
-            logger.info("ElasticSearch Client created and intialized OK");
+            logger.info("ElasticSearch Client created and intialized OK with settings: {}", settings);
         } catch (Exception e) {
             logger.error("Exception trying to connect and create ElasticSearch Client: "+ e.getMessage());
+            if (newEsTransportClient != null)
+            	newEsTransportClient.close();
             throw e;
         }
+        TransportClient oldEsTransportClient = esTransportClient;
+        esTransportClient = newEsTransportClient;
+        esClientGeneration.incrementAndGet();
+        // bulk requests still in flight on the old client fail and are re-tried by their workers
+        if (oldEsTransportClient != null)
+        	oldEsTransportClient.close();
     }
 
 	@PreDestroy
     public void cleanup() throws Exception {
-		//logger.info("About to stop ES client for partition={} ...", currentPartition);
 		logger.info("About to stop ES client ...");
 		if (esTransportClient != null)
 			esTransportClient.close();
     }
     
-	public void reInitElasticSearch() throws InterruptedException, IndexerESNotRecoverableException {
+	@Override
+	public long getClientGeneration() {
+		return esClientGeneration.get();
+	}
+
+	/**
+	 * Re-create the shared ES client; if several workers call this method at the same time - 
+	 * only the first one re-connects, the others wait for it and return without re-connecting again
+	 * 
+	 * @param failedClientGeneration - generation of the client the failed request was sent with
+	 * @throws InterruptedException
+	 * @throws IndexerESNotRecoverableException - if re-connect failed after the configured number of attempts
+	 */
+	@Override
+	public void reInitElasticSearch(long failedClientGeneration) throws InterruptedException, IndexerESNotRecoverableException {
+		synchronized (this) {
+			if (esClientGeneration.get() != failedClientGeneration) {
+				logger.info("ES client was already re-connected by another worker - not re-trying to connect again");
+				return;
+			}
+			reConnectElasticSearch();
+		}
+	}
+
+	private void reConnectElasticSearch() throws InterruptedException, IndexerESNotRecoverableException {
 		for (int i=1; i<=numberOfEsIndexingRetryAttempts; i++ ){
 			Thread.sleep(esIndexingRetrySleepTimeMs);
 			logger.warn("Re-trying to connect to ES, try# {} out of {}", i, numberOfEsIndexingRetryAttempts);
@@ -121,6 +170,7 @@ public class ElasticSearchClientService {
 		logger.info("Created index {} successfully",  indexName);
 	}
 
+	@Override
 	public void createIndexAndAlias(String indexName,String aliasName){
 		esTransportClient.admin().indices().prepareCreate(indexName).addAlias(new Alias(aliasName)).execute().actionGet();
 		logger.info("Created index {} with alias {} successfully" ,indexName,aliasName);
@@ -136,18 +186,31 @@ public class ElasticSearchClientService {
 		logger.info("Added alias {} to index {} successfully" ,aliasName,indexName);
 	}
 
+	@Override
 	public IndexRequestBuilder prepareIndex(String indexName, String indexType, String eventUUID) {
 		return esTransportClient.prepareIndex(indexName, indexType, eventUUID);
 	}
 
+	@Override
 	public IndexRequestBuilder prepareIndex(String indexName, String indexType) {
 		return esTransportClient.prepareIndex(indexName, indexType);
 	}
 
+	@Override
 	public BulkRequestBuilder prepareBulk() {
 		return esTransportClient.prepareBulk();
 	}
 
+	@Override
+	public BulkResponse bulk(BulkRequest bulkRequest) {
+		return esTransportClient.bulk(bulkRequest).actionGet();
+	}
+
+	@Override
+	public void bulk(BulkRequest bulkRequest, ActionListener<BulkResponse> listener) {
+		esTransportClient.bulk(bulkRequest, listener);
+	}
+
 	public TransportClient getEsTransportClient() {
 		return esTransportClient;
 	}
@@ -0,0 +1,187 @@
+package org.elasticsearch.kafka.indexer.service;
+
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+
+import com.google.common.base.Ticker;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheLoader;
+import com.google.common.cache.CacheStats;
+import com.google.common.cache.LoadingCache;
+import com.google.common.util.concurrent.ExecutionError;
+import com.google.common.util.concurrent.UncheckedExecutionException;
+
+/**
+ * Cache of the reference data batch message processors enrich the events with - so that repeated keys
+ * do not cause a remote IEnrichmentLookup call per event:
+ * up to kafka.consumer.enrichment.cache.max.size entries are kept (least recently used ones are evicted),
+ * each for kafka.consumer.enrichment.cache.ttl.ms after it was looked up;
+ * concurrent misses of the same key are coalesced - the key is looked up once, other threads wait for that lookup;
+ * keys without data (the lookup returned NULL) are cached for kafka.consumer.enrichment.cache.negative.ttl.ms
+ * (0 - not cached, looked up again on every miss); failed lookups are not cached;
+ * hits (including the ones of valid negative entries), misses (including the ones of expired negative entries),
+ * failed lookups and evictions are counted - each get() once
+ *
+ * one (singleton) instance is shared by the processors of all consumer threads
+ *
+ * @param <K> - type of the lookup keys
+ * @param <V> - type of the reference data
+ */
+public class EnrichmentCache<K, V> {
+
+	private static final Logger logger = LoggerFactory.getLogger(EnrichmentCache.class);
+
+	@Value("${kafka.consumer.enrichment.cache.max.size:100000}")
+	private long maxSize = 100000L;
+	@Value("${kafka.consumer.enrichment.cache.ttl.ms:60000}")
+	private long ttlMs = 60000L;
+	@Value("${kafka.consumer.enrichment.cache.negative.ttl.ms:0}")
+	private long negativeTtlMs = 0L;
+
+	@Autowired
+	private IEnrichmentLookup<K, V> enrichmentLookup;
+
+	private Ticker ticker = Ticker.systemTicker();
+	private LoadingCache<K, CachedValue<V>> cache;
+	// hits of expired negative entries - the cache counts them as hits, and their re-lookups as misses
+	private final AtomicLong numExpiredNegativeHits = new AtomicLong();
+
+	/**
+	 * looked up value - NULL if there is no data for the key
+	 */
+	private static class CachedValue<V> {
+		private final V value;
+		private final long lookupTimeNanos;
+
+		private CachedValue(V value, long lookupTimeNanos) {
+			this.value = value;
+			this.lookupTimeNanos = lookupTimeNanos;
+		}
+	}
+
+	@PostConstruct
+	public void init() {
+		numExpiredNegativeHits.set(0L);
+		cache = CacheBuilder.newBuilder()
+			.maximumSize(maxSize)
+			.expireAfterWrite(ttlMs, TimeUnit.MILLISECONDS)
+			.ticker(ticker)
+			.recordStats()
+			.build(new CacheLoader<K, CachedValue<V>>() {
+				@Override
+				public CachedValue<V> load(K key) throws Exception {
+					return new CachedValue<>(enrichmentLookup.lookup(key), ticker.read());
+				}
+			});
+		logger.info("EnrichmentCache created: maxSize={}, ttlMs={}, negativeTtlMs={}", maxSize, ttlMs, negativeTtlMs);
+	}
+
+	@PreDestroy
+	public void cleanup() {
+		if (cache != null) {
+			logger.info("EnrichmentCache stats: {}", getStats());
+		}
+	}
+
+	/**
+	 * @param key - lookup key, taken from an event
+	 * @return reference data of the key, from the cache or looked up; NULL if there is no data for the key
+	 * @throws Exception - exception of the failed lookup
+	 */
+	public V get(K key) throws Exception {
+		CachedValue<V> cachedValue = getCachedValue(key);
+		if (cachedValue.value == null && !isNegativeEntryValid(cachedValue)) {
+			// negative entries are not kept when the negative cache is off, and are looked up again when expired
+			cache.asMap().remove(key, cachedValue);
+			if (negativeTtlMs > 0) {
+				// counted once - as the miss of the re-lookup
+				numExpiredNegativeHits.incrementAndGet();
+				cachedValue = getCachedValue(key);
+			}
+		}
+		return cachedValue.value;
+	}
+
+	private boolean isNegativeEntryValid(CachedValue<V> cachedValue) {
+		return negativeTtlMs > 0 && ticker.read() - cachedValue.lookupTimeNanos < TimeUnit.MILLISECONDS.toNanos(negativeTtlMs);
+	}
+
+	private CachedValue<V> getCachedValue(K key) throws Exception {
+		try {
+			return cache.get(key);
+		} catch (ExecutionException | UncheckedExecutionException | ExecutionError e) {
+			Throwable cause = e.getCause();
+			if (cause instanceof Exception) {
+				throw (Exception) cause;
+			}
+			throw e;
+		}
+	}
+
+	public void invalidate(K key) {
+		cache.invalidate(key);
+	}
+
+	public long getSize() {
+		return cache.size();
+	}
+
+	public long getNumberOfHits() {
+		return getStats().hitCount();
+	}
+
+	public long getNumberOfMisses() {
+		return getStats().missCount();
+	}
+
+	/**
+	 * @return ratio of the hits to all requests; 1.0 if there were no requests
+	 */
+	public double getHitRate() {
+		return getStats().hitRate();
+	}
+
+	public long getNumberOfFailedLookups() {
+		return cache.stats().loadExceptionCount();
+	}
+
+	public long getNumberOfEvictions() {
+		return cache.stats().evictionCount();
+	}
+
+	public CacheStats getStats() {
+		CacheStats stats = cache.stats();
+		return new CacheStats(stats.hitCount() - numExpiredNegativeHits.get(), stats.missCount(), stats.loadSuccessCount(),
+			stats.loadExceptionCount(), stats.totalLoadTime(), stats.evictionCount());
+	}
+
+	public void setMaxSize(long maxSize) {
+		this.maxSize = maxSize;
+	}
+
+	public void setTtlMs(long ttlMs) {
+		this.ttlMs = ttlMs;
+	}
+
+	public void setNegativeTtlMs(long negativeTtlMs) {
+		this.negativeTtlMs = negativeTtlMs;
+	}
+
+	public void setEnrichmentLookup(IEnrichmentLookup<K, V> enrichmentLookup) {
+		this.enrichmentLookup = enrichmentLookup;
+	}
+
+	void setTicker(Ticker ticker) {
+		this.ticker = ticker;
+	}
+
+}
@@ -0,0 +1,175 @@
+package org.elasticsearch.kafka.indexer.service;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Locale;
+
+import javax.annotation.PostConstruct;
+
+import org.apache.kafka.clients.consumer.ConsumerRecord;
+import org.apache.kafka.common.header.Header;
+import org.apache.kafka.common.header.Headers;
+import org.elasticsearch.action.DocWriteRequest;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+
+/**
+ * Takes the index name, document id, routing value and op type of the events from their Kafka record headers -
+ * so the event values are never parsed, and can be forwarded to the bulk requests as is;
+ * header names are configured with the elasticsearch.header.* properties; not set (empty) - the header is not used:
+ * index name - values of the elasticsearch.header.index.names headers (like "tenant,eventType"), joined with "-",
+ * lower-cased and prefixed with elasticsearch.header.index.prefix;
+ * document id - value of the elasticsearch.header.document.id header;
+ * routing value - value of the elasticsearch.header.routing header;
+ * op type - value of the elasticsearch.header.op.type header: index, create or delete (case-insensitive);
+ *
+ * events without the headers use the defaults: the elasticsearch.index.name (or the time-based index),
+ * an id generated by ES, no routing and the index op type;
+ *
+ * shared by all consumer threads
+ */
+public class HeaderRoutingResolver {
+
+	private static final Logger logger = LoggerFactory.getLogger(HeaderRoutingResolver.class);
+
+	@Value("${elasticsearch.header.index.names:}")
+	private String indexNameHeaders = "";
+	@Value("${elasticsearch.header.index.prefix:}")
+	private String indexNamePrefix = "";
+	@Value("${elasticsearch.header.document.id:}")
+	private String documentIdHeader = "";
+	@Value("${elasticsearch.header.routing:}")
+	private String routingHeader = "";
+	@Value("${elasticsearch.header.op.type:}")
+	private String opTypeHeader = "";
+
+	private String[] indexNameHeaderNames = new String[0];
+
+	/**
+	 * bulk action of an event, as per its headers; NULL values - if the headers are not set: the defaults apply
+	 */
+	public static class HeaderRouting {
+		private final String indexName;
+		private final String documentId;
+		private final String routingValue;
+		private final DocWriteRequest.OpType opType;
+
+		private HeaderRouting(String indexName, String documentId, String routingValue, DocWriteRequest.OpType opType) {
+			this.indexName = indexName;
+			this.documentId = documentId;
+			this.routingValue = routingValue;
+			this.opType = opType;
+		}
+
+		public String getIndexName() {
+			return indexName;
+		}
+
+		public String getDocumentId() {
+			return documentId;
+		}
+
+		public String getRoutingValue() {
+			return routingValue;
+		}
+
+		/**
+		 * @return INDEX, CREATE or DELETE
+		 */
+		public DocWriteRequest.OpType getOpType() {
+			return opType;
+		}
+	}
+
+	@PostConstruct
+	public void init() {
+		indexNameHeaderNames = Arrays.stream(indexNameHeaders.split(","))
+			.map(String::trim)
+			.filter(headerName -> !headerName.isEmpty())
+			.toArray(String[]::new);
+		logger.info("HeaderRoutingResolver created: indexNameHeaders={}, indexNamePrefix={}, documentIdHeader={}, routingHeader={}, opTypeHeader={}",
+			indexNameHeaders, indexNamePrefix, documentIdHeader, routingHeader, opTypeHeader);
+	}
+
+	/**
+	 * @return index name, document id, routing value and op type of the record - from its headers
+	 * @throws IllegalArgumentException - if the op type header has an unsupported value
+	 */
+	public HeaderRouting getHeaderRouting(ConsumerRecord<String, ?> record) {
+		Headers headers = record.headers();
+		String opTypeValue = getHeaderValue(headers, opTypeHeader);
+		DocWriteRequest.OpType opType = DocWriteRequest.OpType.INDEX;
+		if (opTypeValue != null) {
+			opType = DocWriteRequest.OpType.fromString(opTypeValue.toLowerCase(Locale.ROOT));
+			if (opType == DocWriteRequest.OpType.UPDATE) {
+				throw new IllegalArgumentException("Unsupported op type: " + opTypeValue + "; supported: index, create, delete");
+			}
+		}
+		return new HeaderRouting(getIndexName(headers), getHeaderValue(headers, documentIdHeader),
+			getHeaderValue(headers, routingHeader), opType);
+	}
+
+	private String getIndexName(Headers headers) {
+		if (indexNameHeaderNames.length == 0) {
+			return null;
+		}
+		StringBuilder indexName = new StringBuilder(indexNamePrefix);
+		for (int i = 0; i < indexNameHeaderNames.length; i++) {
+			String headerValue = getHeaderValue(headers, indexNameHeaderNames[i]);
+			if (headerValue == null) {
+				// all the index name headers are required - the default index is used otherwise
+				return null;
+			}
+			if (i > 0) {
+				indexName.append('-');
+			}
+			indexName.append(headerValue);
+		}
+		// ES index names must be lower case
+		return indexName.toString().toLowerCase(Locale.ROOT);
+	}
+
+	/**
+	 * @return UTF-8 value of the last header with the name; NULL if the name is not set, or there is no such header,
+	 * or its value is empty
+	 */
+	private static String getHeaderValue(Headers headers, String headerName) {
+		if (headerName.isEmpty()) {
+			return null;
+		}
+		Header header = headers.lastHeader(headerName);
+		if (header == null || header.value() == null || header.value().length == 0) {
+			return null;
+		}
+		return new String(header.value(), StandardCharsets.UTF_8);
+	}
+
+	/**
+	 * @return TRUE if document ids are taken from the elasticsearch.header.document.id header
+	 */
+	public boolean isDocumentIdHeaderSet() {
+		return !documentIdHeader.isEmpty();
+	}
+
+	public void setIndexNameHeaders(String indexNameHeaders) {
+		this.indexNameHeaders = indexNameHeaders;
+	}
+
+	public void setIndexNamePrefix(String indexNamePrefix) {
+		this.indexNamePrefix = indexNamePrefix;
+	}
+
+	public void setDocumentIdHeader(String documentIdHeader) {
+		this.documentIdHeader = documentIdHeader;
+	}
+
+	public void setRoutingHeader(String routingHeader) {
+		this.routingHeader = routingHeader;
+	}
+
+	public void setOpTypeHeader(String opTypeHeader) {
+		this.opTypeHeader = opTypeHeader;
+	}
+
+}
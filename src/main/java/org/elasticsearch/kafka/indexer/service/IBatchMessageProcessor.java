@@ -7,8 +7,11 @@ package org.elasticsearch.kafka.indexer.service;
 import org.apache.kafka.clients.consumer.ConsumerRecord;
 import org.apache.kafka.clients.consumer.OffsetAndMetadata;
 import org.apache.kafka.common.TopicPartition;
+import org.elasticsearch.kafka.indexer.CommonKafkaUtils;
 
+import java.util.List;
 import java.util.Map;
+import java.util.concurrent.CompletableFuture;
 
 public interface IBatchMessageProcessor {
 
@@ -23,6 +26,10 @@ public interface IBatchMessageProcessor {
           
 	 * returns a boolean if message is processed successfully or not
 	 * 
+	 * WARNING: if kafka.consumer.processing.parallelism > 1 - this method is called concurrently from several threads
+	 * (events with the same key, or from the same partition, are still processed in order, by the same thread) - 
+	 * so the implementation has to be thread-safe
+	 * 
 	 *
 	 * @param currentKafkaRecord
 	 * @param consumerId ID of the consumer thread processing this message
@@ -30,6 +37,76 @@ public interface IBatchMessageProcessor {
 	 * @throws Exception
 	 */
     public boolean processMessage(ConsumerRecord<String, String> currentKafkaRecord, int consumerId) throws Exception;
+
+	/**
+	 * Raw bytes mode (kafka.consumer.raw.bytes.mode.enabled=true): process one message whose value was consumed 
+	 * with the ByteArrayDeserializer - it is called instead of the processMessage(); 
+	 * this allows passing the value to its destination as is - for example, as the source of an ES index request via
+	 * elasticSearchBatchService.addEventToBulkRequest(byte[], ...) - without decoding it into a String and encoding it back
+	 * 
+	 * Default implementation decodes the value as UTF-8 and calls the processMessage()
+	 * 
+	 * @param currentKafkaRecord
+	 * @param consumerId ID of the consumer thread processing this message
+	 * @return TRUE if the message was processed successfully
+	 * @throws Exception
+	 */
+	public default boolean processRawMessage(ConsumerRecord<String, byte[]> currentKafkaRecord, int consumerId) throws Exception {
+		return processMessage(CommonKafkaUtils.toStringValueRecord(currentKafkaRecord), consumerId);
+	}
+
+	/**
+	 * Process all messages of one poll() at once - so that the work can be amortised across them: for example, 
+	 * one bulk lookup in an enrichment store instead of one lookup per message, or grouping of messages by index;
+	 * it is called instead of the processMessage() if isBatchProcessingSupported() returns TRUE;
+	 * 
+	 * messages are passed in the poll order; in the raw bytes mode processRawMessages() is called instead; 
+	 * if kafka.consumer.processing.parallelism > 1 - it is called concurrently,
+	 * once per processing thread, with the part of the poll's messages that thread processes 
+	 * (all messages with the same key - or from the same partition - are always in the same part)
+	 * 
+	 * Default implementation calls the processMessage() for each message
+	 * 
+	 * @param currentKafkaRecords
+	 * @param consumerId ID of the consumer thread processing these messages
+	 * @return outcome of each message, in the same order: TRUE if it was processed successfully
+	 * @throws Exception - if the whole batch failed; all its messages are then treated as failed
+	 */
+	public default boolean[] processMessages(List<ConsumerRecord<String, String>> currentKafkaRecords, int consumerId) throws Exception {
+		boolean[] processedOK = new boolean[currentKafkaRecords.size()];
+		for (int i = 0; i < processedOK.length; i++) {
+			processedOK[i] = processMessage(currentKafkaRecords.get(i), consumerId);
+		}
+		return processedOK;
+	}
+
+	/**
+	 * Raw bytes mode (kafka.consumer.raw.bytes.mode.enabled=true): process all messages of one poll() at once - 
+	 * with the values consumed with the ByteArrayDeserializer; it is called instead of the processMessages(),
+	 * the same way and on the same conditions
+	 * 
+	 * Default implementation calls the processRawMessage() for each message - values are not decoded
+	 * 
+	 * @param currentKafkaRecords
+	 * @param consumerId ID of the consumer thread processing these messages
+	 * @return outcome of each message, in the same order: TRUE if it was processed successfully
+	 * @throws Exception - if the whole batch failed; all its messages are then treated as failed
+	 */
+	public default boolean[] processRawMessages(List<ConsumerRecord<String, byte[]>> currentKafkaRecords, int consumerId) throws Exception {
+		boolean[] processedOK = new boolean[currentKafkaRecords.size()];
+		for (int i = 0; i < processedOK.length; i++) {
+			processedOK[i] = processRawMessage(currentKafkaRecords.get(i), consumerId);
+		}
+		return processedOK;
+	}
+
+	/**
+	 * @return TRUE if the consumer should call processMessages() (processRawMessages() - in the raw bytes mode) with all messages of a poll, 
+	 * instead of calling processMessage() for each of them; default is FALSE
+	 */
+	public default boolean isBatchProcessingSupported() {
+		return false;
+	}
     
     /**
      * callback method - called after each poll() request to Kafka brokers is done
@@ -52,14 +129,75 @@ public interface IBatchMessageProcessor {
      * Returning TRUE form this method means that the offsets form the last poll() 
      * (and any other previously un-committed polls) will be committed;
      * Returning FALSE means that the offsets will NOT be committed and events from the previous poll will
-     * be re-processed
+     * be re-processed;
+     * if only events of some partitions failed - throw a ConsumerRecoverableException with these failedPartitions:
+     * offsets of all other partitions are then committed right away, and only the failed partitions are re-tried
      * @param consumerId
-     * @param previousPollEndPosition
+     * @param pollEndPosition - offset to commit for each partition the last poll() returned events for
      * @return boolean shouldCommitThisPoll
      * @throws Exception
      */
 	public boolean onPollEndCallBack(int consumerId, Map<TopicPartition, OffsetAndMetadata> pollEndPosition) throws Exception;
 
+	/**
+	 * callback method - used instead of the onPollEndCallBack() when the consumer runs in the pipelined mode
+	 * (kafka.consumer.pipelined.mode.enabled=true);
+	 * it is called on the consumer thread after all events from the last poll() were processed, and it should
+	 * hand off the batch collected so far and return right away - so that the next poll() can be fetched and 
+	 * processed while this batch is still being sent to its destination;
+	 * 
+	 * The returned future completes with the same shouldCommitThisPoll flag the onPollEndCallBack() would return;
+	 * offsets of the poll are only committed after the future completes; completing it exceptionally with 
+	 * a ConsumerRecoverableException makes the consumer re-process the poll the same way as in the non-pipelined mode
+	 * 
+	 * Default implementation simply calls the onPollEndCallBack() synchronously - override it to get 
+	 * any benefit from the pipelined mode
+	 * 
+	 * @param consumerId
+	 * @param pollEndPosition
+	 * @return future of the shouldCommitThisPoll flag
+	 */
+	public default CompletableFuture<Boolean> onPollEndCallBackAsync(
+		int consumerId, Map<TopicPartition, OffsetAndMetadata> pollEndPosition) {
+		CompletableFuture<Boolean> shouldCommitFuture = new CompletableFuture<>();
+		try {
+			shouldCommitFuture.complete(onPollEndCallBack(consumerId, pollEndPosition));
+		} catch (Exception e) {
+			shouldCommitFuture.completeExceptionally(e);
+		}
+		return shouldCommitFuture;
+	}
+
+	/**
+	 * callback method - called when events of a poll could not be processed within kafka.consumer.poll.retry.limit 
+	 * re-tries and kafka.consumer.ignore.overlimit.recoverable.errors=true: offsets of the poll are committed right after it,
+	 * so any state kept for the re-tries (for example, failed batches that would be re-sent first) should be dropped here -
+	 * after its events are stored somewhere else, like a dead letter sink
+	 * 
+	 * Default implementation is NO-OP
+	 * 
+	 * @param consumerId
+	 * @throws Exception
+	 */
+	public default void onRetriesExhausted(int consumerId) throws Exception {
+	}
+
+	/**
+	 * callback method - called before each poll() when the consumer runs in the backpressure mode
+	 * (kafka.consumer.backpressure.enabled=true);
+	 * returning TRUE means that the destination can not take more batches right now - for example, the max number
+	 * of batches is in flight already; the consumer then pauses its partitions and keeps calling poll() without 
+	 * fetching new events, until this method returns FALSE again
+	 * 
+	 * Default implementation is never saturated
+	 * 
+	 * @param consumerId
+	 * @return TRUE if the processor is saturated
+	 */
+	public default boolean isSaturated(int consumerId) {
+		return false;
+	}
+
 	public void onStartup(int consumerId) throws Exception;
 
 	public void onShutdown(int consumerId) ;
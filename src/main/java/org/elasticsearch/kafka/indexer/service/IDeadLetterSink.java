@@ -0,0 +1,27 @@
+package org.elasticsearch.kafka.indexer.service;
+
+import org.apache.kafka.clients.consumer.ConsumerRecord;
+
+/**
+ * Destination for events that could not be indexed into ES and will not be re-tried -
+ * for example, events rejected by ES because of mapping or parsing errors;
+ * 
+ * Events sent to the sink keep all information about the original Kafka record (topic, partition, offset, key, value),
+ * so that they can be fixed and re-played later without re-processing whole time ranges;
+ * in the raw bytes mode values are byte[] - they have to be kept as is, not decoded
+ * 
+ * Implementations have to be thread-safe: one sink is shared by all consumer threads, and events 
+ * can be sent from the ES client callback threads
+ */
+public interface IDeadLetterSink {
+
+	/**
+	 * Store one failed event
+	 * 
+	 * @param failedRecord - original Kafka record of the failed event: with a String value, or a byte[] one in the raw bytes mode
+	 * @param errorMessage - reason of the failure, as reported by ES
+	 * @throws Exception
+	 */
+	public void sendFailedEvent(ConsumerRecord<String, ?> failedRecord, String errorMessage) throws Exception;
+
+}
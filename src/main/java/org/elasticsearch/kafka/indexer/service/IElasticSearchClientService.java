@@ -0,0 +1,74 @@
+package org.elasticsearch.kafka.indexer.service;
+
+import org.elasticsearch.ElasticsearchException;
+import org.elasticsearch.ResourceAlreadyExistsException;
+import org.elasticsearch.action.ActionListener;
+import org.elasticsearch.action.bulk.BulkRequest;
+import org.elasticsearch.action.bulk.BulkRequestBuilder;
+import org.elasticsearch.action.bulk.BulkResponse;
+import org.elasticsearch.action.index.IndexRequestBuilder;
+import org.elasticsearch.client.transport.NoNodeAvailableException;
+import org.elasticsearch.kafka.indexer.exception.IndexerESNotRecoverableException;
+
+/**
+ * Indexing client used by the ElasticSearchBatchService;
+ * bulk requests are built with the builders it creates and posted with its bulk() methods, via the client's backend:
+ * ElasticSearchClientService - TransportClient, 
+ * ElasticSearchHttpClientService - HTTP _bulk API
+ * 
+ * Implementations are singletons shared by all consumer workers and must be thread-safe
+ */
+public interface IElasticSearchClientService {
+
+	public BulkRequestBuilder prepareBulk();
+
+	public IndexRequestBuilder prepareIndex(String indexName, String indexType, String eventUUID);
+
+	public IndexRequestBuilder prepareIndex(String indexName, String indexType);
+
+	/**
+	 * post a bulk request and wait for its response
+	 * 
+	 * @param bulkRequest
+	 * @return response of the bulk request - with the statuses of its items
+	 * @throws NoNodeAvailableException - if the ES cluster is unreachable
+	 * @throws ElasticsearchException - if the whole bulk request failed
+	 */
+	public BulkResponse bulk(BulkRequest bulkRequest);
+
+	/**
+	 * post a bulk request without waiting for its response
+	 * 
+	 * @param bulkRequest
+	 * @param listener - notified with the response of the bulk request, or with the failure as in bulk(BulkRequest);
+	 * called on a thread of the client, not of the caller
+	 */
+	public void bulk(BulkRequest bulkRequest, ActionListener<BulkResponse> listener);
+
+	/**
+	 * create an index with an alias
+	 * 
+	 * @param indexName
+	 * @param aliasName
+	 * @throws ResourceAlreadyExistsException - if the index exists already
+	 */
+	public void createIndexAndAlias(String indexName, String aliasName);
+
+	/**
+	 * @return generation of the ES client - it changes each time the client is re-created; 
+	 * read it before a request, to pass it to the reInitElasticSearch() if the request fails
+	 */
+	public long getClientGeneration();
+
+	/**
+	 * callback method - called by the ElasticSearchBatchService when the ES cluster is unreachable; 
+	 * the client is only re-created if it is still the one the failed request was sent with - 
+	 * so that workers whose requests failed at the same time do not re-connect more than once
+	 * 
+	 * @param failedClientGeneration - getClientGeneration() read before the failed request
+	 * @throws InterruptedException
+	 * @throws IndexerESNotRecoverableException - if the cluster could not be re-connected to
+	 */
+	public void reInitElasticSearch(long failedClientGeneration) throws InterruptedException, IndexerESNotRecoverableException;
+
+}
@@ -0,0 +1,21 @@
+package org.elasticsearch.kafka.indexer.service;
+
+/**
+ * Looks up reference data to enrich the events with - for example, from a remote store or service;
+ * used by batch message processors via the EnrichmentCache, which calls it only on cache misses
+ *
+ * implementations are shared by all consumer threads and have to be thread-safe
+ *
+ * @param <K> - type of the lookup keys
+ * @param <V> - type of the reference data
+ */
+public interface IEnrichmentLookup<K, V> {
+
+	/**
+	 * @param key - lookup key, taken from an event
+	 * @return reference data of the key, or NULL if there is no data for the key
+	 * @throws Exception - if the lookup failed; the failure is not cached
+	 */
+	V lookup(K key) throws Exception;
+
+}
@@ -0,0 +1,22 @@
+package org.elasticsearch.kafka.indexer.service;
+
+import org.elasticsearch.common.xcontent.XContentBuilder;
+
+/**
+ * Converts binary event values (Avro, Protobuf, etc.) into JSON documents: the value is written directly
+ * into the XContentBuilder of the index request - without building an intermediate String or JSON tree;
+ * used by the ESBatchMessageProcessorImpl in the raw bytes mode (kafka.consumer.raw.bytes.mode.enabled=true)
+ *
+ * implementations are shared by all consumer threads and have to be thread-safe
+ */
+public interface IRecordValueConverter {
+
+	/**
+	 * @param value - raw bytes of the event value, as they were read from Kafka
+	 * @param builder - builder of the ES document; the value has to be written into it as one JSON object
+	 * @throws Exception - if the value can not be converted - for example, if its schema is not known;
+	 * the event is then handled as a failed event
+	 */
+	void convert(byte[] value, XContentBuilder builder) throws Exception;
+
+}
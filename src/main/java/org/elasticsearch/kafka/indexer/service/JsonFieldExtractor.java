@@ -0,0 +1,206 @@
+package org.elasticsearch.kafka.indexer.service;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.elasticsearch.common.xcontent.DeprecationHandler;
+import org.elasticsearch.common.xcontent.NamedXContentRegistry;
+import org.elasticsearch.common.xcontent.XContentParser;
+import org.elasticsearch.common.xcontent.XContentType;
+
+/**
+ * Reads a few fields of JSON events with a streaming parser, as in:
+ * <pre>
+ * JsonFieldExtractor extractor = new JsonFieldExtractor("/id", "/customer/region", "/items/0/sku");
+ * String[] values = extractor.extract(event); // values[i] - value of the i-th path, or NULL
+ * </pre>
+ * paths are JSON pointers (RFC 6901; "~1" stands for "/" and "~0" for "~" in field names, numbers select array elements);
+ * a path without the leading "/" is the name of a top level field;
+ *
+ * paths are compiled once into a tree of field names; the event is read only until all the paths are found,
+ * sub-trees of the event outside of the paths are skipped without building any objects from them,
+ * and only the found values are converted into Strings;
+ *
+ * immutable - one instance can be shared by all consumer threads
+ */
+public class JsonFieldExtractor {
+
+	private final PathNode root = new PathNode();
+	private final int numberOfPaths;
+
+	/**
+	 * node of the compiled paths: a field of an object, or an element of an array
+	 */
+	private static class PathNode {
+		private Map<String, PathNode> children;
+		// largest array index among the children - elements after it are skipped
+		private int maxArrayIndex = -1;
+		// positions of the paths ending at this node in the result array
+		private int[] resultIndexes;
+
+		private PathNode getOrAddChild(String name) {
+			if (children == null) {
+				children = new HashMap<>();
+			}
+			return children.computeIfAbsent(name, key -> new PathNode());
+		}
+
+		private void addResultIndex(int resultIndex) {
+			resultIndexes = (resultIndexes == null) ? new int[1] : Arrays.copyOf(resultIndexes, resultIndexes.length + 1);
+			resultIndexes[resultIndexes.length - 1] = resultIndex;
+		}
+	}
+
+	/**
+	 * @param paths - JSON pointers, or names of top level fields
+	 * @throws IllegalArgumentException - if a path is empty
+	 */
+	public JsonFieldExtractor(String... paths) {
+		numberOfPaths = paths.length;
+		for (int i = 0; i < paths.length; i++) {
+			addPath(paths[i], i);
+		}
+	}
+
+	private void addPath(String path, int resultIndex) {
+		if (path == null || path.isEmpty() || path.equals("/")) {
+			throw new IllegalArgumentException("Invalid JSON field path: '" + path + "'");
+		}
+		String[] tokens = path.startsWith("/") ? path.substring(1).split("/", -1) : new String[] { path };
+		PathNode node = root;
+		for (String token : tokens) {
+			String name = token.replace("~1", "/").replace("~0", "~");
+			int arrayIndex = parseArrayIndex(name);
+			if (arrayIndex > node.maxArrayIndex) {
+				node.maxArrayIndex = arrayIndex;
+			}
+			node = node.getOrAddChild(name);
+		}
+		node.addResultIndex(resultIndex);
+	}
+
+	private static int parseArrayIndex(String name) {
+		if (name.isEmpty() || name.length() > 9 || !name.chars().allMatch(Character::isDigit)
+				|| (name.length() > 1 && name.charAt(0) == '0')) {
+			return -1;
+		}
+		return Integer.parseInt(name);
+	}
+
+	public int getNumberOfPaths() {
+		return numberOfPaths;
+	}
+
+	/**
+	 * @param value - JSON event: String or UTF-8 bytes
+	 * @return values of the paths, in the order of the paths: text of the scalar values; NULL if there is no such path
+	 * in the event, or its value is null, an object or an array
+	 * @throws IOException - if the event is not valid JSON (up to the last found path)
+	 */
+	public String[] extract(Object value) throws IOException {
+		String[] values = new String[numberOfPaths];
+		if (value == null || numberOfPaths == 0) {
+			return values;
+		}
+		try (XContentParser parser = createParser(value)) {
+			XContentParser.Token token = parser.nextToken();
+			if (token == XContentParser.Token.START_OBJECT || token == XContentParser.Token.START_ARRAY) {
+				// the rest of the event is not read once all the paths are found
+				readChildren(parser, root, new ExtractionState(values));
+			}
+		}
+		return values;
+	}
+
+	/**
+	 * String events are parsed as is - encoding them into bytes first would copy the whole event,
+	 * even if the paths are found at its beginning
+	 */
+	private static XContentParser createParser(Object value) throws IOException {
+		if (value instanceof byte[]) {
+			return XContentType.JSON.xContent().createParser(
+				NamedXContentRegistry.EMPTY, DeprecationHandler.THROW_UNSUPPORTED_OPERATION, (byte[]) value);
+		}
+		return XContentType.JSON.xContent().createParser(
+			NamedXContentRegistry.EMPTY, DeprecationHandler.THROW_UNSUPPORTED_OPERATION, value.toString());
+	}
+
+	private static class ExtractionState {
+		private final String[] values;
+		private final boolean[] found;
+		private int numberOfNotFound;
+
+		private ExtractionState(String[] values) {
+			this.values = values;
+			this.found = new boolean[values.length];
+			this.numberOfNotFound = values.length;
+		}
+
+		private void setValue(int resultIndex, String value) {
+			values[resultIndex] = value;
+			if (!found[resultIndex]) {
+				found[resultIndex] = true;
+				numberOfNotFound--;
+			}
+		}
+	}
+
+	/**
+	 * read the object or array the parser is at - up to its end, or until all the paths are found
+	 * @return TRUE if all the paths are found
+	 */
+	private boolean readChildren(XContentParser parser, PathNode node, ExtractionState state) throws IOException {
+		if (parser.currentToken() == XContentParser.Token.START_OBJECT) {
+			while (parser.nextToken() == XContentParser.Token.FIELD_NAME) {
+				PathNode child = node.children.get(parser.currentName());
+				parser.nextToken();
+				if (child == null) {
+					parser.skipChildren();
+				} else if (readValue(parser, child, state)) {
+					return true;
+				}
+			}
+		} else {
+			int arrayIndex = 0;
+			XContentParser.Token token;
+			while ((token = parser.nextToken()) != XContentParser.Token.END_ARRAY && token != null) {
+				PathNode child = (arrayIndex <= node.maxArrayIndex) ? node.children.get(Integer.toString(arrayIndex)) : null;
+				arrayIndex++;
+				if (child == null) {
+					parser.skipChildren();
+				} else if (readValue(parser, child, state)) {
+					return true;
+				}
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * read the value the parser is at - the value of the node
+	 * @return TRUE if all the paths are found
+	 */
+	private boolean readValue(XContentParser parser, PathNode node, ExtractionState state) throws IOException {
+		XContentParser.Token token = parser.currentToken();
+		if (node.resultIndexes != null) {
+			String text = (token.isValue() && token != XContentParser.Token.VALUE_NULL) ? parser.text() : null;
+			for (int resultIndex : node.resultIndexes) {
+				state.setValue(resultIndex, text);
+			}
+			if (state.numberOfNotFound == 0) {
+				return true;
+			}
+		}
+		if (token == XContentParser.Token.START_OBJECT || token == XContentParser.Token.START_ARRAY) {
+			if (node.children == null) {
+				parser.skipChildren();
+			} else {
+				return readChildren(parser, node, state);
+			}
+		}
+		return false;
+	}
+
+}
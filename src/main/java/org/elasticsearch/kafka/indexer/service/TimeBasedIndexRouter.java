@@ -0,0 +1,267 @@
+package org.elasticsearch.kafka.indexer.service;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.time.Instant;
+import java.time.ZoneId;
+import java.time.ZonedDateTime;
+import java.time.format.DateTimeFormatter;
+import java.time.format.DateTimeParseException;
+import java.time.temporal.ChronoUnit;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+
+import org.apache.kafka.clients.consumer.ConsumerRecord;
+import org.apache.kafka.common.header.Header;
+import org.elasticsearch.ResourceAlreadyExistsException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
+/**
+ * Routes events into time-based indices - "&lt;elasticsearch.index.name&gt;-&lt;event time formatted with
+ * elasticsearch.index.time.format&gt;", one index per elasticsearch.index.time.bucket (HOURS, DAYS or MONTHS);
+ * the event time is taken from the record timestamp, a JSON field (JSON pointer) or a Kafka header - as per the
+ * elasticsearch.index.time.source;
+ *
+ * index names are formatted once per time bucket and cached; indices of the current and of the next
+ * elasticsearch.index.precreate.buckets time buckets are created ahead of time (with the elasticsearch.index.alias.name alias),
+ * so that the first bulk request of a new time bucket does not have to wait for ES to create the index;
+ *
+ * shared by all consumer threads
+ */
+public class TimeBasedIndexRouter {
+
+	private static final Logger logger = LoggerFactory.getLogger(TimeBasedIndexRouter.class);
+	// cached time buckets are dropped all at once when there are more of them - e.g. after replaying old events
+	private static final int MAX_CACHED_BUCKETS = 1000;
+
+	public enum TimeSource {
+		RECORD_TIMESTAMP, FIELD, HEADER
+	}
+
+	@Value("${elasticsearch.index.name:kafkaESIndex}")
+	private String baseIndexName;
+	@Value("${elasticsearch.index.alias.name:${elasticsearch.index.name:kafkaESIndex}}")
+	private String aliasName;
+	@Value("${elasticsearch.index.time.source:RECORD_TIMESTAMP}")
+	private TimeSource timeSource = TimeSource.RECORD_TIMESTAMP;
+	@Value("${elasticsearch.index.time.field:timestamp}")
+	private String timeField = "timestamp";
+	@Value("${elasticsearch.index.time.header:timestamp}")
+	private String timeHeader = "timestamp";
+	@Value("${elasticsearch.index.time.bucket:DAYS}")
+	private ChronoUnit bucketUnit = ChronoUnit.DAYS;
+	@Value("${elasticsearch.index.time.format:yyyy.MM.dd}")
+	private String timeFormat = "yyyy.MM.dd";
+	@Value("${elasticsearch.index.time.zone:UTC}")
+	private String timeZone = "UTC";
+	// number of the next time buckets to create indices for ahead of time; 0 - indices are created by ES on the first event
+	@Value("${elasticsearch.index.precreate.buckets:1}")
+	private int numPrecreatedBuckets = 1;
+	@Value("${elasticsearch.index.precreate.interval.ms:600000}")
+	private long precreateIntervalMs = 600000L;
+
+	@Autowired
+	private IElasticSearchClientService elasticSearchClientService;
+
+	private ZoneId zoneId;
+	private DateTimeFormatter timeFormatter;
+	private JsonFieldExtractor timeFieldExtractor;
+	private final ConcurrentMap<Long, TimeBucket> timeBuckets = new ConcurrentHashMap<>();
+	// time bucket of the last routed event - most events fall into it
+	private volatile TimeBucket lastTimeBucket;
+	private final Set<String> createdIndexNames = ConcurrentHashMap.newKeySet();
+	private ScheduledExecutorService precreateExecutor;
+
+	private static class TimeBucket {
+		private final long startMs;
+		private final long endMs;
+		private final String indexName;
+
+		private TimeBucket(long startMs, long endMs, String indexName) {
+			this.startMs = startMs;
+			this.endMs = endMs;
+			this.indexName = indexName;
+		}
+
+		private boolean contains(long timeMs) {
+			return timeMs >= startMs && timeMs < endMs;
+		}
+	}
+
+	@PostConstruct
+	public void init() {
+		if (bucketUnit != ChronoUnit.HOURS && bucketUnit != ChronoUnit.DAYS && bucketUnit != ChronoUnit.MONTHS) {
+			throw new IllegalArgumentException("Unsupported elasticsearch.index.time.bucket: " + bucketUnit +
+				"; supported: HOURS, DAYS, MONTHS");
+		}
+		zoneId = ZoneId.of(timeZone);
+		timeFormatter = DateTimeFormatter.ofPattern(timeFormat).withZone(zoneId);
+		timeFieldExtractor = new JsonFieldExtractor(timeField);
+		timeBuckets.clear();
+		lastTimeBucket = null;
+		if (numPrecreatedBuckets > 0) {
+			precreateExecutor = Executors.newSingleThreadScheduledExecutor(
+				new ThreadFactoryBuilder().setNameFormat("index-precreate-%d").setDaemon(true).build());
+			precreateExecutor.scheduleWithFixedDelay(this::precreateIndices, 0L, precreateIntervalMs, TimeUnit.MILLISECONDS);
+		}
+		logger.info("TimeBasedIndexRouter created: baseIndexName={}, timeSource={}, bucketUnit={}, timeFormat={}, timeZone={}, numPrecreatedBuckets={}",
+			baseIndexName, timeSource, bucketUnit, timeFormat, timeZone, numPrecreatedBuckets);
+	}
+
+	@PreDestroy
+	public void cleanup() {
+		if (precreateExecutor != null) {
+			precreateExecutor.shutdownNow();
+		}
+	}
+
+	/**
+	 * @param record - record with a String (JSON) or byte[] (UTF-8 JSON) value
+	 * @return name of the index for the event time of the record
+	 */
+	public String getIndexName(ConsumerRecord<String, ?> record) {
+		return getIndexName(getEventTimeMs(record));
+	}
+
+	public String getIndexName(long eventTimeMs) {
+		TimeBucket timeBucket = lastTimeBucket;
+		if (timeBucket == null || !timeBucket.contains(eventTimeMs)) {
+			timeBucket = getTimeBucket(eventTimeMs);
+			lastTimeBucket = timeBucket;
+		}
+		return timeBucket.indexName;
+	}
+
+	private TimeBucket getTimeBucket(long timeMs) {
+		ZonedDateTime bucketStart = getBucketStart(timeMs);
+		long bucketStartMs = bucketStart.toInstant().toEpochMilli();
+		TimeBucket timeBucket = timeBuckets.get(bucketStartMs);
+		if (timeBucket == null) {
+			if (timeBuckets.size() >= MAX_CACHED_BUCKETS) {
+				timeBuckets.clear();
+			}
+			timeBucket = new TimeBucket(bucketStartMs, bucketStart.plus(1, bucketUnit).toInstant().toEpochMilli(),
+				baseIndexName + "-" + timeFormatter.format(bucketStart));
+			timeBuckets.putIfAbsent(bucketStartMs, timeBucket);
+		}
+		return timeBucket;
+	}
+
+	private ZonedDateTime getBucketStart(long timeMs) {
+		ZonedDateTime time = Instant.ofEpochMilli(timeMs).atZone(zoneId);
+		if (bucketUnit == ChronoUnit.MONTHS) {
+			return time.truncatedTo(ChronoUnit.DAYS).withDayOfMonth(1);
+		}
+		return time.truncatedTo(bucketUnit);
+	}
+
+	/**
+	 * @return event time from the configured source; the record timestamp if the event has no valid time there
+	 */
+	long getEventTimeMs(ConsumerRecord<String, ?> record) {
+		String eventTime = null;
+		try {
+			if (timeSource == TimeSource.FIELD) {
+				eventTime = timeFieldExtractor.extract(record.value())[0];
+			} else if (timeSource == TimeSource.HEADER) {
+				Header header = record.headers().lastHeader(timeHeader);
+				eventTime = (header != null && header.value() != null) ? new String(header.value(), StandardCharsets.UTF_8) : null;
+			}
+			if (eventTime != null) {
+				return parseTime(eventTime);
+			}
+		} catch (IOException | DateTimeParseException | NumberFormatException e) {
+			logger.debug("Invalid event time {} - using the record timestamp; topic={}, partition={}, offset={}: {}",
+				eventTime, record.topic(), record.partition(), record.offset(), e.getMessage());
+		}
+		return record.timestamp() >= 0 ? record.timestamp() : System.currentTimeMillis();
+	}
+
+	/**
+	 * @param time - epoch millis or ISO-8601 date-time with an offset, like 2019-03-01T10:15:30Z
+	 */
+	private static long parseTime(String time) {
+		if (!time.isEmpty() && time.chars().allMatch(Character::isDigit)) {
+			return Long.parseLong(time);
+		}
+		return ZonedDateTime.parse(time, DateTimeFormatter.ISO_DATE_TIME).toInstant().toEpochMilli();
+	}
+
+	/**
+	 * create indices of the current and of the next time buckets - if they are not created yet
+	 */
+	void precreateIndices() {
+		long timeMs = System.currentTimeMillis();
+		for (int i = 0; i <= numPrecreatedBuckets; i++) {
+			TimeBucket timeBucket = getTimeBucket(timeMs);
+			timeMs = timeBucket.endMs;
+			if (createdIndexNames.contains(timeBucket.indexName)) {
+				continue;
+			}
+			try {
+				elasticSearchClientService.createIndexAndAlias(timeBucket.indexName, aliasName);
+				logger.info("Pre-created index {} with alias {}", timeBucket.indexName, aliasName);
+			} catch (ResourceAlreadyExistsException e) {
+				logger.debug("Index {} exists already", timeBucket.indexName);
+			} catch (Exception e) {
+				// re-tried on the next run
+				logger.warn("Failed to pre-create index {}: {}", timeBucket.indexName, e.getMessage());
+				continue;
+			}
+			createdIndexNames.add(timeBucket.indexName);
+		}
+	}
+
+	public void setBaseIndexName(String baseIndexName) {
+		this.baseIndexName = baseIndexName;
+	}
+
+	public void setAliasName(String aliasName) {
+		this.aliasName = aliasName;
+	}
+
+	public void setTimeSource(TimeSource timeSource) {
+		this.timeSource = timeSource;
+	}
+
+	public void setTimeField(String timeField) {
+		this.timeField = timeField;
+	}
+
+	public void setTimeHeader(String timeHeader) {
+		this.timeHeader = timeHeader;
+	}
+
+	public void setBucketUnit(ChronoUnit bucketUnit) {
+		this.bucketUnit = bucketUnit;
+	}
+
+	public void setTimeFormat(String timeFormat) {
+		this.timeFormat = timeFormat;
+	}
+
+	public void setTimeZone(String timeZone) {
+		this.timeZone = timeZone;
+	}
+
+	public void setNumPrecreatedBuckets(int numPrecreatedBuckets) {
+		this.numPrecreatedBuckets = numPrecreatedBuckets;
+	}
+
+	public void setElasticSearchClientService(IElasticSearchClientService elasticSearchClientService) {
+		this.elasticSearchClientService = elasticSearchClientService;
+	}
+
+}
@@ -0,0 +1,116 @@
+package org.elasticsearch.kafka.indexer.service.impl;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Path;
+
+import org.apache.avro.Schema;
+import org.apache.avro.io.BinaryDecoder;
+import org.apache.avro.io.DecoderFactory;
+import org.apache.avro.util.Utf8;
+import org.elasticsearch.common.xcontent.XContentBuilder;
+
+/**
+ * Converts Avro binary encoded event values into JSON documents: the value is decoded field by field, following
+ * its writer schema, and each decoded field is written into the builder right away - no GenericRecord is built;
+ * strings are copied into the builder as UTF-8 bytes, without decoding them into Java Strings;
+ *
+ * union values are written as plain values (not wrapped into {"type": value} objects as in the Avro JSON encoding),
+ * enums - as their symbols, bytes and fixed - as base64 strings;
+ *
+ * schemas are loaded from the &lt;schema id&gt;.avsc files
+ */
+public class AvroValueConverter extends SchemaFileValueConverter<Schema> {
+
+	@Override
+	protected String getSchemaFileExtension() {
+		return ".avsc";
+	}
+
+	@Override
+	protected Schema loadSchema(Path schemaFile) throws IOException {
+		return new Schema.Parser().parse(schemaFile.toFile());
+	}
+
+	@Override
+	protected void convert(Schema schema, byte[] value, int offset, int length, XContentBuilder builder)
+			throws IOException {
+		BinaryDecoder decoder = DecoderFactory.get().binaryDecoder(value, offset, length, null);
+		writeValue(schema, decoder, builder, new Utf8());
+	}
+
+	private void writeValue(Schema schema, BinaryDecoder decoder, XContentBuilder builder, Utf8 utf8)
+			throws IOException {
+		switch (schema.getType()) {
+		case RECORD:
+			builder.startObject();
+			for (Schema.Field field : schema.getFields()) {
+				builder.field(field.name());
+				writeValue(field.schema(), decoder, builder, utf8);
+			}
+			builder.endObject();
+			break;
+		case ARRAY:
+			builder.startArray();
+			for (long blockSize = decoder.readArrayStart(); blockSize > 0; blockSize = decoder.arrayNext()) {
+				for (long i = 0; i < blockSize; i++) {
+					writeValue(schema.getElementType(), decoder, builder, utf8);
+				}
+			}
+			builder.endArray();
+			break;
+		case MAP:
+			builder.startObject();
+			for (long blockSize = decoder.readMapStart(); blockSize > 0; blockSize = decoder.mapNext()) {
+				for (long i = 0; i < blockSize; i++) {
+					builder.field(decoder.readString(utf8).toString());
+					writeValue(schema.getValueType(), decoder, builder, utf8);
+				}
+			}
+			builder.endObject();
+			break;
+		case UNION:
+			writeValue(schema.getTypes().get(decoder.readIndex()), decoder, builder, utf8);
+			break;
+		case ENUM:
+			builder.value(schema.getEnumSymbols().get(decoder.readEnum()));
+			break;
+		case FIXED:
+			byte[] fixed = new byte[schema.getFixedSize()];
+			decoder.readFixed(fixed);
+			builder.value(fixed);
+			break;
+		case BYTES:
+			ByteBuffer bytes = decoder.readBytes(null);
+			builder.value(bytes.array(), bytes.arrayOffset() + bytes.position(), bytes.remaining());
+			break;
+		case STRING:
+			// the Utf8 buffer is re-used for all strings - the builder copies its bytes right away
+			decoder.readString(utf8);
+			builder.utf8Value(utf8.getBytes(), 0, utf8.getByteLength());
+			break;
+		case INT:
+			builder.value(decoder.readInt());
+			break;
+		case LONG:
+			builder.value(decoder.readLong());
+			break;
+		case FLOAT:
+			builder.value(decoder.readFloat());
+			break;
+		case DOUBLE:
+			builder.value(decoder.readDouble());
+			break;
+		case BOOLEAN:
+			builder.value(decoder.readBoolean());
+			break;
+		case NULL:
+			decoder.readNull();
+			builder.nullValue();
+			break;
+		default:
+			throw new IOException("Unsupported Avro type: " + schema.getType());
+		}
+	}
+
+}
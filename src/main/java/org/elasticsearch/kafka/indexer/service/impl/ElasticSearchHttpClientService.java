@@ -0,0 +1,566 @@
+package org.elasticsearch.kafka.indexer.service.impl;
+
+import static org.elasticsearch.common.xcontent.XContentParserUtils.ensureExpectedToken;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.GZIPOutputStream;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+
+import org.apache.http.HttpEntity;
+import org.apache.http.HttpHost;
+import org.apache.http.entity.AbstractHttpEntity;
+import org.apache.http.entity.ContentType;
+import org.apache.http.nio.ContentEncoder;
+import org.apache.http.nio.IOControl;
+import org.apache.http.nio.entity.HttpAsyncContentProducer;
+import org.elasticsearch.ElasticsearchException;
+import org.elasticsearch.ElasticsearchStatusException;
+import org.elasticsearch.ResourceAlreadyExistsException;
+import org.elasticsearch.action.ActionListener;
+import org.elasticsearch.action.DocWriteRequest;
+import org.elasticsearch.action.bulk.BulkAction;
+import org.elasticsearch.action.bulk.BulkItemResponse;
+import org.elasticsearch.action.bulk.BulkRequest;
+import org.elasticsearch.action.bulk.BulkRequestBuilder;
+import org.elasticsearch.action.bulk.BulkResponse;
+import org.elasticsearch.action.index.IndexAction;
+import org.elasticsearch.action.index.IndexRequest;
+import org.elasticsearch.action.index.IndexRequestBuilder;
+import org.elasticsearch.action.support.PlainActionFuture;
+import org.elasticsearch.action.update.UpdateRequest;
+import org.elasticsearch.client.RequestOptions;
+import org.elasticsearch.client.ResponseException;
+import org.elasticsearch.client.ResponseListener;
+import org.elasticsearch.client.RestClient;
+import org.elasticsearch.client.transport.NoNodeAvailableException;
+import org.elasticsearch.common.Strings;
+import org.elasticsearch.common.bytes.BytesReference;
+import org.elasticsearch.common.lucene.uid.Versions;
+import org.elasticsearch.common.xcontent.DeprecationHandler;
+import org.elasticsearch.common.xcontent.NamedXContentRegistry;
+import org.elasticsearch.common.xcontent.XContentBuilder;
+import org.elasticsearch.common.xcontent.XContentFactory;
+import org.elasticsearch.common.xcontent.XContentHelper;
+import org.elasticsearch.common.xcontent.XContentParser;
+import org.elasticsearch.common.xcontent.XContentType;
+import org.elasticsearch.index.VersionType;
+import org.elasticsearch.kafka.indexer.exception.IndexerESNotRecoverableException;
+import org.elasticsearch.kafka.indexer.service.IElasticSearchClientService;
+import org.elasticsearch.rest.RestStatus;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+
+/**
+ * Indexing client that posts bulk requests to the HTTP _bulk API of the ES cluster instead of using the TransportClient:
+ * bulk requests are streamed as NDJSON - through a gzip stream if elasticsearch.http.compression.enabled is TRUE -
+ * over the persistent, pooled connections of the low level RestClient;
+ *
+ * _bulk responses are requested with filter_path - so that they carry errors of the failed items only - 
+ * and parsed with a streaming parser, see parseBulkResponse();
+ *
+ * Request builders created by this service are not bound to any ElasticsearchClient - they are only used to build
+ * the requests, which are posted with bulk(); only bulk requests are supported
+ */
+public class ElasticSearchHttpClientService implements IElasticSearchClientService {
+
+	private static final Logger logger = LoggerFactory.getLogger(ElasticSearchHttpClientService.class);
+	private static final String NDJSON_CONTENT_TYPE = "application/x-ndjson";
+	private static final byte NEW_LINE = '\n';
+	private static final String BULK_RESPONSE_FILTER_PATH = "took,errors,items.*.status,items.*.error";
+
+	@Value("#{'${elasticsearch.http.hosts.list:http://localhost:9200}'.split(',')}")
+	private List<String> esHttpHostList;
+	// compress bulk request bodies with gzip
+	@Value("${elasticsearch.http.compression.enabled:true}")
+	private boolean compressionEnabled;
+	@Value("${elasticsearch.http.max.connections.per.host:10}")
+	private int maxConnectionsPerHost;
+	@Value("${elasticsearch.http.max.connections.total:30}")
+	private int maxConnectionsTotal;
+	@Value("${elasticsearch.http.connect.timeout.ms:5000}")
+	private int connectTimeoutMs;
+	@Value("${elasticsearch.http.socket.timeout.ms:60000}")
+	private int socketTimeoutMs;
+	// sleep time in ms before re-creating the client if the ES cluster is not reachable
+	@Value("${elasticsearch.indexing.retry.sleep.ms:10000}")
+	private int esIndexingRetrySleepTimeMs;
+
+	private volatile RestClient restClient;
+	private final AtomicLong restClientGeneration = new AtomicLong(0L);
+
+	@PostConstruct
+	public void init() {
+		HttpHost[] httpHosts = esHttpHostList.stream()
+			.map(String::trim)
+			.map(HttpHost::create)
+			.toArray(HttpHost[]::new);
+		RestClient newRestClient = RestClient.builder(httpHosts)
+			.setRequestConfigCallback(requestConfigBuilder -> requestConfigBuilder
+				.setConnectTimeout(connectTimeoutMs)
+				.setSocketTimeout(socketTimeoutMs))
+			.setHttpClientConfigCallback(httpClientBuilder -> httpClientBuilder
+				.setMaxConnPerRoute(maxConnectionsPerHost)
+				.setMaxConnTotal(maxConnectionsTotal))
+			.setMaxRetryTimeoutMillis(socketTimeoutMs)
+			.build();
+		RestClient oldRestClient = restClient;
+		restClient = newRestClient;
+		restClientGeneration.incrementAndGet();
+		closeQuietly(oldRestClient);
+		logger.info("ElasticSearch HTTP Client created for hosts: {}, compressionEnabled: {}", esHttpHostList, compressionEnabled);
+	}
+
+	@PreDestroy
+	public void cleanup() {
+		logger.info("About to stop ES HTTP client ...");
+		closeQuietly(restClient);
+	}
+
+	private void closeQuietly(RestClient restClientToClose) {
+		if (restClientToClose == null) {
+			return;
+		}
+		try {
+			restClientToClose.close();
+		} catch (IOException e) {
+			logger.warn("Failed to close ES HTTP client: {}", e.getMessage());
+		}
+	}
+
+	@Override
+	public long getClientGeneration() {
+		return restClientGeneration.get();
+	}
+
+	/**
+	 * The RestClient re-tries failed hosts on its own - the client is only re-created once
+	 * for all workers that report the cluster as unreachable at the same time
+	 */
+	@Override
+	public void reInitElasticSearch(long failedClientGeneration) throws InterruptedException, IndexerESNotRecoverableException {
+		synchronized (this) {
+			if (restClientGeneration.get() != failedClientGeneration) {
+				logger.info("ES HTTP client was already re-created by another worker - not re-creating it again");
+				return;
+			}
+			Thread.sleep(esIndexingRetrySleepTimeMs);
+			logger.warn("Re-creating ES HTTP client for hosts: {}", esHttpHostList);
+			init();
+		}
+	}
+
+	@Override
+	public BulkRequestBuilder prepareBulk() {
+		return new BulkRequestBuilder(null, BulkAction.INSTANCE);
+	}
+
+	@Override
+	public IndexRequestBuilder prepareIndex(String indexName, String indexType, String eventUUID) {
+		return prepareIndex(indexName, indexType).setId(eventUUID);
+	}
+
+	@Override
+	public IndexRequestBuilder prepareIndex(String indexName, String indexType) {
+		return new IndexRequestBuilder(null, IndexAction.INSTANCE).setIndex(indexName).setType(indexType);
+	}
+
+	@Override
+	public void createIndexAndAlias(String indexName, String aliasName) {
+		org.elasticsearch.client.Request httpRequest = new org.elasticsearch.client.Request("PUT", "/" + indexName);
+		try {
+			XContentBuilder body = XContentFactory.jsonBuilder()
+				.startObject().startObject("aliases").startObject(aliasName).endObject().endObject().endObject();
+			httpRequest.setJsonEntity(Strings.toString(body));
+			restClient.performRequest(httpRequest);
+		} catch (ResponseException e) {
+			if (e.getResponse().getStatusLine().getStatusCode() == RestStatus.BAD_REQUEST.getStatus() && 
+				e.getMessage().contains("resource_already_exists_exception")) {
+				throw new ResourceAlreadyExistsException("index [{}] already exists", indexName);
+			}
+			throw new ElasticsearchException("Failed to create index " + indexName, e);
+		} catch (IOException e) {
+			throw new ElasticsearchException("Failed to create index " + indexName, e);
+		}
+		logger.info("Created index {} with alias {} successfully", indexName, aliasName);
+	}
+
+	@Override
+	public BulkResponse bulk(BulkRequest bulkRequest) {
+		PlainActionFuture<BulkResponse> responseFuture = PlainActionFuture.newFuture();
+		bulk(bulkRequest, responseFuture);
+		return responseFuture.actionGet();
+	}
+
+	@Override
+	public void bulk(BulkRequest bulkRequest, ActionListener<BulkResponse> listener) {
+		org.elasticsearch.client.Request httpRequest = new org.elasticsearch.client.Request("POST", "/_bulk");
+		// only failed items are needed from the response - status of the successful ones is kept to preserve item positions
+		httpRequest.addParameter("filter_path", BULK_RESPONSE_FILTER_PATH);
+		httpRequest.setEntity(buildBulkEntity(bulkRequest, compressionEnabled));
+		RequestOptions.Builder requestOptions = RequestOptions.DEFAULT.toBuilder();
+		if (compressionEnabled) {
+			requestOptions.addHeader("Content-Encoding", "gzip");
+		}
+		httpRequest.setOptions(requestOptions);
+		restClient.performRequestAsync(httpRequest, new ResponseListener() {
+			@Override
+			public void onSuccess(org.elasticsearch.client.Response response) {
+				try (InputStream responseStream = response.getEntity().getContent()) {
+					listener.onResponse(parseBulkResponse(responseStream, bulkRequest));
+				} catch (Exception e) {
+					listener.onFailure(e);
+				}
+			}
+
+			@Override
+			public void onFailure(Exception e) {
+				if (e instanceof ResponseException) {
+					// the whole bulk request was rejected - for example, with 429 or 503
+					org.elasticsearch.client.Response errorResponse = ((ResponseException) e).getResponse();
+					listener.onFailure(new ElasticsearchStatusException("Bulk request failed: " + e.getMessage(),
+						RestStatus.fromCode(errorResponse.getStatusLine().getStatusCode()), e));
+				} else if (e instanceof BulkBodyException) {
+					listener.onFailure(new ElasticsearchException(e.getMessage(), e.getCause()));
+				} else if (e instanceof IOException) {
+					// could not get any response from any of the hosts
+					listener.onFailure(new NoNodeAvailableException("ES cluster is unreachable via HTTP: " + e.getMessage(), e));
+				} else {
+					listener.onFailure(e);
+				}
+			}
+		});
+	}
+
+	/**
+	 * @param bulkRequest
+	 * @param compress - if TRUE - the body is gzipped as it is being written
+	 * @return request entity that streams the NDJSON _bulk body of the request, see BulkRequestEntity
+	 */
+	static HttpEntity buildBulkEntity(BulkRequest bulkRequest, boolean compress) {
+		return new BulkRequestEntity(bulkRequest, compress);
+	}
+
+	/**
+	 * NDJSON _bulk body of a bulk request: one action metadata line and one source line (for index and update requests)
+	 * per item; sources are written as they are - the body is never materialized as a whole:
+	 * the async HTTP client pulls it via produceContent(), a few items at a time, blocking consumers via writeTo();
+	 *
+	 * the entity is repeatable - the RestClient re-sends it to another host if the first one fails
+	 */
+	static class BulkRequestEntity extends AbstractHttpEntity implements HttpAsyncContentProducer {
+
+		// items are serialized into the chunk buffer until it has at least this many bytes
+		private static final int CHUNK_SIZE = 16 * 1024;
+
+		private final BulkRequest bulkRequest;
+		private final boolean compress;
+
+		// state of the async production - reset by close()
+		private ChunkBuffer chunkBuffer;
+		private OutputStream chunkStream;
+		private ByteBuffer pendingChunk;
+		private int nextItem;
+
+		private static class ChunkBuffer extends ByteArrayOutputStream {
+			private ChunkBuffer() {
+				super(CHUNK_SIZE * 2);
+			}
+
+			private ByteBuffer toByteBuffer() {
+				return ByteBuffer.wrap(buf, 0, count);
+			}
+		}
+
+		BulkRequestEntity(BulkRequest bulkRequest, boolean compress) {
+			this.bulkRequest = bulkRequest;
+			this.compress = compress;
+			setContentType(ContentType.create(NDJSON_CONTENT_TYPE).toString());
+		}
+
+		@Override
+		public boolean isRepeatable() {
+			return true;
+		}
+
+		@Override
+		public boolean isStreaming() {
+			return true;
+		}
+
+		@Override
+		public long getContentLength() {
+			// sent chunked
+			return -1L;
+		}
+
+		@Override
+		public void writeTo(OutputStream outputStream) throws IOException {
+			if (compress) {
+				GZIPOutputStream gzipStream = new GZIPOutputStream(outputStream, 8192);
+				writeItems(gzipStream);
+				// the underlying stream is not closed - only the gzip trailer is written
+				gzipStream.finish();
+			} else {
+				writeItems(outputStream);
+			}
+			outputStream.flush();
+		}
+
+		private void writeItems(OutputStream bodyStream) throws IOException {
+			for (DocWriteRequest<?> docWriteRequest : bulkRequest.requests()) {
+				writeItem(docWriteRequest, bodyStream);
+			}
+		}
+
+		/**
+		 * only used by consumers that do not support streaming - for example, request logging;
+		 * the body is written into memory
+		 */
+		@Override
+		public InputStream getContent() throws IOException {
+			ByteArrayOutputStream body = new ByteArrayOutputStream();
+			writeTo(body);
+			return new ByteArrayInputStream(body.toByteArray());
+		}
+
+		@Override
+		public void produceContent(ContentEncoder encoder, IOControl ioControl) throws IOException {
+			if (chunkBuffer == null) {
+				chunkBuffer = new ChunkBuffer();
+				chunkStream = compress ? new GZIPOutputStream(chunkBuffer, 8192) : chunkBuffer;
+			}
+			if (pendingChunk == null || !pendingChunk.hasRemaining()) {
+				if (!nextChunk()) {
+					encoder.complete();
+					return;
+				}
+			}
+			// the encoder may take only a part of the chunk - the rest is written on the next call
+			encoder.write(pendingChunk);
+		}
+
+		/**
+		 * @return FALSE if the whole body was produced already
+		 */
+		private boolean nextChunk() throws IOException {
+			List<DocWriteRequest<?>> requests = bulkRequest.requests();
+			if (nextItem > requests.size()) {
+				return false;
+			}
+			if (pendingChunk != null) {
+				// the previous chunk was sent - the gzip header written on creation of the stream is kept in the first one
+				chunkBuffer.reset();
+			}
+			// gzip keeps the written bytes until its deflater fills up - keep writing items until there is something to send
+			while (nextItem < requests.size() && chunkBuffer.size() < CHUNK_SIZE) {
+				try {
+					writeItem(requests.get(nextItem++), chunkStream);
+				} catch (IOException | RuntimeException e) {
+					throw new BulkBodyException(e);
+				}
+			}
+			if (nextItem == requests.size()) {
+				// the gzip trailer
+				chunkStream.close();
+				nextItem++;
+			}
+			pendingChunk = chunkBuffer.toByteBuffer();
+			return pendingChunk.hasRemaining() || nextChunk();
+		}
+
+		/**
+		 * called once the request was sent, or before it is re-sent to another host
+		 */
+		@Override
+		public void close() {
+			chunkBuffer = null;
+			chunkStream = null;
+			pendingChunk = null;
+			nextItem = 0;
+		}
+	}
+
+	/**
+	 * failure to serialize an item of the bulk body - not a connection failure
+	 */
+	static class BulkBodyException extends IOException {
+		private static final long serialVersionUID = 1L;
+
+		BulkBodyException(Exception cause) {
+			super("Failed to write bulk request body: " + cause.getMessage(), cause);
+		}
+	}
+
+	private static void writeItem(DocWriteRequest<?> docWriteRequest, OutputStream bulkBodyStream) throws IOException {
+		writeActionMetadata(docWriteRequest, bulkBodyStream);
+		bulkBodyStream.write(NEW_LINE);
+		if (docWriteRequest instanceof IndexRequest) {
+			writeSource((IndexRequest) docWriteRequest, bulkBodyStream);
+			bulkBodyStream.write(NEW_LINE);
+		} else if (docWriteRequest instanceof UpdateRequest) {
+			// doc, upsert, script, doc_as_upsert, etc. - as one line of JSON
+			XContentHelper.toXContent((UpdateRequest) docWriteRequest, XContentType.JSON, false).writeTo(bulkBodyStream);
+			bulkBodyStream.write(NEW_LINE);
+		}
+	}
+
+	private static void writeActionMetadata(DocWriteRequest<?> docWriteRequest, OutputStream bulkBodyStream) throws IOException {
+		String actionName;
+		switch (docWriteRequest.opType()) {
+			case INDEX:
+				actionName = "index";
+				break;
+			case CREATE:
+				actionName = "create";
+				break;
+			case DELETE:
+				actionName = "delete";
+				break;
+			case UPDATE:
+				actionName = "update";
+				break;
+			default:
+				throw new IllegalArgumentException("Bulk action is not supported by the HTTP client: " + docWriteRequest.opType());
+		}
+		// the builder is not closed - so that it does not close the underlying body stream; flush() is enough
+		XContentBuilder metadata = XContentFactory.jsonBuilder(bulkBodyStream);
+		metadata.startObject().startObject(actionName);
+		metadata.field("_index", docWriteRequest.index());
+		if (docWriteRequest.type() != null) {
+			metadata.field("_type", docWriteRequest.type());
+		}
+		if (docWriteRequest.id() != null) {
+			metadata.field("_id", docWriteRequest.id());
+		}
+		if (docWriteRequest.routing() != null) {
+			metadata.field("routing", docWriteRequest.routing());
+		}
+		if (docWriteRequest.version() != Versions.MATCH_ANY) {
+			metadata.field("version", docWriteRequest.version());
+		}
+		if (docWriteRequest.versionType() != VersionType.INTERNAL) {
+			metadata.field("version_type", docWriteRequest.versionType().name().toLowerCase(Locale.ROOT));
+		}
+		if (docWriteRequest instanceof UpdateRequest && ((UpdateRequest) docWriteRequest).retryOnConflict() > 0) {
+			metadata.field("retry_on_conflict", ((UpdateRequest) docWriteRequest).retryOnConflict());
+		}
+		if (docWriteRequest instanceof IndexRequest && ((IndexRequest) docWriteRequest).getPipeline() != null) {
+			metadata.field("pipeline", ((IndexRequest) docWriteRequest).getPipeline());
+		}
+		metadata.endObject().endObject();
+		metadata.flush();
+	}
+
+	private static void writeSource(IndexRequest indexRequest, OutputStream bulkBodyStream) throws IOException {
+		BytesReference source = indexRequest.source();
+		if (indexRequest.getContentType() == XContentType.JSON && !containsNewLine(source)) {
+			source.writeTo(bulkBodyStream);
+			return;
+		}
+		// NDJSON source must be one line of JSON - re-format pretty printed or non-JSON sources
+		bulkBodyStream.write(XContentHelper.convertToJson(source, true, false, indexRequest.getContentType())
+			.getBytes(StandardCharsets.UTF_8));
+	}
+
+	private static boolean containsNewLine(BytesReference source) {
+		for (int i = 0; i < source.length(); i++) {
+			if (source.get(i) == NEW_LINE) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * Parse the (filter_path filtered) _bulk response with a streaming parser: if the response has no errors - 
+	 * items are not parsed at all; otherwise only failed items are materialized, successful ones are skipped
+	 *
+	 * @param responseStream
+	 * @param bulkRequest - request the response is for; used to fill in the index, type and id of the failed items
+	 * @return bulk response that contains the failed items only - with their original item ids (positions in the request)
+	 * @throws IOException
+	 */
+	static BulkResponse parseBulkResponse(InputStream responseStream, BulkRequest bulkRequest) throws IOException {
+		long tookInMillis = 0L;
+		List<BulkItemResponse> failedItems = new ArrayList<>();
+		try (XContentParser parser = XContentType.JSON.xContent().createParser(
+			NamedXContentRegistry.EMPTY, DeprecationHandler.THROW_UNSUPPORTED_OPERATION, responseStream)) {
+			ensureExpectedToken(XContentParser.Token.START_OBJECT, parser.nextToken(), parser::getTokenLocation);
+			while (parser.nextToken() == XContentParser.Token.FIELD_NAME) {
+				String fieldName = parser.currentName();
+				XContentParser.Token token = parser.nextToken();
+				if ("took".equals(fieldName)) {
+					tookInMillis = parser.longValue();
+				} else if ("errors".equals(fieldName)) {
+					if (!parser.booleanValue()) {
+						// ES writes "errors" before "items" - nothing else to parse
+						return new BulkResponse(new BulkItemResponse[0], tookInMillis);
+					}
+				} else if ("items".equals(fieldName) && token == XContentParser.Token.START_ARRAY) {
+					parseFailedItems(parser, bulkRequest, failedItems);
+				} else {
+					parser.skipChildren();
+				}
+			}
+		}
+		return new BulkResponse(failedItems.toArray(new BulkItemResponse[failedItems.size()]), tookInMillis);
+	}
+
+	private static void parseFailedItems(XContentParser parser, BulkRequest bulkRequest, List<BulkItemResponse> failedItems) 
+			throws IOException {
+		int itemId = 0;
+		while (parser.nextToken() == XContentParser.Token.START_OBJECT) {
+			// each item is {"<opType>":{"status":..., "error":{...}}}
+			ensureExpectedToken(XContentParser.Token.FIELD_NAME, parser.nextToken(), parser::getTokenLocation);
+			String opType = parser.currentName();
+			ensureExpectedToken(XContentParser.Token.START_OBJECT, parser.nextToken(), parser::getTokenLocation);
+			int status = RestStatus.OK.getStatus();
+			ElasticsearchException itemError = null;
+			while (parser.nextToken() == XContentParser.Token.FIELD_NAME) {
+				String fieldName = parser.currentName();
+				parser.nextToken();
+				if ("status".equals(fieldName)) {
+					status = parser.intValue();
+				} else if ("error".equals(fieldName)) {
+					itemError = ElasticsearchException.fromXContent(parser);
+				} else {
+					parser.skipChildren();
+				}
+			}
+			ensureExpectedToken(XContentParser.Token.END_OBJECT, parser.nextToken(), parser::getTokenLocation);
+			if (itemError != null) {
+				DocWriteRequest<?> failedRequest = bulkRequest.requests().get(itemId);
+				failedItems.add(new BulkItemResponse(itemId, DocWriteRequest.OpType.fromString(opType), 
+					new BulkItemResponse.Failure(failedRequest.index(), failedRequest.type(), failedRequest.id(), 
+						itemError, RestStatus.fromCode(status))));
+			}
+			itemId++;
+		}
+	}
+
+	public void setEsHttpHostList(List<String> esHttpHostList) {
+		this.esHttpHostList = esHttpHostList;
+	}
+
+	public void setCompressionEnabled(boolean compressionEnabled) {
+		this.compressionEnabled = compressionEnabled;
+	}
+
+	public void setSocketTimeoutMs(int socketTimeoutMs) {
+		this.socketTimeoutMs = socketTimeoutMs;
+	}
+
+}
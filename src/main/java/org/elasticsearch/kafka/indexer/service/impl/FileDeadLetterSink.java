@@ -0,0 +1,92 @@
+package org.elasticsearch.kafka.indexer.service.impl;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+
+import org.apache.kafka.clients.consumer.ConsumerRecord;
+import org.elasticsearch.common.Strings;
+import org.elasticsearch.common.xcontent.XContentBuilder;
+import org.elasticsearch.common.xcontent.XContentFactory;
+import org.elasticsearch.kafka.indexer.service.IDeadLetterSink;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+
+/**
+ * Dead letter sink that appends failed events to a local file - one JSON document per line:
+ * {"topic":..,"partition":..,"offset":..,"timestamp":..,"key":..,"error":..,"value":..};
+ * values consumed in the raw bytes mode are written base64 encoded, as "value_base64" instead of "value" - 
+ * they are not necessarily UTF-8 text
+ */
+public class FileDeadLetterSink implements IDeadLetterSink {
+
+	private static final Logger logger = LoggerFactory.getLogger(FileDeadLetterSink.class);
+
+	@Value("${elasticsearch.deadletter.file.path:/tmp/logs/dead_letter_events.log}")
+	private String deadLetterFilePath;
+
+	private Writer deadLetterWriter;
+
+	@PostConstruct
+	public void init() throws IOException {
+		File deadLetterFile = new File(deadLetterFilePath);
+		if (deadLetterFile.getParentFile() != null) {
+			deadLetterFile.getParentFile().mkdirs();
+		}
+		deadLetterWriter = Files.newBufferedWriter(deadLetterFile.toPath(), StandardCharsets.UTF_8,
+			StandardOpenOption.CREATE, StandardOpenOption.APPEND);
+		logger.info("FileDeadLetterSink is writing failed events into {}", deadLetterFile.getAbsolutePath());
+	}
+
+	@PreDestroy
+	public synchronized void cleanup() throws IOException {
+		if (deadLetterWriter != null) {
+			deadLetterWriter.close();
+			deadLetterWriter = null;
+		}
+	}
+
+	/**
+	 * @throws IllegalStateException - if the sink is closed already
+	 */
+	@Override
+	public void sendFailedEvent(ConsumerRecord<String, ?> failedRecord, String errorMessage) throws IOException {
+		XContentBuilder jsonBuilder = XContentFactory.jsonBuilder()
+			.startObject()
+			.field("topic", failedRecord.topic())
+			.field("partition", failedRecord.partition())
+			.field("offset", failedRecord.offset())
+			.field("timestamp", failedRecord.timestamp())
+			.field("key", failedRecord.key())
+			.field("error", errorMessage);
+		if (failedRecord.value() instanceof byte[]) {
+			// binary fields are written base64 encoded
+			jsonBuilder.field("value_base64", (byte[]) failedRecord.value());
+		} else {
+			jsonBuilder.field("value", failedRecord.value());
+		}
+		jsonBuilder.endObject();
+		String deadLetterLine = Strings.toString(jsonBuilder);
+		synchronized (this) {
+			if (deadLetterWriter == null) {
+				throw new IllegalStateException("Dead letter file is closed - failed to store event: topic=" + 
+					failedRecord.topic() + ", partition=" + failedRecord.partition() + ", offset=" + failedRecord.offset());
+			}
+			deadLetterWriter.write(deadLetterLine);
+			deadLetterWriter.write('\n');
+			deadLetterWriter.flush();
+		}
+	}
+
+	public void setDeadLetterFilePath(String deadLetterFilePath) {
+		this.deadLetterFilePath = deadLetterFilePath;
+	}
+
+}
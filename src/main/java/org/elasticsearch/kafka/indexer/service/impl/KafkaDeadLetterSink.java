@@ -0,0 +1,93 @@
+package org.elasticsearch.kafka.indexer.service.impl;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Properties;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import javax.annotation.Resource;
+
+import org.apache.kafka.clients.consumer.ConsumerRecord;
+import org.apache.kafka.clients.producer.KafkaProducer;
+import org.apache.kafka.clients.producer.Producer;
+import org.apache.kafka.clients.producer.ProducerConfig;
+import org.apache.kafka.clients.producer.ProducerRecord;
+import org.apache.kafka.common.serialization.ByteArraySerializer;
+import org.apache.kafka.common.serialization.StringSerializer;
+import org.elasticsearch.kafka.indexer.CommonKafkaUtils;
+import org.elasticsearch.kafka.indexer.FailedEventsLogger;
+import org.elasticsearch.kafka.indexer.service.IDeadLetterSink;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+
+/**
+ * Dead letter sink that re-publishes failed events into a Kafka topic;
+ * key and value of the original record are kept as is (values consumed in the raw bytes mode - byte for byte), and the original topic, partition, offset 
+ * and the error message are added as record headers
+ */
+public class KafkaDeadLetterSink implements IDeadLetterSink {
+
+	private static final Logger logger = LoggerFactory.getLogger(KafkaDeadLetterSink.class);
+	public static final String HEADER_ORIGINAL_TOPIC = "dlq.original.topic";
+	public static final String HEADER_ORIGINAL_PARTITION = "dlq.original.partition";
+	public static final String HEADER_ORIGINAL_OFFSET = "dlq.original.offset";
+	public static final String HEADER_ERROR = "dlq.error";
+
+	@Value("${elasticsearch.deadletter.kafka.topic:kafka_es_indexer_dead_letters}")
+	private String deadLetterTopic;
+	@Value("${elasticsearch.deadletter.kafka.property.prefix:deadletter.kafka.property.}")
+	private String producerKafkaPropertyPrefix;
+	@Resource(name = "applicationProperties")
+	private Properties applicationProperties;
+
+	private Producer<String, byte[]> producer;
+
+	@PostConstruct
+	public void init() {
+		Properties kafkaProperties = CommonKafkaUtils.extractKafkaProperties(applicationProperties, producerKafkaPropertyPrefix);
+		// add non-configurable properties
+		kafkaProperties.put(ProducerConfig.KEY_SERIALIZER_CLASS_CONFIG, StringSerializer.class.getName());
+		kafkaProperties.put(ProducerConfig.VALUE_SERIALIZER_CLASS_CONFIG, ByteArraySerializer.class.getName());
+		producer = new KafkaProducer<>(kafkaProperties);
+		logger.info("KafkaDeadLetterSink is sending failed events into topic {} with properties: {}", 
+			deadLetterTopic, kafkaProperties);
+	}
+
+	@PreDestroy
+	public void cleanup() {
+		if (producer != null) {
+			producer.close();
+		}
+	}
+
+	@Override
+	public void sendFailedEvent(ConsumerRecord<String, ?> failedRecord, String errorMessage) {
+		ProducerRecord<String, byte[]> deadLetterRecord = new ProducerRecord<>(
+			deadLetterTopic, failedRecord.key(), CommonKafkaUtils.toValueBytes(failedRecord));
+		deadLetterRecord.headers()
+			.add(HEADER_ORIGINAL_TOPIC, failedRecord.topic().getBytes(StandardCharsets.UTF_8))
+			.add(HEADER_ORIGINAL_PARTITION, String.valueOf(failedRecord.partition()).getBytes(StandardCharsets.UTF_8))
+			.add(HEADER_ORIGINAL_OFFSET, String.valueOf(failedRecord.offset()).getBytes(StandardCharsets.UTF_8))
+			.add(HEADER_ERROR, String.valueOf(errorMessage).getBytes(StandardCharsets.UTF_8));
+		// the send is not waited for - offsets of the event may be committed before it fails, 
+		// so the whole event is logged then, the same way as when there is no dead letter sink
+		producer.send(deadLetterRecord, (metadata, exception) -> {
+			if (exception != null) {
+				logger.error("Failed to send dead letter event: topic={}, partition={}, offset={}: {}",
+					failedRecord.topic(), failedRecord.partition(), failedRecord.offset(), exception.getMessage());
+				FailedEventsLogger.logFailedEvent(errorMessage, CommonKafkaUtils.toStringValueRecord(failedRecord).value(), 
+					failedRecord.offset());
+			}
+		});
+	}
+
+	public void setProducer(Producer<String, byte[]> producer) {
+		this.producer = producer;
+	}
+
+	public void setDeadLetterTopic(String deadLetterTopic) {
+		this.deadLetterTopic = deadLetterTopic;
+	}
+
+}
@@ -0,0 +1,320 @@
+package org.elasticsearch.kafka.indexer.service.impl;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.function.Consumer;
+import java.util.zip.CRC32;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+
+import org.apache.kafka.clients.consumer.ConsumerRecord;
+import org.apache.kafka.common.record.TimestampType;
+import org.elasticsearch.kafka.indexer.CommonKafkaUtils;
+import org.elasticsearch.kafka.indexer.service.IDeadLetterSink;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+
+/**
+ * Dead letter sink that appends failed events to memory-mapped, append-only segment files -
+ * instead of writing them into the log, so that they can be replayed later via the DeadLetterReplayProcess;
+ *
+ * Each segment file is pre-allocated to elasticsearch.deadletter.store.segment.size.bytes and named after its id
+ * (00000000000000000001.dls, ...); when the current segment is full - a new one is started, and the oldest segments
+ * over elasticsearch.deadletter.store.max.segments are deleted;
+ *
+ * Binary format of one record (big endian):
+ * int recordLength (# of bytes after this field), int crc32 (of the bytes after this field),
+ * long offset, int partition, long timestamp,
+ * and then topic, key, error and payload - each as int length (-1 for NULL) followed by the bytes:
+ * UTF-8 for the strings, the value of the record as is for the payload (UTF-8 of String values - as consumed in the raw bytes mode);
+ * recordLength == 0 marks the end of the written data in a segment
+ */
+public class MappedSegmentDeadLetterStore implements IDeadLetterSink {
+
+	private static final Logger logger = LoggerFactory.getLogger(MappedSegmentDeadLetterStore.class);
+	public static final String SEGMENT_FILE_SUFFIX = ".dls";
+	// recordLength + crc32
+	private static final int RECORD_HEADER_SIZE = 8;
+	// offset + partition + timestamp + 4 string lengths
+	private static final int RECORD_FIXED_BODY_SIZE = 8 + 4 + 8 + 4 * 4;
+
+	@Value("${elasticsearch.deadletter.store.dir:/tmp/dead_letter_store}")
+	private String storeDir;
+	@Value("${elasticsearch.deadletter.store.segment.size.bytes:67108864}")
+	private int segmentSizeBytes;
+	// max number of segment files to keep; 0 - keep all
+	@Value("${elasticsearch.deadletter.store.max.segments:10}")
+	private int maxSegments;
+
+	private long currentSegmentId;
+	private FileChannel currentSegmentChannel;
+	private MappedByteBuffer currentSegmentBuffer;
+	// set by the cleanup(); guarded by this store's lock - same as the current segment
+	private boolean closed;
+
+	@PostConstruct
+	public void init() throws IOException {
+		File storeDirFile = new File(storeDir);
+		if (!storeDirFile.isDirectory() && !storeDirFile.mkdirs()) {
+			throw new IOException("Failed to create dead letter store directory: " + storeDirFile.getAbsolutePath());
+		}
+		List<Long> segmentIds = listSegmentIds(storeDirFile);
+		if (segmentIds.isEmpty()) {
+			openSegment(1L);
+		} else {
+			// continue appending to the last segment - after its last valid record
+			openSegment(segmentIds.get(segmentIds.size() - 1));
+			currentSegmentBuffer.position(findEndOfData(currentSegmentBuffer));
+		}
+		logger.info("MappedSegmentDeadLetterStore is writing failed events into {}, current segment: {}, position: {}",
+			storeDirFile.getAbsolutePath(), currentSegmentId, currentSegmentBuffer.position());
+	}
+
+	@PreDestroy
+	public synchronized void cleanup() throws IOException {
+		closed = true;
+		closeCurrentSegment();
+	}
+
+	/**
+	 * @throws IllegalStateException - if the store is closed already
+	 */
+	@Override
+	public void sendFailedEvent(ConsumerRecord<String, ?> failedRecord, String errorMessage) throws IOException {
+		byte[] topic = toBytes(failedRecord.topic());
+		byte[] key = toBytes(failedRecord.key());
+		byte[] error = toBytes(errorMessage);
+		byte[] payload = CommonKafkaUtils.toValueBytes(failedRecord);
+		int recordLength = 4 + RECORD_FIXED_BODY_SIZE + length(topic) + length(key) + length(error) + length(payload);
+		// a record must fit into a segment - including the end of data marker after it
+		if (4 + recordLength + 4 > segmentSizeBytes) {
+			throw new IOException("Dead letter record of " + recordLength + " bytes does not fit into a segment of " +
+				segmentSizeBytes + " bytes; offset=" + failedRecord.offset());
+		}
+		ByteBuffer body = ByteBuffer.allocate(recordLength - 4);
+		body.putLong(failedRecord.offset());
+		body.putInt(failedRecord.partition());
+		body.putLong(failedRecord.timestamp());
+		putBytes(body, topic);
+		putBytes(body, key);
+		putBytes(body, error);
+		putBytes(body, payload);
+		CRC32 crc = new CRC32();
+		crc.update(body.array());
+		synchronized (this) {
+			if (closed) {
+				throw new IllegalStateException("Dead letter store is closed - failed to store event: topic=" + 
+					failedRecord.topic() + ", partition=" + failedRecord.partition() + ", offset=" + failedRecord.offset());
+			}
+			if (currentSegmentBuffer.remaining() < 4 + recordLength + 4) {
+				rollSegment();
+			}
+			int recordStart = currentSegmentBuffer.position();
+			// write the body first and the length last - so that a partially written record is never visible
+			currentSegmentBuffer.position(recordStart + RECORD_HEADER_SIZE);
+			currentSegmentBuffer.put(body.array());
+			int recordEnd = currentSegmentBuffer.position();
+			currentSegmentBuffer.putInt(recordStart + 4, (int) crc.getValue());
+			currentSegmentBuffer.putInt(recordStart, recordLength);
+			currentSegmentBuffer.position(recordEnd);
+		}
+	}
+
+	private void rollSegment() throws IOException {
+		long nextSegmentId = currentSegmentId + 1;
+		closeCurrentSegment();
+		openSegment(nextSegmentId);
+		applyRetention();
+		logger.info("Rolled dead letter store to a new segment: {}", currentSegmentId);
+	}
+
+	private void openSegment(long segmentId) throws IOException {
+		File segmentFile = getSegmentFile(new File(storeDir), segmentId);
+		RandomAccessFile segmentRandomAccessFile = new RandomAccessFile(segmentFile, "rw");
+		currentSegmentChannel = segmentRandomAccessFile.getChannel();
+		currentSegmentBuffer = currentSegmentChannel.map(FileChannel.MapMode.READ_WRITE, 0, segmentSizeBytes);
+		currentSegmentId = segmentId;
+	}
+
+	private void closeCurrentSegment() throws IOException {
+		if (currentSegmentChannel != null) {
+			currentSegmentBuffer.force();
+			currentSegmentChannel.close();
+			currentSegmentChannel = null;
+			currentSegmentBuffer = null;
+		}
+	}
+
+	private void applyRetention() {
+		if (maxSegments <= 0) {
+			return;
+		}
+		List<Long> segmentIds = listSegmentIds(new File(storeDir));
+		for (int i = 0; i < segmentIds.size() - maxSegments; i++) {
+			File oldSegmentFile = getSegmentFile(new File(storeDir), segmentIds.get(i));
+			if (oldSegmentFile.delete()) {
+				logger.warn("Deleted dead letter store segment {} - over the max number of segments: {}",
+					oldSegmentFile.getName(), maxSegments);
+			} else {
+				logger.error("Failed to delete dead letter store segment {}", oldSegmentFile.getAbsolutePath());
+			}
+		}
+	}
+
+	/**
+	 * Read all valid records of one segment file; reading stops at the end of the written data
+	 * or at the first corrupted (partially written) record
+	 *
+	 * @param segmentFile
+	 * @param recordConsumer - called for each record, in the order records were written - with the payload as the raw value;
+	 * the error message of the record is not part of the ConsumerRecord - it is only logged in debug mode
+	 * @return number of records read
+	 * @throws IOException
+	 */
+	public static int readSegment(File segmentFile, Consumer<ConsumerRecord<String, byte[]>> recordConsumer) throws IOException {
+		int numRecords = 0;
+		try (RandomAccessFile segmentRandomAccessFile = new RandomAccessFile(segmentFile, "r");
+			FileChannel segmentChannel = segmentRandomAccessFile.getChannel()) {
+			MappedByteBuffer segmentBuffer = segmentChannel.map(FileChannel.MapMode.READ_ONLY, 0, segmentChannel.size());
+			while (readValidRecordLength(segmentBuffer) > 0) {
+				int recordLength = segmentBuffer.getInt();
+				// skip the crc - it was validated already
+				segmentBuffer.getInt();
+				ByteBuffer body = segmentBuffer.slice();
+				body.limit(recordLength - 4);
+				segmentBuffer.position(segmentBuffer.position() + recordLength - 4);
+				long offset = body.getLong();
+				int partition = body.getInt();
+				long timestamp = body.getLong();
+				String topic = getString(body);
+				String key = getString(body);
+				String error = getString(body);
+				byte[] payload = getBytes(body);
+				logger.debug("Read dead letter record: topic={}, partition={}, offset={}, error={}", topic, partition, offset, error);
+				recordConsumer.accept(new ConsumerRecord<>(topic, partition, offset, timestamp, TimestampType.CREATE_TIME,
+					(long) ConsumerRecord.NULL_CHECKSUM, ConsumerRecord.NULL_SIZE, ConsumerRecord.NULL_SIZE, key, payload));
+				numRecords++;
+			}
+		}
+		return numRecords;
+	}
+
+	/**
+	 * @return length of the record at the current position of the buffer if it is complete and valid, 0 otherwise
+	 */
+	private static int readValidRecordLength(ByteBuffer segmentBuffer) {
+		int recordStart = segmentBuffer.position();
+		if (segmentBuffer.remaining() < RECORD_HEADER_SIZE) {
+			return 0;
+		}
+		int recordLength = segmentBuffer.getInt(recordStart);
+		if (recordLength < 4 + RECORD_FIXED_BODY_SIZE || recordLength > segmentBuffer.remaining() - 4) {
+			return 0;
+		}
+		ByteBuffer body = segmentBuffer.duplicate();
+		body.position(recordStart + RECORD_HEADER_SIZE);
+		body.limit(recordStart + 4 + recordLength);
+		CRC32 crc = new CRC32();
+		crc.update(body);
+		if ((int) crc.getValue() != segmentBuffer.getInt(recordStart + 4)) {
+			logger.warn("Corrupted dead letter record found at position {} - ignoring the rest of the segment", recordStart);
+			return 0;
+		}
+		return recordLength;
+	}
+
+	private static int findEndOfData(ByteBuffer segmentBuffer) {
+		ByteBuffer readBuffer = segmentBuffer.duplicate();
+		readBuffer.position(0);
+		int recordLength;
+		while ((recordLength = readValidRecordLength(readBuffer)) > 0) {
+			readBuffer.position(readBuffer.position() + 4 + recordLength);
+		}
+		return readBuffer.position();
+	}
+
+	/**
+	 * @param storeDir
+	 * @return ids of all segments in the store directory - in ascending order
+	 */
+	public static List<Long> listSegmentIds(File storeDir) {
+		List<Long> segmentIds = new ArrayList<>();
+		File[] segmentFiles = storeDir.listFiles((dir, name) -> name.endsWith(SEGMENT_FILE_SUFFIX));
+		if (segmentFiles == null) {
+			return segmentIds;
+		}
+		Arrays.stream(segmentFiles).forEach(segmentFile -> {
+			String segmentName = segmentFile.getName();
+			try {
+				segmentIds.add(Long.parseLong(segmentName.substring(0, segmentName.length() - SEGMENT_FILE_SUFFIX.length())));
+			} catch (NumberFormatException e) {
+				logger.warn("Ignoring file with unexpected name in the dead letter store: {}", segmentName);
+			}
+		});
+		segmentIds.sort(null);
+		return segmentIds;
+	}
+
+	public static File getSegmentFile(File storeDir, long segmentId) {
+		return new File(storeDir, String.format("%020d%s", segmentId, SEGMENT_FILE_SUFFIX));
+	}
+
+	private static byte[] toBytes(String value) {
+		return value == null ? null : value.getBytes(StandardCharsets.UTF_8);
+	}
+
+	private static int length(byte[] value) {
+		return value == null ? 0 : value.length;
+	}
+
+	private static void putBytes(ByteBuffer buffer, byte[] value) {
+		if (value == null) {
+			buffer.putInt(-1);
+			return;
+		}
+		buffer.putInt(value.length);
+		buffer.put(value);
+	}
+
+	private static byte[] getBytes(ByteBuffer buffer) {
+		int length = buffer.getInt();
+		if (length < 0) {
+			return null;
+		}
+		byte[] value = new byte[length];
+		buffer.get(value);
+		return value;
+	}
+
+	private static String getString(ByteBuffer buffer) {
+		byte[] value = getBytes(buffer);
+		return value == null ? null : new String(value, StandardCharsets.UTF_8);
+	}
+
+	public long getCurrentSegmentId() {
+		return currentSegmentId;
+	}
+
+	public void setStoreDir(String storeDir) {
+		this.storeDir = storeDir;
+	}
+
+	public void setSegmentSizeBytes(int segmentSizeBytes) {
+		this.segmentSizeBytes = segmentSizeBytes;
+	}
+
+	public void setMaxSegments(int maxSegments) {
+		this.maxSegments = maxSegments;
+	}
+
+}
@@ -0,0 +1,189 @@
+package org.elasticsearch.kafka.indexer.service.impl;
+
+import java.io.IOException;
+import java.math.BigInteger;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.elasticsearch.common.xcontent.XContentBuilder;
+
+import com.google.protobuf.ByteString;
+import com.google.protobuf.CodedInputStream;
+import com.google.protobuf.DescriptorProtos.FileDescriptorProto;
+import com.google.protobuf.DescriptorProtos.FileDescriptorSet;
+import com.google.protobuf.Descriptors.Descriptor;
+import com.google.protobuf.Descriptors.DescriptorValidationException;
+import com.google.protobuf.Descriptors.EnumValueDescriptor;
+import com.google.protobuf.Descriptors.FieldDescriptor;
+import com.google.protobuf.Descriptors.FileDescriptor;
+import com.google.protobuf.DynamicMessage;
+import com.google.protobuf.Message;
+
+/**
+ * Converts Protobuf encoded event values into JSON documents, using the message descriptors from
+ * the &lt;schema id&gt;.desc files - FileDescriptorSets generated by protoc with --include_imports --descriptor_set_out;
+ * the last file of the set is the schema file, the other ones are its imports;
+ *
+ * after the schema id the value has the Confluent message indexes - the path to the message type in the schema file;
+ *
+ * fields are written under their names from the .proto file; 64-bit integers are written as numbers, enums - as
+ * their names, bytes - as base64 strings; fields with default values are not written - same as in the proto3 JSON mapping;
+ *
+ * note: Protobuf fields can be encoded in any order, and elements of repeated fields do not have to be next to each other -
+ * so, unlike Avro values, the message is parsed (into a DynamicMessage) before it is written into the builder;
+ * still, no intermediate JSON String or tree is built
+ */
+public class ProtobufValueConverter extends SchemaFileValueConverter<FileDescriptor> {
+
+	@Override
+	protected String getSchemaFileExtension() {
+		return ".desc";
+	}
+
+	@Override
+	protected FileDescriptor loadSchema(Path schemaFile) throws IOException {
+		FileDescriptorSet descriptorSet = FileDescriptorSet.parseFrom(Files.readAllBytes(schemaFile));
+		if (descriptorSet.getFileCount() == 0) {
+			throw new IOException("No file descriptors in " + schemaFile);
+		}
+		// protoc writes the imported files before the files that import them
+		Map<String, FileDescriptor> fileDescriptors = new HashMap<>();
+		FileDescriptor fileDescriptor = null;
+		for (FileDescriptorProto fileDescriptorProto : descriptorSet.getFileList()) {
+			FileDescriptor[] dependencies = new FileDescriptor[fileDescriptorProto.getDependencyCount()];
+			for (int i = 0; i < dependencies.length; i++) {
+				dependencies[i] = fileDescriptors.get(fileDescriptorProto.getDependency(i));
+				if (dependencies[i] == null) {
+					throw new IOException("Import " + fileDescriptorProto.getDependency(i) + " of " +
+						fileDescriptorProto.getName() + " is missing in " + schemaFile);
+				}
+			}
+			try {
+				fileDescriptor = FileDescriptor.buildFrom(fileDescriptorProto, dependencies);
+			} catch (DescriptorValidationException e) {
+				throw new IOException("Invalid file descriptor " + fileDescriptorProto.getName() + " in " + schemaFile, e);
+			}
+			fileDescriptors.put(fileDescriptorProto.getName(), fileDescriptor);
+		}
+		return fileDescriptor;
+	}
+
+	@Override
+	protected void convert(FileDescriptor schema, byte[] value, int offset, int length, XContentBuilder builder)
+			throws IOException {
+		CodedInputStream input = CodedInputStream.newInstance(value, offset, length);
+		Descriptor messageType = readMessageType(schema, input);
+		writeMessage(DynamicMessage.parseFrom(messageType, input), builder);
+	}
+
+	/**
+	 * read the message indexes: their count and the indexes - all zigzag varints;
+	 * a zero count is a shortcut for the first message type of the file
+	 */
+	private Descriptor readMessageType(FileDescriptor schema, CodedInputStream input) throws IOException {
+		int numIndexes = input.readSInt32();
+		if (numIndexes == 0) {
+			return getMessageType(schema.getMessageTypes(), 0);
+		}
+		Descriptor messageType = getMessageType(schema.getMessageTypes(), input.readSInt32());
+		for (int i = 1; i < numIndexes; i++) {
+			messageType = getMessageType(messageType.getNestedTypes(), input.readSInt32());
+		}
+		return messageType;
+	}
+
+	private Descriptor getMessageType(List<Descriptor> messageTypes, int index) throws IOException {
+		if (index < 0 || index >= messageTypes.size()) {
+			throw new IOException("Invalid message index: " + index + ", number of message types: " + messageTypes.size());
+		}
+		return messageTypes.get(index);
+	}
+
+	private void writeMessage(Message message, XContentBuilder builder) throws IOException {
+		builder.startObject();
+		for (Map.Entry<FieldDescriptor, Object> field : message.getAllFields().entrySet()) {
+			FieldDescriptor fieldDescriptor = field.getKey();
+			builder.field(fieldDescriptor.getName());
+			if (fieldDescriptor.isMapField()) {
+				writeMap(fieldDescriptor, (List<?>) field.getValue(), builder);
+			} else if (fieldDescriptor.isRepeated()) {
+				builder.startArray();
+				for (Object element : (List<?>) field.getValue()) {
+					writeValue(fieldDescriptor, element, builder);
+				}
+				builder.endArray();
+			} else {
+				writeValue(fieldDescriptor, field.getValue(), builder);
+			}
+		}
+		builder.endObject();
+	}
+
+	private void writeMap(FieldDescriptor fieldDescriptor, List<?> entries, XContentBuilder builder) throws IOException {
+		FieldDescriptor keyDescriptor = fieldDescriptor.getMessageType().findFieldByNumber(1);
+		FieldDescriptor valueDescriptor = fieldDescriptor.getMessageType().findFieldByNumber(2);
+		builder.startObject();
+		for (Object entry : entries) {
+			Message entryMessage = (Message) entry;
+			builder.field(String.valueOf(entryMessage.getField(keyDescriptor)));
+			writeValue(valueDescriptor, entryMessage.getField(valueDescriptor), builder);
+		}
+		builder.endObject();
+	}
+
+	private void writeValue(FieldDescriptor fieldDescriptor, Object value, XContentBuilder builder) throws IOException {
+		switch (fieldDescriptor.getType()) {
+		case MESSAGE:
+		case GROUP:
+			writeMessage((Message) value, builder);
+			break;
+		case ENUM:
+			builder.value(((EnumValueDescriptor) value).getName());
+			break;
+		case BYTES:
+			builder.value(((ByteString) value).toByteArray());
+			break;
+		case STRING:
+			builder.value((String) value);
+			break;
+		case UINT32:
+		case FIXED32:
+			builder.value(Integer.toUnsignedLong((Integer) value));
+			break;
+		case UINT64:
+		case FIXED64:
+			long unsignedValue = (Long) value;
+			if (unsignedValue >= 0) {
+				builder.value(unsignedValue);
+			} else {
+				builder.value(new BigInteger(Long.toUnsignedString(unsignedValue)));
+			}
+			break;
+		case INT32:
+		case SINT32:
+		case SFIXED32:
+			builder.value((Integer) value);
+			break;
+		case INT64:
+		case SINT64:
+		case SFIXED64:
+			builder.value((Long) value);
+			break;
+		case FLOAT:
+			builder.value((Float) value);
+			break;
+		case DOUBLE:
+			builder.value((Double) value);
+			break;
+		case BOOL:
+			builder.value((Boolean) value);
+			break;
+		default:
+			throw new IOException("Unsupported Protobuf type: " + fieldDescriptor.getType());
+		}
+	}
+
+}
@@ -0,0 +1,91 @@
+package org.elasticsearch.kafka.indexer.service.impl;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import org.elasticsearch.common.xcontent.XContentBuilder;
+import org.elasticsearch.kafka.indexer.service.IRecordValueConverter;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+
+/**
+ * Base class of the converters of values that were serialized in the Confluent wire format:
+ * [magic byte 0][4 bytes - big endian schema id][serialized value];
+ *
+ * schemas are loaded from the local kafka.consumer.value.schema.dir directory - from the
+ * &lt;schema id&gt;&lt;schema file extension&gt; files - when they are needed for the first time,
+ * and are cached by their schema id
+ *
+ * @param <S> - type of the loaded schemas
+ */
+public abstract class SchemaFileValueConverter<S> implements IRecordValueConverter {
+
+	private static final Logger logger = LoggerFactory.getLogger(SchemaFileValueConverter.class);
+	public static final byte MAGIC_BYTE = 0;
+	public static final int HEADER_SIZE = 5;
+
+	@Value("${kafka.consumer.value.schema.dir:/tmp/schemas}")
+	private String schemaDir;
+	private final ConcurrentMap<Integer, S> schemas = new ConcurrentHashMap<>();
+
+	@Override
+	public void convert(byte[] value, XContentBuilder builder) throws Exception {
+		if (value.length < HEADER_SIZE || value[0] != MAGIC_BYTE) {
+			throw new IllegalArgumentException("Event value is not in the schema id prefixed wire format: " +
+				value.length + " bytes, first byte: " + (value.length > 0 ? value[0] : "none"));
+		}
+		int schemaId = ByteBuffer.wrap(value, 1, 4).getInt();
+		convert(getSchema(schemaId), value, HEADER_SIZE, value.length - HEADER_SIZE, builder);
+	}
+
+	/**
+	 * @param schemaId
+	 * @return schema with this id - from the cache, or loaded from its schema file
+	 * @throws IOException - if the schema file does not exist or is not a valid schema
+	 */
+	public S getSchema(int schemaId) throws IOException {
+		S schema = schemas.get(schemaId);
+		if (schema != null) {
+			return schema;
+		}
+		Path schemaFile = Paths.get(schemaDir, schemaId + getSchemaFileExtension());
+		schema = loadSchema(schemaFile);
+		// several consumer threads could have loaded the same schema at the same time - keep only one of them
+		S cachedSchema = schemas.putIfAbsent(schemaId, schema);
+		if (cachedSchema != null) {
+			return cachedSchema;
+		}
+		logger.info("Loaded schema with id {} from {}", schemaId, schemaFile);
+		return schema;
+	}
+
+	/**
+	 * @return extension of the schema files, for example: ".avsc"
+	 */
+	protected abstract String getSchemaFileExtension();
+
+	protected abstract S loadSchema(Path schemaFile) throws IOException;
+
+	/**
+	 * write the serialized value into the builder as one JSON object
+	 *
+	 * @param schema - schema the value was serialized with
+	 * @param value - bytes of the event value, including the wire format header
+	 * @param offset - offset of the serialized value in the bytes
+	 * @param length - length of the serialized value
+	 * @param builder
+	 * @throws IOException
+	 */
+	protected abstract void convert(S schema, byte[] value, int offset, int length, XContentBuilder builder)
+			throws IOException;
+
+	public void setSchemaDir(String schemaDir) {
+		this.schemaDir = schemaDir;
+	}
+
+}
@@ -4,18 +4,34 @@
  */
 package org.elasticsearch.kafka.indexer.service.impl.examples;
 
+import java.io.IOException;
 import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+
+import javax.annotation.PostConstruct;
 
 import org.apache.commons.lang3.StringUtils;
 import org.apache.kafka.clients.consumer.ConsumerRecord;
 import org.apache.kafka.clients.consumer.OffsetAndMetadata;
 import org.apache.kafka.common.TopicPartition;
+import org.elasticsearch.action.DocWriteRequest;
+import org.elasticsearch.action.index.IndexRequest;
+import org.elasticsearch.common.xcontent.XContentBuilder;
+import org.elasticsearch.common.xcontent.XContentFactory;
+import org.elasticsearch.common.xcontent.XContentType;
 import org.elasticsearch.kafka.indexer.exception.ConsumerRecoverableException;
 import org.elasticsearch.kafka.indexer.exception.IndexerESRecoverableException;
+import org.elasticsearch.kafka.indexer.service.DocumentIdResolver;
+import org.elasticsearch.kafka.indexer.service.DocumentProjection;
 import org.elasticsearch.kafka.indexer.service.ElasticSearchBatchService;
+import org.elasticsearch.kafka.indexer.service.HeaderRoutingResolver;
 import org.elasticsearch.kafka.indexer.service.IBatchMessageProcessor;
+import org.elasticsearch.kafka.indexer.service.IRecordValueConverter;
+import org.elasticsearch.kafka.indexer.service.TimeBasedIndexRouter;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.beans.factory.annotation.Value;
 
 /**
@@ -31,27 +47,190 @@ public class ESBatchMessageProcessorImpl implements IBatchMessageProcessor {
     private static final Logger logger = LoggerFactory.getLogger(ESBatchMessageProcessorImpl.class);
 
     private ElasticSearchBatchService elasticSearchBatchService = null;
+    // optional converter of binary (Avro, Protobuf) event values into JSON documents - used in the raw bytes mode;
+    // if not set - event values are expected to be JSON already
+    @Autowired(required = false)
+    private IRecordValueConverter valueConverter = null;
+    // optional - derives document ids from the events (elasticsearch.document.id.strategy); if not set - ES generates the ids
+    @Autowired(required = false)
+    private DocumentIdResolver documentIdResolver = null;
+    // optional - routes events into time-based indices; if not set - all events are indexed into the elasticsearch.index.name
+    @Autowired(required = false)
+    private TimeBasedIndexRouter indexRouter = null;
+    // optional - takes index names, ids, routing values and op types from the Kafka record headers; 
+    // if set - event values are not parsed (unless the documentProjection is set), documentIdResolver is not used
+    @Autowired(required = false)
+    private HeaderRoutingResolver headerRoutingResolver = null;
+    // optional - drops not needed fields and truncates long strings of JSON events before they are indexed; 
+    // if not set - JSON events are indexed as is
+    @Autowired(required = false)
+    private DocumentProjection documentProjection = null;
 	@Value("${elasticsearch.index.name:my_index}")
 	private String indexName;
 	@Value("${elasticsearch.index.type:varnish}")
 	private String indexType;
+	@Value("${kafka.consumer.pipelined.mode.enabled:false}")
+	private boolean pipelinedModeEnabled;
+
+    /**
+     * in the pipelined mode a bulk request that failed is re-posted after the bulk requests of the next polls - 
+     * with ids derived from the events, an older version of a document could overwrite a newer one then;
+     * external versioning makes ES reject such stale versions
+     */
+    @PostConstruct
+    public void init() {
+        if (pipelinedModeEnabled && isDocumentIdOfEntity() && !elasticSearchBatchService.isExternalVersioningEnabled()) {
+            throw new IllegalStateException("kafka.consumer.pipelined.mode.enabled=true with the KEY/FIELD document id strategy " +
+                "or the elasticsearch.header.document.id header requires elasticsearch.document.version.external.enabled=true - " +
+                "re-posted bulk requests could overwrite newer versions of the documents otherwise");
+        }
+    }
+
+    /**
+     * @return TRUE if all events of an entity are indexed into the same document
+     */
+    private boolean isDocumentIdOfEntity() {
+        if (headerRoutingResolver != null) {
+            return headerRoutingResolver.isDocumentIdHeaderSet();
+        }
+        return documentIdResolver != null && (documentIdResolver.getStrategy() == DocumentIdResolver.Strategy.KEY ||
+                documentIdResolver.getStrategy() == DocumentIdResolver.Strategy.FIELD);
+    }
 
     /* (non-Javadoc)
      * @see org.elasticsearch.kafka.indexer.service.IBatchMessageProcessor#processMessage(org.apache.kafka.clients.consumer.ConsumerRecord, int)
      */
     @Override
     public boolean processMessage(ConsumerRecord<String, String> currentKafkaRecord, int consumerId) throws Exception {
-        String eventUUID = null; // we don't need a UUID for this simple scenario
-        String routingValue = null; // we don't need routing for this simple scenario       
         String inputMessage = currentKafkaRecord.value();
+        if (headerRoutingResolver != null) {
+            return processWithHeaderRouting(currentKafkaRecord, StringUtils.isEmpty(inputMessage) ? null :
+                    createIndexRequest(inputMessage));
+        }
         if (StringUtils.isEmpty(inputMessage)) {
-            return false;
+            return processTombstone(currentKafkaRecord);
         }
-        elasticSearchBatchService.addEventToBulkRequest(
-                inputMessage, indexName, indexType, eventUUID, routingValue);
+        // ids and routing values are read from the original event - their fields may be dropped by the projection
+        DocumentIdResolver.DocumentRef documentRef = getDocumentRef(currentKafkaRecord, true);
+        if (documentProjection != null) {
+            elasticSearchBatchService.addEventToBulkRequest(documentProjection.project(inputMessage), getIndexName(currentKafkaRecord), 
+                    indexType, documentRef.getDocumentId(), documentRef.getRoutingValue(), currentKafkaRecord);
+            return true;
+        }
+        elasticSearchBatchService.addEventToBulkRequest(inputMessage, getIndexName(currentKafkaRecord), indexType, 
+                documentRef.getDocumentId(), documentRef.getRoutingValue(), currentKafkaRecord);
         return true;
     }
     
+    /* (non-Javadoc)
+     * @see org.elasticsearch.kafka.indexer.service.IBatchMessageProcessor#processRawMessage(org.apache.kafka.clients.consumer.ConsumerRecord, int)
+     */
+    @Override
+    public boolean processRawMessage(ConsumerRecord<String, byte[]> currentKafkaRecord, int consumerId) throws Exception {
+        byte[] inputMessage = currentKafkaRecord.value();
+        if (headerRoutingResolver != null) {
+            IndexRequest indexRequest = null;
+            if (inputMessage != null && inputMessage.length > 0) {
+                if (valueConverter != null) {
+                    XContentBuilder source = XContentFactory.jsonBuilder();
+                    valueConverter.convert(inputMessage, source);
+                    indexRequest = new IndexRequest().source(source);
+                } else {
+                    indexRequest = createIndexRequest(inputMessage);
+                }
+            }
+            return processWithHeaderRouting(currentKafkaRecord, indexRequest);
+        }
+        if (inputMessage == null || inputMessage.length == 0) {
+            return processTombstone(currentKafkaRecord);
+        }
+        if (valueConverter != null) {
+            // the converter writes the event directly into the document builder of the index request
+            XContentBuilder source = XContentFactory.jsonBuilder();
+            valueConverter.convert(inputMessage, source);
+            // JSON fields (FIELD id strategy, routing field) can not be read from binary values - 
+            // their ids are generated by ES and they are not routed
+            DocumentIdResolver.DocumentRef documentRef = getDocumentRef(currentKafkaRecord, false);
+            elasticSearchBatchService.addEventToBulkRequest(source, getIndexName(currentKafkaRecord), indexType, 
+                    documentRef.getDocumentId(), documentRef.getRoutingValue(), currentKafkaRecord);
+            return true;
+        }
+        DocumentIdResolver.DocumentRef documentRef = getDocumentRef(currentKafkaRecord, true);
+        if (documentProjection != null) {
+            elasticSearchBatchService.addEventToBulkRequest(documentProjection.project(inputMessage), getIndexName(currentKafkaRecord), 
+                    indexType, documentRef.getDocumentId(), documentRef.getRoutingValue(), currentKafkaRecord);
+            return true;
+        }
+        // the raw JSON bytes become the source of the index request as is
+        elasticSearchBatchService.addEventToBulkRequest(inputMessage, getIndexName(currentKafkaRecord), indexType, 
+                documentRef.getDocumentId(), documentRef.getRoutingValue(), currentKafkaRecord);
+        return true;
+    }
+
+    /**
+     * @param jsonValue - JSON event: String or UTF-8 bytes; raw bytes are forwarded to the bulk request as is - 
+     * unless the documentProjection is set
+     */
+    private IndexRequest createIndexRequest(Object jsonValue) throws IOException {
+        if (documentProjection != null) {
+            return new IndexRequest().source(documentProjection.project(jsonValue), XContentType.JSON);
+        }
+        if (jsonValue instanceof byte[]) {
+            return new IndexRequest().source((byte[]) jsonValue, XContentType.JSON);
+        }
+        return new IndexRequest().source((String) jsonValue, XContentType.JSON);
+    }
+
+    private String getIndexName(ConsumerRecord<String, ?> currentKafkaRecord) {
+        return indexRouter != null ? indexRouter.getIndexName(currentKafkaRecord) : indexName;
+    }
+
+    private DocumentIdResolver.DocumentRef getDocumentRef(ConsumerRecord<String, ?> currentKafkaRecord, boolean jsonValue) 
+            throws IOException {
+        return documentIdResolver != null ? 
+                documentIdResolver.getDocumentRef(currentKafkaRecord, jsonValue) : DocumentIdResolver.DocumentRef.EMPTY;
+    }
+
+    /**
+     * index, create or delete the document of the event as per its headers - the event value is not parsed;
+     * tombstones (events without a value) delete the document with the id from the headers, or with the record key
+     * 
+     * @param indexRequest - index request with the source of the event; NULL for tombstones
+     */
+    private boolean processWithHeaderRouting(ConsumerRecord<String, ?> currentKafkaRecord, IndexRequest indexRequest) {
+        HeaderRoutingResolver.HeaderRouting headerRouting = headerRoutingResolver.getHeaderRouting(currentKafkaRecord);
+        String indexName = headerRouting.getIndexName() != null ? 
+                headerRouting.getIndexName() : getIndexName(currentKafkaRecord);
+        if (indexRequest == null || headerRouting.getOpType() == DocWriteRequest.OpType.DELETE) {
+            String documentId = headerRouting.getDocumentId() != null ? 
+                    headerRouting.getDocumentId() : currentKafkaRecord.key();
+            if (StringUtils.isEmpty(documentId)) {
+                return false;
+            }
+            elasticSearchBatchService.addDeleteToBulkRequest(
+                    indexName, indexType, documentId, headerRouting.getRoutingValue(), currentKafkaRecord);
+            return true;
+        }
+        indexRequest.index(indexName).type(indexType).id(headerRouting.getDocumentId())
+                .routing(headerRouting.getRoutingValue()).opType(headerRouting.getOpType());
+        elasticSearchBatchService.addActionToBulkRequest(indexRequest, currentKafkaRecord);
+        return true;
+    }
+
+    /**
+     * a tombstone (an event with a key and a null or empty value - as in compacted topics) means that the entity 
+     * with this key was deleted - so the document with the key as its id is deleted from the index;
+     * events without a key and a value can not be processed
+     */
+    private boolean processTombstone(ConsumerRecord<String, ?> currentKafkaRecord) {
+        if (StringUtils.isEmpty(currentKafkaRecord.key())) {
+            return false;
+        }
+        elasticSearchBatchService.addDeleteToBulkRequest(
+                getIndexName(currentKafkaRecord), indexType, currentKafkaRecord.key(), null, currentKafkaRecord);
+        return true;
+    }
+
     /* (non-Javadoc)
      * @see org.elasticsearch.kafka.indexer.service.IBatchMessageProcessor#onPollBeginCallBack(int)
      */
@@ -68,17 +247,67 @@ public class ESBatchMessageProcessorImpl implements IBatchMessageProcessor {
             throws Exception {
         boolean commitOffset = true;
         try {
-            elasticSearchBatchService.postToElasticSearch();
+            // offsets are only committed when all events collected so far are posted to ES - 
+            // events can be accumulated across several polls if elasticsearch.bulk.flush.linger.ms is set
+            commitOffset = elasticSearchBatchService.flushIfNeeded();
         } catch (IndexerESRecoverableException e) {
-            // if this is a re-coverable exception - do NOT commit the offsets, let events 
-            // from this poll be re-processed
+            // if this is a re-coverable exception - do NOT commit the offsets; failed bulk requests are kept 
+            // by the elasticSearchBatchService and re-posted on the re-try - events do not have to be re-processed
             commitOffset = false;
             logger.error("Recoverable Error posting messages to Elastic Search: {}", e.getMessage());
-            throw new ConsumerRecoverableException("Error posting messages to Elastic Search", e);
+            throw new ConsumerRecoverableException("Error posting messages to Elastic Search", e, false,
+                elasticSearchBatchService.getPartitionsOfFailedEvents());
         }
         return commitOffset;
     }
 
+    /* (non-Javadoc)
+     * @see org.elasticsearch.kafka.indexer.service.IBatchMessageProcessor#onPollEndCallBackAsync(int, java.util.Map)
+     */
+    @Override
+    public CompletableFuture<Boolean> onPollEndCallBackAsync(int consumerId, 
+            Map<TopicPartition, OffsetAndMetadata> previousPollEndPosition) {
+        if (!elasticSearchBatchService.isFlushNeeded()) {
+            // still accumulating events - nothing to wait for, and nothing to commit yet
+            return CompletableFuture.completedFuture(false);
+        }
+        CompletableFuture<Boolean> shouldCommitFuture = new CompletableFuture<>();
+        elasticSearchBatchService.postToElasticSearchAsync().whenComplete((result, e) -> {
+            if (e == null) {
+                shouldCommitFuture.complete(true);
+                return;
+            }
+            Throwable cause = (e instanceof CompletionException && e.getCause() != null) ? e.getCause() : e;
+            if (cause instanceof IndexerESRecoverableException) {
+                // same as in the synchronous case - failed bulk requests are re-posted on the re-try
+                logger.error("Recoverable Error posting messages to Elastic Search: {}", cause.getMessage());
+                shouldCommitFuture.completeExceptionally(
+                    new ConsumerRecoverableException("Error posting messages to Elastic Search", cause, false,
+                        elasticSearchBatchService.getPartitionsOfFailedEvents()));
+            } else {
+                shouldCommitFuture.completeExceptionally(cause);
+            }
+        });
+        return shouldCommitFuture;
+    }
+
+    /* (non-Javadoc)
+     * @see org.elasticsearch.kafka.indexer.service.IBatchMessageProcessor#onRetriesExhausted(int)
+     */
+    @Override
+    public void onRetriesExhausted(int consumerId) {
+        // offsets are committed next - do not re-post the failed bulk requests before each next batch
+        elasticSearchBatchService.discardFailedBulkRequests("Failed to index the event within the poll re-try limit");
+    }
+
+    /* (non-Javadoc)
+     * @see org.elasticsearch.kafka.indexer.service.IBatchMessageProcessor#isSaturated(int)
+     */
+    @Override
+    public boolean isSaturated(int consumerId) {
+        return elasticSearchBatchService.isInFlightBulksLimitReached();
+    }
+
     /* (non-Javadoc)
      * @see org.elasticsearch.kafka.indexer.service.IBatchMessageProcessor#onStartup(int)
      */
@@ -102,4 +331,24 @@ public class ESBatchMessageProcessorImpl implements IBatchMessageProcessor {
     public void setElasticSearchBatchService(ElasticSearchBatchService elasticSearchBatchService) {
         this.elasticSearchBatchService = elasticSearchBatchService;
     }
+
+    public void setDocumentIdResolver(DocumentIdResolver documentIdResolver) {
+        this.documentIdResolver = documentIdResolver;
+    }
+
+    public void setIndexRouter(TimeBasedIndexRouter indexRouter) {
+        this.indexRouter = indexRouter;
+    }
+
+    public void setValueConverter(IRecordValueConverter valueConverter) {
+        this.valueConverter = valueConverter;
+    }
+
+    public void setHeaderRoutingResolver(HeaderRoutingResolver headerRoutingResolver) {
+        this.headerRoutingResolver = headerRoutingResolver;
+    }
+
+    public void setDocumentProjection(DocumentProjection documentProjection) {
+        this.documentProjection = documentProjection;
+    }
 }
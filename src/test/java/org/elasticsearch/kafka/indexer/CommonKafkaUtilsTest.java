@@ -2,8 +2,11 @@ package org.elasticsearch.kafka.indexer;
 
 import static org.junit.Assert.*;
 
+import java.nio.charset.StandardCharsets;
 import java.util.Properties;
 
+import org.apache.kafka.clients.consumer.ConsumerRecord;
+
 import org.junit.Assert;
 import org.junit.Before;
 import org.junit.Test;
@@ -36,4 +39,19 @@ public class CommonKafkaUtilsTest {
         Assert.assertEquals(expectedKafkaProperties, resultKafkaProperties);
     }
 
+    @Test
+    public void testToStringValueRecord() {
+        ConsumerRecord<String, String> stringRecord = new ConsumerRecord<>("test-topic", 0, 1L, "key", "{\"message\":1}");
+        Assert.assertSame(stringRecord, CommonKafkaUtils.toStringValueRecord(stringRecord));
+
+        ConsumerRecord<String, byte[]> rawRecord = new ConsumerRecord<>("test-topic", 1, 2L, "key", 
+            "{\"message\":\"\u00e9\"}".getBytes(StandardCharsets.UTF_8));
+        ConsumerRecord<String, String> decodedRecord = CommonKafkaUtils.toStringValueRecord(rawRecord);
+        Assert.assertEquals("{\"message\":\"\u00e9\"}", decodedRecord.value());
+        Assert.assertEquals(rawRecord.topic(), decodedRecord.topic());
+        Assert.assertEquals(rawRecord.partition(), decodedRecord.partition());
+        Assert.assertEquals(rawRecord.offset(), decodedRecord.offset());
+        Assert.assertEquals(rawRecord.key(), decodedRecord.key());
+    }
+
 }
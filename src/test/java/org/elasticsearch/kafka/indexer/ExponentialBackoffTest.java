@@ -0,0 +1,21 @@
+package org.elasticsearch.kafka.indexer;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class ExponentialBackoffTest {
+
+	@Test
+	public void testDelayGrowsExponentiallyWithJitterAndIsCapped() {
+		for (int i = 0; i < 100; i++) {
+			long firstDelayMs = ExponentialBackoff.getDelayMs(100L, 1000L, 1);
+			Assert.assertTrue(firstDelayMs >= 50L && firstDelayMs <= 100L);
+			long thirdDelayMs = ExponentialBackoff.getDelayMs(100L, 1000L, 3);
+			Assert.assertTrue(thirdDelayMs >= 200L && thirdDelayMs <= 400L);
+			long cappedDelayMs = ExponentialBackoff.getDelayMs(100L, 1000L, 50);
+			Assert.assertTrue(cappedDelayMs >= 500L && cappedDelayMs <= 1000L);
+		}
+		Assert.assertEquals(0L, ExponentialBackoff.getDelayMs(0L, 1000L, 5));
+	}
+
+}
@@ -3,10 +3,13 @@
  */
 package org.elasticsearch.kafka.indexer.jobs;
 
+import java.nio.charset.StandardCharsets;
 import java.util.Arrays;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.LinkedList;
 import java.util.List;
+import java.util.concurrent.CompletableFuture;
 
 import org.apache.kafka.clients.consumer.ConsumerRecord;
 import org.apache.kafka.clients.consumer.MockConsumer;
@@ -209,6 +212,28 @@ public class ConsumerWorkerTest {
 		// ConsumerNonRecoverableException should be thrown out
 	}
 
+	/**
+	 * Use case: all re-tries of onPollEndCallBack() fail, and ignoreOverlimitRecoverableErrors = TRUE  ==> 
+	 * the batch processor is told to give up on the failed events, and the offsets are committed
+	 * 
+	 * @throws Exception
+	 */
+	@Test
+	public void testProcessPoll_RecoverableException_overlimit_ignoredEventsAreDiscarded() throws Exception {
+		consumerWorker.setIgnoreOverlimitRecoverableErrors(true);
+		consumerWorker.setPollRetryLimit(1);
+		consumerWorker.setPollRetryIntervalMs(2l);
+	    for (ConsumerRecord<String, String> consumerRecord: testRecords) {
+			Mockito.when(mockedBatchMessageProcessor.processMessage(consumerRecord, consumerInstanceId)).thenReturn(true);
+	    }
+		Mockito.when(mockedBatchMessageProcessor.onPollEndCallBack(Mockito.anyInt(), Mockito.anyMap()))
+			.thenThrow(new ConsumerRecoverableException("Recoverable exception from unit test", null, false));
+		consumerWorker.processPoll();
+		Mockito.verify(mockedBatchMessageProcessor, Mockito.times(2)).onPollEndCallBack(Mockito.anyInt(), Mockito.anyMap());
+		Mockito.verify(mockedBatchMessageProcessor, Mockito.times(1)).onRetriesExhausted(consumerInstanceId);
+		Assert.assertEquals(startOffset + numberOfRecords + 1, mockedConsumer.committed(topicPartition0).offset());
+	}
+
 	/**
 	 * Use case: call to beforeCommitCallBack() throws more than a configured MAX limit of
 	 * recoverable exceptions, and ignoreOverlimitRecoverableErrors = TRUE  ==> 
@@ -239,4 +264,302 @@ public class ConsumerWorkerTest {
 		Assert.assertEquals(expectedCommittedOffset, committedOffsetInfo.offset());
 	}
 
+	/**
+	 * Use case: pipelined mode - offsets of a poll are NOT committed right after its batch is handed off,
+	 * but only when the next poll completes it
+	 * 
+	 * @throws Exception
+	 */
+	@Test
+	public void testProcessPoll_pipelined_commitsAfterNextPoll() throws Exception {
+		long expectedCommittedOffset = startOffset + numberOfRecords + 1;
+		consumerWorker.setPipelinedModeEnabled(true);
+	    for (ConsumerRecord<String, String> consumerRecord: testRecords) {
+			Mockito.when(mockedBatchMessageProcessor.processMessage(consumerRecord, consumerInstanceId)).thenReturn(true);
+	    }
+		CompletableFuture<Boolean> shouldCommitFuture = new CompletableFuture<>();
+		Mockito.when(mockedBatchMessageProcessor.onPollEndCallBackAsync(Mockito.anyInt(), Mockito.anyMap()))
+			.thenReturn(shouldCommitFuture, CompletableFuture.completedFuture(true));
+		consumerWorker.processPoll();
+		// batch of the first poll is still in flight - nothing should be committed yet
+		Assert.assertNull(mockedConsumer.committed(topicPartition0));
+		Mockito.verify(mockedBatchMessageProcessor, Mockito.never()).onPollEndCallBack(Mockito.anyInt(), Mockito.anyMap());
+
+		shouldCommitFuture.complete(true);
+		// second poll returns no records - but completes the first one
+		consumerWorker.processPoll();
+		OffsetAndMetadata committedOffsetInfo = mockedConsumer.committed(topicPartition0);
+		Assert.assertNotNull(committedOffsetInfo);
+		Assert.assertEquals(expectedCommittedOffset, committedOffsetInfo.offset());
+	}
+
+	/**
+	 * Use case: pipelined mode - the batch of a poll fails with a recoverable exception ==>
+	 * the poll is re-processed synchronously and committed after the successful retry
+	 * 
+	 * @throws Exception
+	 */
+	@Test
+	public void testProcessPoll_pipelined_RecoverableException() throws Exception {
+		long expectedCommittedOffset = startOffset + numberOfRecords + 1;
+		consumerWorker.setPipelinedModeEnabled(true);
+		consumerWorker.setPollRetryLimit(2);
+		consumerWorker.setPollRetryIntervalMs(2l);
+	    for (ConsumerRecord<String, String> consumerRecord: testRecords) {
+			Mockito.when(mockedBatchMessageProcessor.processMessage(consumerRecord, consumerInstanceId)).thenReturn(true);
+	    }
+		CompletableFuture<Boolean> failedFuture = new CompletableFuture<>();
+		failedFuture.completeExceptionally(new ConsumerRecoverableException("Recoverable exception from unit test"));
+		Mockito.when(mockedBatchMessageProcessor.onPollEndCallBackAsync(Mockito.anyInt(), Mockito.anyMap()))
+			.thenReturn(failedFuture, CompletableFuture.completedFuture(true));
+		Mockito.when(mockedBatchMessageProcessor.onPollEndCallBack(Mockito.anyInt(), Mockito.anyMap())).thenReturn(true);
+		consumerWorker.processPoll();
+		consumerWorker.processPoll();
+		// events of the first poll are processed twice: the original processing and the re-processing
+		for (ConsumerRecord<String, String> consumerRecord: testRecords) {
+			Mockito.verify(mockedBatchMessageProcessor, Mockito.times(2)).processMessage(consumerRecord, consumerInstanceId);
+		}
+		OffsetAndMetadata committedOffsetInfo = mockedConsumer.committed(topicPartition0);
+		Assert.assertNotNull(committedOffsetInfo);
+		Assert.assertEquals(expectedCommittedOffset, committedOffsetInfo.offset());
+	}
+
+	/**
+	 * Use case: batch processor accumulates events of several polls - onPollEndCallBack() returns FALSE
+	 * for the poll with events and TRUE for the next (empty) poll, when the batch is flushed ==>
+	 * offsets should be committed after the second poll
+	 * 
+	 * @throws Exception
+	 */
+	@Test
+	public void testProcessPoll_batchSpansPolls() throws Exception {
+		long expectedCommittedOffset = startOffset + numberOfRecords + 1;
+	    for (ConsumerRecord<String, String> consumerRecord: testRecords) {
+			Mockito.when(mockedBatchMessageProcessor.processMessage(consumerRecord, consumerInstanceId)).thenReturn(true);
+	    }
+		Mockito.when(mockedBatchMessageProcessor.onPollEndCallBack(Mockito.anyInt(), Mockito.anyMap()))
+			.thenReturn(false, true);
+		consumerWorker.processPoll();
+		Assert.assertNull(mockedConsumer.committed(topicPartition0));
+		consumerWorker.processPoll();
+		OffsetAndMetadata committedOffsetInfo = mockedConsumer.committed(topicPartition0);
+		Assert.assertNotNull(committedOffsetInfo);
+		Assert.assertEquals(expectedCommittedOffset, committedOffsetInfo.offset());
+	}
+
+	/**
+	 * Use case: call to onPollEndCallBack() throws a recoverable exception that does not need poll re-processing
+	 * (the processor keeps the failed batch itself) ==> events should not be re-processed before the re-try
+	 * 
+	 * @throws Exception
+	 */
+	@Test
+	public void testProcessPoll_RecoverableException_noReprocessing() throws Exception {
+		consumerWorker.setPollRetryLimit(2);
+		consumerWorker.setPollRetryIntervalMs(2l);
+	    for (ConsumerRecord<String, String> consumerRecord: testRecords) {
+			Mockito.when(mockedBatchMessageProcessor.processMessage(consumerRecord, consumerInstanceId)).thenReturn(true);
+	    }
+		Mockito.when(mockedBatchMessageProcessor.onPollEndCallBack(Mockito.anyInt(), Mockito.anyMap()))
+			.thenThrow(new ConsumerRecoverableException("Recoverable exception from unit test", null, false))
+			.thenReturn(true);
+		consumerWorker.processPoll();
+		for (ConsumerRecord<String, String> consumerRecord: testRecords) {
+			Mockito.verify(mockedBatchMessageProcessor, Mockito.times(1)).processMessage(consumerRecord, consumerInstanceId);
+		}
+		Mockito.verify(mockedBatchMessageProcessor, Mockito.times(2)).onPollEndCallBack(Mockito.anyInt(), Mockito.anyMap());
+		Assert.assertNotNull(mockedConsumer.committed(topicPartition0));
+	}
+
+	/**
+	 * Use case: backpressure mode, batch processor is saturated ==> partitions are paused and no events are fetched,
+	 * but poll() is still called; once the processor drains - partitions are resumed and events are processed
+	 * 
+	 * @throws Exception
+	 */
+	@Test
+	public void testProcessPoll_backpressure_pausesWhileSaturated() throws Exception {
+		consumerWorker.setPipelinedModeEnabled(true);
+		consumerWorker.setBackpressureEnabled(true);
+	    for (ConsumerRecord<String, String> consumerRecord: testRecords) {
+			Mockito.when(mockedBatchMessageProcessor.processMessage(consumerRecord, consumerInstanceId)).thenReturn(true);
+	    }
+		Mockito.when(mockedBatchMessageProcessor.onPollEndCallBackAsync(Mockito.anyInt(), Mockito.anyMap()))
+			.thenReturn(CompletableFuture.completedFuture(true));
+		Mockito.when(mockedBatchMessageProcessor.isSaturated(consumerInstanceId)).thenReturn(true, false);
+		consumerWorker.processPoll();
+		Assert.assertTrue(mockedConsumer.paused().contains(topicPartition0));
+		Mockito.verify(mockedBatchMessageProcessor, Mockito.never()).processMessage(Mockito.any(), Mockito.anyInt());
+		Assert.assertNull(mockedConsumer.committed(topicPartition0));
+
+		// MockConsumer drops records of paused partitions on poll() - add them again, as a real consumer would fetch them
+		testRecords.forEach(mockedConsumer::addRecord);
+		consumerWorker.processPoll();
+		Assert.assertTrue(mockedConsumer.paused().isEmpty());
+		for (ConsumerRecord<String, String> consumerRecord: testRecords) {
+			Mockito.verify(mockedBatchMessageProcessor, Mockito.times(1)).processMessage(consumerRecord, consumerInstanceId);
+		}
+		Assert.assertEquals(startOffset + numberOfRecords + 1, mockedConsumer.committed(topicPartition0).offset());
+	}
+
+	/**
+	 * Use case: backpressure mode, the batch of a poll fails with a recoverable exception ==> partitions are paused
+	 * and poll() keeps being called while sleeping before the re-try; partitions are resumed after the re-try
+	 * 
+	 * @throws Exception
+	 */
+	@Test
+	public void testProcessPoll_backpressure_pollsWhileRetrying() throws Exception {
+		consumerWorker.setPipelinedModeEnabled(true);
+		consumerWorker.setBackpressureEnabled(true);
+		consumerWorker.setPausedPollIntervalMs(1L);
+		consumerWorker.setPollRetryLimit(2);
+		consumerWorker.setPollRetryIntervalMs(20L);
+		consumerWorker.setPollRetryMaxIntervalMs(20L);
+	    for (ConsumerRecord<String, String> consumerRecord: testRecords) {
+			Mockito.when(mockedBatchMessageProcessor.processMessage(consumerRecord, consumerInstanceId)).thenReturn(true);
+	    }
+		CompletableFuture<Boolean> failedFuture = new CompletableFuture<>();
+		failedFuture.completeExceptionally(new ConsumerRecoverableException("Recoverable exception from unit test", null, false));
+		Mockito.when(mockedBatchMessageProcessor.onPollEndCallBackAsync(Mockito.anyInt(), Mockito.anyMap())).thenReturn(failedFuture);
+		Mockito.when(mockedBatchMessageProcessor.onPollEndCallBack(Mockito.anyInt(), Mockito.anyMap())).thenReturn(true);
+		List<Boolean> pausedDuringPolls = new LinkedList<>();
+		mockedConsumer.schedulePollTask(() -> {});
+		mockedConsumer.schedulePollTask(() -> pausedDuringPolls.add(mockedConsumer.paused().contains(topicPartition0)));
+		consumerWorker.processPoll();
+		Assert.assertEquals(Arrays.asList(true), pausedDuringPolls);
+		Assert.assertTrue(mockedConsumer.paused().isEmpty());
+		Assert.assertEquals(startOffset + numberOfRecords + 1, mockedConsumer.committed(topicPartition0).offset());
+	}
+
+	@Test(expected = IllegalStateException.class)
+	public void testInitConsumerInstance_backpressureRequiresPipelinedMode() {
+		consumerWorker.setBackpressureEnabled(true);
+		consumerWorker.initConsumerInstance(consumerInstanceId);
+	}
+
+	/**
+	 * Use case: onPollEndCallBack() throws a recoverable exception for events of one partition only ==>
+	 * offsets of the other partition should be committed right away, and only events of the failed partition
+	 * should be re-processed
+	 * 
+	 * @throws Exception
+	 */
+	@Test
+	public void testProcessPoll_RecoverableException_healthyPartitionsCommitted() throws Exception {
+		TopicPartition topicPartition1 = new TopicPartition(testTopic, 1);
+		mockedConsumer.assign(Arrays.asList(topicPartition0, topicPartition1));
+		HashMap<TopicPartition, Long> beginningOffsets = new HashMap<>();
+		beginningOffsets.put(topicPartition1, startOffset);
+		mockedConsumer.updateBeginningOffsets(beginningOffsets);
+		ConsumerRecord<String, String> partition1Record = new ConsumerRecord<>(
+			testTopic, 1, startOffset + 1, "test-key-p1", "test-message-p1");
+		mockedConsumer.addRecord(partition1Record);
+		consumerWorker.setPollRetryLimit(2);
+		consumerWorker.setPollRetryIntervalMs(1L);
+		consumerWorker.setPollRetryMaxIntervalMs(1L);
+		Mockito.when(mockedBatchMessageProcessor.processMessage(Mockito.any(), Mockito.anyInt())).thenReturn(true);
+		// the re-try only succeeds if offsets of the healthy partition were committed before it
+		Mockito.when(mockedBatchMessageProcessor.onPollEndCallBack(Mockito.anyInt(), Mockito.anyMap()))
+			.thenThrow(new ConsumerRecoverableException("Recoverable exception from unit test", null, true,
+				Collections.singleton(topicPartition1)))
+			.thenAnswer(invocation -> mockedConsumer.committed(topicPartition0) != null);
+		consumerWorker.processPoll();
+		for (ConsumerRecord<String, String> consumerRecord: testRecords) {
+			Mockito.verify(mockedBatchMessageProcessor, Mockito.times(1)).processMessage(consumerRecord, consumerInstanceId);
+		}
+		Mockito.verify(mockedBatchMessageProcessor, Mockito.times(2)).processMessage(partition1Record, consumerInstanceId);
+		Assert.assertEquals(startOffset + numberOfRecords + 1, mockedConsumer.committed(topicPartition0).offset());
+		Assert.assertEquals(startOffset + 2, mockedConsumer.committed(topicPartition1).offset());
+	}
+
+	/**
+	 * Use case: events are processed in parallel ==> all of them should be processed before the onPollEndCallBack(),
+	 * and offsets should be committed the same way as for the sequential processing
+	 * 
+	 * @throws Exception
+	 */
+	@Test
+	public void testProcessPoll_parallelProcessing() throws Exception {
+		consumerWorker.setProcessingParallelism(2);
+		List<ConsumerRecord<String, String>> processedRecords = Collections.synchronizedList(new LinkedList<>());
+		Mockito.when(mockedBatchMessageProcessor.processMessage(Mockito.any(), Mockito.anyInt())).thenAnswer(invocation -> {
+			processedRecords.add(invocation.getArgumentAt(0, ConsumerRecord.class));
+			return true;
+		});
+		Mockito.when(mockedBatchMessageProcessor.onPollEndCallBack(Mockito.anyInt(), Mockito.anyMap()))
+			.thenAnswer(invocation -> processedRecords.size() == numberOfRecords);
+		consumerWorker.processPoll();
+		Assert.assertEquals(numberOfRecords, processedRecords.size());
+		Assert.assertEquals(startOffset + numberOfRecords + 1, mockedConsumer.committed(topicPartition0).offset());
+	}
+
+	/**
+	 * Use case: batch message processor supports batch processing ==> all events of the poll should be passed
+	 * to one processMessages() call, and offsets should be committed even if some of the events failed
+	 * 
+	 * @throws Exception
+	 */
+	@Test
+	public void testProcessPoll_batchProcessing() throws Exception {
+		Mockito.when(mockedBatchMessageProcessor.isBatchProcessingSupported()).thenReturn(true);
+		Mockito.when(mockedBatchMessageProcessor.processMessages(testRecords, consumerInstanceId))
+			.thenReturn(new boolean[] {true, false});
+		Mockito.when(mockedBatchMessageProcessor.onPollEndCallBack(Mockito.anyInt(), Mockito.anyMap())).thenReturn(true);
+		consumerWorker.processPoll();
+		Mockito.verify(mockedBatchMessageProcessor, Mockito.times(1)).processMessages(testRecords, consumerInstanceId);
+		Mockito.verify(mockedBatchMessageProcessor, Mockito.never()).processMessage(Mockito.any(), Mockito.anyInt());
+		Assert.assertEquals(startOffset + numberOfRecords + 1, mockedConsumer.committed(topicPartition0).offset());
+	}
+
+	/**
+	 * Use case: raw bytes mode ==> events should be passed to the processRawMessage() with their values as consumed,
+	 * and offsets should be committed the same way as in the String mode
+	 * 
+	 * @throws Exception
+	 */
+	@Test
+	public void testProcessPoll_rawBytesMode() throws Exception {
+		MockConsumer<String, byte[]> mockedRawConsumer = new MockConsumer<>(OffsetResetStrategy.EARLIEST);
+		mockedRawConsumer.assign(Arrays.asList(topicPartition0));
+		mockedRawConsumer.updateBeginningOffsets(Collections.singletonMap(topicPartition0, startOffset));
+		ConsumerRecord<String, byte[]> rawRecord = new ConsumerRecord<>(
+			testTopic, partition, startOffset + 1, "test-key1", "test-message1".getBytes(StandardCharsets.UTF_8));
+		mockedRawConsumer.addRecord(rawRecord);
+		consumerWorker.setConsumer(mockedRawConsumer);
+		consumerWorker.setRawBytesModeEnabled(true);
+		Mockito.when(mockedBatchMessageProcessor.processRawMessage(rawRecord, consumerInstanceId)).thenReturn(true);
+		Mockito.when(mockedBatchMessageProcessor.onPollEndCallBack(Mockito.anyInt(), Mockito.anyMap())).thenReturn(true);
+		consumerWorker.processPoll();
+		Mockito.verify(mockedBatchMessageProcessor, Mockito.times(1)).processRawMessage(rawRecord, consumerInstanceId);
+		Mockito.verify(mockedBatchMessageProcessor, Mockito.never()).processMessage(Mockito.any(), Mockito.anyInt());
+		Assert.assertEquals(startOffset + 2, mockedRawConsumer.committed(topicPartition0).offset());
+	}
+
+	/**
+	 * Use case: batch processing in the raw bytes mode ==> all events of the poll should be passed to one 
+	 * processRawMessages() call with their values as consumed - not decoded into Strings
+	 * 
+	 * @throws Exception
+	 */
+	@Test
+	public void testProcessPoll_rawBytesModeBatchProcessing() throws Exception {
+		MockConsumer<String, byte[]> mockedRawConsumer = new MockConsumer<>(OffsetResetStrategy.EARLIEST);
+		mockedRawConsumer.assign(Arrays.asList(topicPartition0));
+		mockedRawConsumer.updateBeginningOffsets(Collections.singletonMap(topicPartition0, startOffset));
+		ConsumerRecord<String, byte[]> rawRecord = new ConsumerRecord<>(
+			testTopic, partition, startOffset + 1, "test-key1", new byte[] {0, (byte) 0xFF});
+		mockedRawConsumer.addRecord(rawRecord);
+		consumerWorker.setConsumer(mockedRawConsumer);
+		consumerWorker.setRawBytesModeEnabled(true);
+		Mockito.when(mockedBatchMessageProcessor.isBatchProcessingSupported()).thenReturn(true);
+		Mockito.when(mockedBatchMessageProcessor.processRawMessages(Collections.singletonList(rawRecord), consumerInstanceId))
+			.thenReturn(new boolean[] {true});
+		Mockito.when(mockedBatchMessageProcessor.onPollEndCallBack(Mockito.anyInt(), Mockito.anyMap())).thenReturn(true);
+		consumerWorker.processPoll();
+		Mockito.verify(mockedBatchMessageProcessor, Mockito.times(1)).processRawMessages(Collections.singletonList(rawRecord), consumerInstanceId);
+		Mockito.verify(mockedBatchMessageProcessor, Mockito.never()).processMessages(Mockito.any(), Mockito.anyInt());
+		Assert.assertEquals(startOffset + 2, mockedRawConsumer.committed(topicPartition0).offset());
+	}
+
 }
@@ -0,0 +1,79 @@
+package org.elasticsearch.kafka.indexer.jobs;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.apache.kafka.clients.consumer.ConsumerRecord;
+import org.apache.kafka.clients.consumer.ConsumerRecords;
+import org.apache.kafka.common.TopicPartition;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Test;
+
+public class StripedRecordProcessorTest {
+
+	private String testTopic = "test-topic";
+	private StripedRecordProcessor stripedRecordProcessor;
+
+	@After
+	public void tearDown() {
+		if (stripedRecordProcessor != null) {
+			stripedRecordProcessor.close();
+		}
+	}
+
+	@Test
+	public void testProcessRecords_orderPreservedPerKey() throws Exception {
+		stripedRecordProcessor = new StripedRecordProcessor(4, false, "test-processor-%d");
+		TopicPartition topicPartition = new TopicPartition(testTopic, 0);
+		List<ConsumerRecord<String, String>> partitionRecords = new ArrayList<>();
+		for (int i = 0; i < 1000; i++) {
+			partitionRecords.add(new ConsumerRecord<>(testTopic, 0, i, "key" + (i % 10), "message" + i));
+		}
+		Map<TopicPartition, List<ConsumerRecord<String, String>>> recordsMap = new HashMap<>();
+		recordsMap.put(topicPartition, partitionRecords);
+
+		Map<String, List<Long>> processedOffsetsPerKey = new ConcurrentHashMap<>();
+		Map<String, String> threadPerKey = new ConcurrentHashMap<>();
+		int numFailedRecords = stripedRecordProcessor.processRecords(new ConsumerRecords<>(recordsMap), stripe -> {
+			int numFailedInStripe = 0;
+			for (ConsumerRecord<String, String> record : stripe) {
+				processedOffsetsPerKey.computeIfAbsent(record.key(), key -> Collections.synchronizedList(new ArrayList<>()))
+					.add(record.offset());
+				String previousThread = threadPerKey.putIfAbsent(record.key(), Thread.currentThread().getName());
+				Assert.assertTrue(previousThread == null || previousThread.equals(Thread.currentThread().getName()));
+				// fail every 100th record
+				if (record.offset() % 100 == 0) {
+					numFailedInStripe++;
+				}
+			}
+			return numFailedInStripe;
+		});
+		Assert.assertEquals(10, numFailedRecords);
+		Assert.assertEquals(10, processedOffsetsPerKey.size());
+		processedOffsetsPerKey.forEach((key, offsets) -> {
+			Assert.assertEquals(100, offsets.size());
+			List<Long> sortedOffsets = new ArrayList<>(offsets);
+			Collections.sort(sortedOffsets);
+			Assert.assertEquals(sortedOffsets, offsets);
+		});
+	}
+
+	@Test(expected = IllegalStateException.class)
+	public void testProcessRecords_handlerException() throws Exception {
+		stripedRecordProcessor = new StripedRecordProcessor(2, true, "test-processor-%d");
+		Map<TopicPartition, List<ConsumerRecord<String, String>>> recordsMap = new HashMap<>();
+		for (int partition = 0; partition < 2; partition++) {
+			recordsMap.put(new TopicPartition(testTopic, partition), 
+				Collections.singletonList(new ConsumerRecord<>(testTopic, partition, 0L, null, "message")));
+		}
+		stripedRecordProcessor.processRecords(new ConsumerRecords<>(recordsMap), stripe -> {
+			throw new IllegalStateException("Unit test exception");
+		});
+	}
+
+}
@@ -0,0 +1,59 @@
+package org.elasticsearch.kafka.indexer.service;
+
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+public class AdaptiveBulkControllerTest {
+
+	private AdaptiveBulkController adaptiveBulkController = new AdaptiveBulkController();
+
+	@Before
+	public void setUp() {
+		adaptiveBulkController.setTargetLatencyMs(100L);
+		adaptiveBulkController.setMinBulkActions(10);
+		adaptiveBulkController.setMaxBulkActions(50);
+		adaptiveBulkController.setIncreaseBulkActionsStep(10);
+		adaptiveBulkController.setMinInFlightBulks(1);
+		adaptiveBulkController.setMaxInFlightBulks(3);
+		adaptiveBulkController.setIncreaseInFlightAfter(2);
+		adaptiveBulkController.setDecreaseFactor(0.5);
+	}
+
+	@Test
+	public void testLimitsGrowWhileFastAndStopAtMax() {
+		Assert.assertEquals(10, adaptiveBulkController.getBulkActionsLimit());
+		Assert.assertEquals(1, adaptiveBulkController.getInFlightBulksLimit());
+		for (int i = 0; i < 10; i++) {
+			adaptiveBulkController.onBulkCompleted(adaptiveBulkController.getBulkActionsLimit(), 50L);
+		}
+		Assert.assertEquals(50, adaptiveBulkController.getBulkActionsLimit());
+		Assert.assertEquals(3, adaptiveBulkController.getInFlightBulksLimit());
+	}
+
+	@Test
+	public void testBulkSizeDoesNotGrowIfLimitIsNotReached() {
+		adaptiveBulkController.onBulkCompleted(5, 50L);
+		Assert.assertEquals(10, adaptiveBulkController.getBulkActionsLimit());
+	}
+
+	@Test
+	public void testLimitsShrinkOnRejectionAndSlowBulks() {
+		for (int i = 0; i < 10; i++) {
+			adaptiveBulkController.onBulkCompleted(adaptiveBulkController.getBulkActionsLimit(), 50L);
+		}
+		adaptiveBulkController.onBulkRejected();
+		Assert.assertEquals(25, adaptiveBulkController.getBulkActionsLimit());
+		Assert.assertEquals(1, adaptiveBulkController.getInFlightBulksLimit());
+		Assert.assertEquals(1L, adaptiveBulkController.getNumRejectedBulks());
+
+		adaptiveBulkController.onBulkCompleted(25, 500L);
+		Assert.assertEquals(12, adaptiveBulkController.getBulkActionsLimit());
+		adaptiveBulkController.onBulkCompleted(12, 500L);
+		// never below the min
+		Assert.assertEquals(10, adaptiveBulkController.getBulkActionsLimit());
+		Assert.assertEquals(2L, adaptiveBulkController.getNumSlowBulks());
+		Assert.assertEquals(500L, adaptiveBulkController.getLastBulkLatencyMs());
+	}
+
+}
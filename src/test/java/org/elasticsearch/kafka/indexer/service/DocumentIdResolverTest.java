@@ -0,0 +1,59 @@
+package org.elasticsearch.kafka.indexer.service;
+
+import java.nio.charset.StandardCharsets;
+
+import org.apache.kafka.clients.consumer.ConsumerRecord;
+import org.junit.Assert;
+import org.junit.Test;
+
+public class DocumentIdResolverTest {
+
+	private DocumentIdResolver documentIdResolver = new DocumentIdResolver();
+
+	@Test
+	public void testGetDocumentId() throws Exception {
+		ConsumerRecord<String, String> record = new ConsumerRecord<>("testTopic", 3, 100L, "key1",
+			"{\"nested\":{\"id\":\"inner\"},\"list\":[1,2],\"id\":42,\"message\":\"m\"}");
+		Assert.assertNull(documentIdResolver.getDocumentId(record));
+
+		documentIdResolver.setStrategy(DocumentIdResolver.Strategy.TOPIC_PARTITION_OFFSET);
+		Assert.assertEquals("testTopic-3-100", documentIdResolver.getDocumentId(record));
+
+		documentIdResolver.setStrategy(DocumentIdResolver.Strategy.KEY);
+		Assert.assertEquals("key1", documentIdResolver.getDocumentId(record));
+
+		// only the top level field is used
+		documentIdResolver.setStrategy(DocumentIdResolver.Strategy.FIELD);
+		Assert.assertEquals("42", documentIdResolver.getDocumentId(record));
+		Assert.assertEquals("42", documentIdResolver.getDocumentId(new ConsumerRecord<>("testTopic", 3, 100L, "key1",
+			record.value().getBytes(StandardCharsets.UTF_8))));
+		documentIdResolver.setIdField("uuid");
+		Assert.assertNull(documentIdResolver.getDocumentId(record));
+		documentIdResolver.setIdField("/nested/id");
+		Assert.assertEquals("inner", documentIdResolver.getDocumentId(record));
+	}
+
+	@Test
+	public void testGetDocumentRef() throws Exception {
+		ConsumerRecord<String, String> record = new ConsumerRecord<>("testTopic", 3, 100L, "key1",
+			"{\"customer\":{\"region\":\"eu\"},\"id\":42}");
+		Assert.assertSame(DocumentIdResolver.DocumentRef.EMPTY, documentIdResolver.getDocumentRef(record, true));
+
+		documentIdResolver.setRoutingField("/customer/region");
+		DocumentIdResolver.DocumentRef documentRef = documentIdResolver.getDocumentRef(record, true);
+		Assert.assertNull(documentRef.getDocumentId());
+		Assert.assertEquals("eu", documentRef.getRoutingValue());
+
+		documentIdResolver.setStrategy(DocumentIdResolver.Strategy.FIELD);
+		documentRef = documentIdResolver.getDocumentRef(record, true);
+		Assert.assertEquals("42", documentRef.getDocumentId());
+		Assert.assertEquals("eu", documentRef.getRoutingValue());
+
+		// JSON fields are not read from binary values
+		documentIdResolver.setStrategy(DocumentIdResolver.Strategy.KEY);
+		documentRef = documentIdResolver.getDocumentRef(record, false);
+		Assert.assertEquals("key1", documentRef.getDocumentId());
+		Assert.assertNull(documentRef.getRoutingValue());
+	}
+
+}
@@ -0,0 +1,29 @@
+package org.elasticsearch.kafka.indexer.service;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class DocumentPositionMapTest {
+
+	@Test
+	public void testPutAndGet() {
+		DocumentPositionMap documentPositions = new DocumentPositionMap(4);
+		// more documents than the initial capacity - the map has to grow
+		for (int i = 0; i < 100; i++) {
+			documentPositions.put("index1", "id" + i, i);
+			documentPositions.put("index2", "id" + i, 1000 + i);
+		}
+		documentPositions.put("index1", "id5", 500);
+		Assert.assertEquals(200, documentPositions.size());
+		Assert.assertEquals(500, documentPositions.get("index1", "id5"));
+		Assert.assertEquals(1005, documentPositions.get("index2", "id5"));
+		Assert.assertEquals(99, documentPositions.get("index1", "id99"));
+		Assert.assertEquals(-1, documentPositions.get("index3", "id5"));
+		Assert.assertEquals(-1, documentPositions.get("index1", "id100"));
+
+		documentPositions.clear();
+		Assert.assertEquals(0, documentPositions.size());
+		Assert.assertEquals(-1, documentPositions.get("index1", "id5"));
+	}
+
+}
@@ -0,0 +1,54 @@
+package org.elasticsearch.kafka.indexer.service;
+
+import java.nio.charset.StandardCharsets;
+
+import org.elasticsearch.common.bytes.BytesReference;
+import org.junit.Assert;
+import org.junit.Test;
+
+public class DocumentProjectionTest {
+
+	private static final String EVENT = "{\"id\":1,\"message\":\"0123456789\",\"user\":{\"name\":\"u\",\"debug\":{\"blob\":\"b\"}}," +
+		"\"debug\":{\"blob\":\"xxxxxxxxxxxxxxxxxxxx\"},\"error\":{\"code\":2.5,\"stack_trace\":\"at a\\nat b\"},\"tags\":[\"t1\",null,true]}";
+
+	private DocumentProjection documentProjection = new DocumentProjection();
+
+	private String project(String event) throws Exception {
+		BytesReference projected = documentProjection.project(event.getBytes(StandardCharsets.UTF_8));
+		return projected.utf8ToString();
+	}
+
+	@Test
+	public void testProject_excludes() throws Exception {
+		documentProjection.setExcludes("debug, *.stack_trace");
+		documentProjection.init();
+		String projected = project(EVENT);
+		Assert.assertEquals("{\"id\":1,\"message\":\"0123456789\",\"user\":{\"name\":\"u\",\"debug\":{\"blob\":\"b\"}}," +
+			"\"error\":{\"code\":2.5},\"tags\":[\"t1\",null,true]}", projected);
+		Assert.assertEquals(1L, documentProjection.getNumberOfProjectedEvents());
+		Assert.assertEquals(EVENT.length(), documentProjection.getNumberOfInputBytes());
+		Assert.assertEquals(EVENT.length() - projected.length(), documentProjection.getNumberOfSavedBytes());
+	}
+
+	@Test
+	public void testProject_includesAndTruncation() throws Exception {
+		documentProjection.setIncludes("id,message,user.*,tags");
+		documentProjection.setMaxStringLength(4);
+		documentProjection.init();
+		Assert.assertEquals("{\"id\":1,\"message\":\"0123\",\"user\":{\"name\":\"u\",\"debug\":{\"blob\":\"b\"}},\"tags\":[\"t1\",null,true]}",
+			project(EVENT));
+		// the long strings dropped by the includes are not counted
+		Assert.assertEquals(1L, documentProjection.getNumberOfTruncatedStrings());
+		// the surrogate pair is not split
+		Assert.assertEquals("{\"message\":\"abc\"}", project("{\"message\":\"abc\uD83D\uDE00d\"}"));
+		Assert.assertEquals(2L, documentProjection.getNumberOfTruncatedStrings());
+	}
+
+	@Test
+	public void testProject_noFilters() throws Exception {
+		documentProjection.init();
+		Assert.assertEquals(EVENT, project(EVENT));
+		Assert.assertEquals(0L, documentProjection.getNumberOfSavedBytes());
+	}
+
+}
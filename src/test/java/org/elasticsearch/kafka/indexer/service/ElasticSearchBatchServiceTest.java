@@ -2,22 +2,41 @@ package org.elasticsearch.kafka.indexer.service;
 
 import static org.junit.Assert.fail;
 
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
 import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
 
-import org.elasticsearch.action.ListenableActionFuture;
+import org.apache.kafka.clients.consumer.ConsumerRecord;
+import org.elasticsearch.action.ActionListener;
+import org.elasticsearch.action.DocWriteRequest;
+import org.elasticsearch.action.DocWriteRequest.OpType;
+import org.elasticsearch.action.bulk.BulkAction;
 import org.elasticsearch.action.bulk.BulkItemResponse;
 import org.elasticsearch.action.bulk.BulkItemResponse.Failure;
+import org.elasticsearch.action.bulk.BulkRequest;
 import org.elasticsearch.action.bulk.BulkRequestBuilder;
 import org.elasticsearch.action.bulk.BulkResponse;
 import org.elasticsearch.common.xcontent.XContentType;
+import org.elasticsearch.action.delete.DeleteRequest;
+import org.elasticsearch.action.index.IndexAction;
+import org.elasticsearch.action.index.IndexRequest;
 import org.elasticsearch.action.index.IndexRequestBuilder;
+import org.elasticsearch.action.index.IndexResponse;
+import org.elasticsearch.action.update.UpdateRequest;
 import org.elasticsearch.client.transport.NoNodeAvailableException;
 import org.elasticsearch.kafka.indexer.exception.IndexerESNotRecoverableException;
 import org.elasticsearch.kafka.indexer.exception.IndexerESRecoverableException;
+import org.elasticsearch.index.VersionType;
+import org.elasticsearch.index.shard.ShardId;
 import org.elasticsearch.rest.RestStatus;
+import org.junit.Assert;
 import org.junit.Before;
 import org.junit.Test;
 import org.junit.runner.RunWith;
+import org.mockito.ArgumentCaptor;
 import org.mockito.Matchers;
 import org.mockito.Mock;
 import org.mockito.Mockito;
@@ -33,7 +52,6 @@ public class ElasticSearchBatchServiceTest {
 
 	private BulkRequestBuilder mockedBulkRequestBuilder = Mockito.mock(BulkRequestBuilder.class);
 	private IndexRequestBuilder mockedIndexRequestBuilder = Mockito.mock(IndexRequestBuilder.class);
-	private ListenableActionFuture<BulkResponse> mockedActionFuture = Mockito.mock(ListenableActionFuture.class);
 	private BulkResponse mockedBulkResponse = Mockito.mock(BulkResponse.class);
 	private String testIndexName = "unitTestsIndex";
 	private String testIndexType = "unitTestsType";
@@ -52,8 +70,7 @@ public class ElasticSearchBatchServiceTest {
 		Mockito.when(elasticSearchClientService.prepareIndex(Matchers.anyString(), Matchers.anyString(),
 				Matchers.anyString())).thenReturn(mockedIndexRequestBuilder);
 		Mockito.when(mockedIndexRequestBuilder.setSource(Matchers.anyString())).thenReturn(mockedIndexRequestBuilder);
-		Mockito.when(mockedBulkRequestBuilder.execute()).thenReturn(mockedActionFuture);
-		Mockito.when(mockedActionFuture.actionGet()).thenReturn(mockedBulkResponse);
+		Mockito.when(elasticSearchClientService.bulk(Matchers.any(BulkRequest.class))).thenReturn(mockedBulkResponse);
 		// mock the number of messages in the bulk index request to be 1
 		Mockito.when(mockedBulkRequestBuilder.numberOfActions()).thenReturn(1);
 
@@ -104,7 +121,7 @@ public class ElasticSearchBatchServiceTest {
 			fail("Unexpected exception from unit test: " + e.getMessage());
 		}
 		
-		Mockito.when(mockedBulkRequestBuilder.execute()).thenThrow(new NoNodeAvailableException("Unit Test Exception"));
+		Mockito.when(elasticSearchClientService.bulk(Matchers.any(BulkRequest.class))).thenThrow(new NoNodeAvailableException("Unit Test Exception"));
 		try {
 			elasticSearchBatchService.postToElasticSearch();
 		} catch (InterruptedException e) {
@@ -116,10 +133,10 @@ public class ElasticSearchBatchServiceTest {
 			fail("Unexpected exception from unit test: " + e.getMessage());
 		}
 
-		Mockito.verify(mockedBulkRequestBuilder, Mockito.times(1)).execute();
+		Mockito.verify(elasticSearchClientService, Mockito.times(1)).bulk(Matchers.any(BulkRequest.class));
 		// verify that reInitElasticSearch() was called
 		try {
-			Mockito.verify(elasticSearchClientService, Mockito.times(1)).reInitElasticSearch();
+			Mockito.verify(elasticSearchClientService, Mockito.times(1)).reInitElasticSearch(Matchers.anyLong());
 		} catch (InterruptedException | IndexerESNotRecoverableException e) {
 			fail("Unexpected exception from unit test: " + e.getMessage());
 		}
@@ -139,7 +156,7 @@ public class ElasticSearchBatchServiceTest {
 			fail("Unexpected exception from unit test: " + e.getMessage());
 		}
 		// make sure index request itself does not fail
-		Mockito.when(mockedBulkRequestBuilder.execute()).thenReturn(mockedActionFuture);
+		Mockito.when(elasticSearchClientService.bulk(Matchers.any(BulkRequest.class))).thenReturn(mockedBulkResponse);
 		// mock failures from ES indexing
 		Mockito.when(mockedBulkResponse.hasFailures()).thenReturn(true);
 		BulkItemResponse bulkItemResponse = Mockito.mock(BulkItemResponse.class);
@@ -166,10 +183,10 @@ public class ElasticSearchBatchServiceTest {
 			e.printStackTrace();
 		}
 
-		Mockito.verify(mockedBulkRequestBuilder, Mockito.times(1)).execute();
+		Mockito.verify(elasticSearchClientService, Mockito.times(1)).bulk(Matchers.any(BulkRequest.class));
 		// verify that reInit was not called
 		try {
-			Mockito.verify(elasticSearchClientService, Mockito.times(0)).reInitElasticSearch();
+			Mockito.verify(elasticSearchClientService, Mockito.times(0)).reInitElasticSearch(Matchers.anyLong());
 		} catch (InterruptedException | IndexerESNotRecoverableException e) {
 			fail("Unexpected exception from unit test: " + e.getMessage());
 		}
@@ -178,4 +195,414 @@ public class ElasticSearchBatchServiceTest {
 		Mockito.verify(bulkItemResponse, Mockito.times(2)).getFailure();
 	}
 
+	@Test
+	public void testPostToElasticSearchAsync_completesOnResponse() throws Exception {
+		elasticSearchBatchService.addEventToBulkRequest("test message", testIndexName, testIndexType, null, null);
+		CompletableFuture<Void> bulkFuture = elasticSearchBatchService.postToElasticSearchAsync();
+
+		// bulk is in flight until ES responds
+		ArgumentCaptor<ActionListener> listenerCaptor = ArgumentCaptor.forClass(ActionListener.class);
+		Mockito.verify(elasticSearchClientService, Mockito.times(1)).bulk(Matchers.any(BulkRequest.class), listenerCaptor.capture());
+		Mockito.verify(elasticSearchClientService, Mockito.never()).bulk(Matchers.any(BulkRequest.class));
+		Assert.assertFalse(bulkFuture.isDone());
+		Assert.assertEquals(1, elasticSearchBatchService.getNumberOfInFlightBulks());
+
+		listenerCaptor.getValue().onResponse(mockedBulkResponse);
+		Assert.assertTrue(bulkFuture.isDone());
+		Assert.assertFalse(bulkFuture.isCompletedExceptionally());
+		Assert.assertEquals(0, elasticSearchBatchService.getNumberOfInFlightBulks());
+	}
+
+	@Test
+	public void testPostToElasticSearchAsync_failureIsRecoverable() throws Exception {
+		elasticSearchBatchService.addEventToBulkRequest("test message", testIndexName, testIndexType, null, null);
+		CompletableFuture<Void> bulkFuture = elasticSearchBatchService.postToElasticSearchAsync();
+
+		ArgumentCaptor<ActionListener> listenerCaptor = ArgumentCaptor.forClass(ActionListener.class);
+		Mockito.verify(elasticSearchClientService, Mockito.times(1)).bulk(Matchers.any(BulkRequest.class), listenerCaptor.capture());
+		listenerCaptor.getValue().onFailure(new NoNodeAvailableException("Unit Test Exception"));
+		Assert.assertTrue(bulkFuture.isCompletedExceptionally());
+		try {
+			bulkFuture.get();
+			fail("Expected IndexerESRecoverableException from the failed bulk");
+		} catch (ExecutionException e) {
+			Assert.assertTrue(e.getCause() instanceof IndexerESRecoverableException);
+		}
+		// the ES client is not re-initialized on the callback thread
+		Mockito.verify(elasticSearchClientService, Mockito.never()).reInitElasticSearch(Matchers.anyLong());
+		Assert.assertEquals(0, elasticSearchBatchService.getNumberOfInFlightBulks());
+	}
+
+	@Test
+	public void testPostToElasticSearchAsync_inFlightLimitWaitIsBounded() throws Exception {
+		elasticSearchBatchService.setMaxInFlightBulks(1);
+		elasticSearchBatchService.setMaxInFlightWaitMs(10L);
+		elasticSearchBatchService.addEventToBulkRequest("test message 1", testIndexName, testIndexType, null, null);
+		CompletableFuture<Void> firstBulkFuture = elasticSearchBatchService.postToElasticSearchAsync();
+		Assert.assertTrue(elasticSearchBatchService.isInFlightBulksLimitReached());
+
+		// no slot is freed - the second bulk is not posted, and the caller is not blocked
+		elasticSearchBatchService.addEventToBulkRequest("test message 2", testIndexName, testIndexType, null, null);
+		CompletableFuture<Void> secondBulkFuture = elasticSearchBatchService.postToElasticSearchAsync();
+		try {
+			secondBulkFuture.get();
+			fail("Expected IndexerESRecoverableException for the bulk that was not posted");
+		} catch (ExecutionException e) {
+			Assert.assertTrue(e.getCause() instanceof IndexerESRecoverableException);
+		}
+		ArgumentCaptor<ActionListener> listenerCaptor = ArgumentCaptor.forClass(ActionListener.class);
+		Mockito.verify(elasticSearchClientService, Mockito.times(1)).bulk(Matchers.any(BulkRequest.class), listenerCaptor.capture());
+
+		// the bulk that was not posted is re-posted on the re-try
+		listenerCaptor.getValue().onResponse(mockedBulkResponse);
+		Assert.assertTrue(firstBulkFuture.isDone());
+		Assert.assertTrue(elasticSearchBatchService.flushIfNeeded());
+		Mockito.verify(elasticSearchClientService, Mockito.times(1)).bulk(Matchers.any(BulkRequest.class));
+	}
+
+	@Test
+	public void testPostToElasticSearchAsync_emptyBulk() throws Exception {
+		CompletableFuture<Void> bulkFuture = elasticSearchBatchService.postToElasticSearchAsync();
+		Assert.assertTrue(bulkFuture.isDone());
+		Assert.assertFalse(bulkFuture.isCompletedExceptionally());
+		Mockito.verify(elasticSearchClientService, Mockito.never()).bulk(Matchers.any(BulkRequest.class), Matchers.any(ActionListener.class));
+	}
+
+	@Test
+	public void testFlushIfNeeded_splitsByMaxActions() throws Exception {
+		elasticSearchBatchService.setMaxBulkActions(1);
+		elasticSearchBatchService.addEventToBulkRequest("test message 1", testIndexName, testIndexType, null, null);
+		elasticSearchBatchService.addEventToBulkRequest("test message 2", testIndexName, testIndexType, null, null);
+		Assert.assertTrue(elasticSearchBatchService.flushIfNeeded());
+		// one bulk request per event
+		Mockito.verify(elasticSearchClientService, Mockito.times(2)).prepareBulk();
+		Mockito.verify(elasticSearchClientService, Mockito.times(2)).bulk(Matchers.any(BulkRequest.class));
+	}
+
+	@Test
+	public void testFlushIfNeeded_adaptiveControllerLimitsBulkSize() throws Exception {
+		AdaptiveBulkController adaptiveBulkController = Mockito.mock(AdaptiveBulkController.class);
+		Mockito.when(adaptiveBulkController.getBulkActionsLimit()).thenReturn(1);
+		elasticSearchBatchService.setAdaptiveBulkController(adaptiveBulkController);
+		elasticSearchBatchService.addEventToBulkRequest("test message 1", testIndexName, testIndexType, null, null);
+		elasticSearchBatchService.addEventToBulkRequest("test message 2", testIndexName, testIndexType, null, null);
+		Assert.assertTrue(elasticSearchBatchService.flushIfNeeded());
+		Mockito.verify(elasticSearchClientService, Mockito.times(2)).bulk(Matchers.any(BulkRequest.class));
+		Mockito.verify(adaptiveBulkController, Mockito.times(2)).onBulkCompleted(Matchers.eq(1), Matchers.anyLong());
+		Mockito.verify(adaptiveBulkController, Mockito.never()).onBulkRejected();
+	}
+
+	@Test
+	public void testFlushIfNeeded_accumulatesUntilLingerTime() throws Exception {
+		elasticSearchBatchService.setBulkLingerMs(60000L);
+		elasticSearchBatchService.addEventToBulkRequest("test message", testIndexName, testIndexType, null, null);
+		Assert.assertFalse(elasticSearchBatchService.isFlushNeeded());
+		Assert.assertFalse(elasticSearchBatchService.flushIfNeeded());
+		Mockito.verify(elasticSearchClientService, Mockito.never()).bulk(Matchers.any(BulkRequest.class));
+
+		elasticSearchBatchService.setBulkLingerMs(1L);
+		Thread.sleep(5L);
+		Assert.assertTrue(elasticSearchBatchService.flushIfNeeded());
+		Mockito.verify(elasticSearchClientService, Mockito.times(1)).bulk(Matchers.any(BulkRequest.class));
+	}
+
+	@Test
+	public void testFlushIfNeeded_fullBulkIsFlushedBeforeLingerTime() throws Exception {
+		elasticSearchBatchService.setBulkLingerMs(60000L);
+		elasticSearchBatchService.setMaxBulkActions(1);
+		elasticSearchBatchService.addEventToBulkRequest("test message", testIndexName, testIndexType, null, null);
+		Assert.assertTrue(elasticSearchBatchService.flushIfNeeded());
+		Mockito.verify(elasticSearchClientService, Mockito.times(1)).bulk(Matchers.any(BulkRequest.class));
+	}
+
+	@Test
+	public void testFlushIfNeeded_failedBulkIsRepostedOnRetry() throws Exception {
+		elasticSearchBatchService.addEventToBulkRequest("test message", testIndexName, testIndexType, null, null);
+		Mockito.when(elasticSearchClientService.bulk(Matchers.any(BulkRequest.class)))
+			.thenThrow(new NoNodeAvailableException("Unit Test Exception"))
+			.thenReturn(mockedBulkResponse);
+		try {
+			elasticSearchBatchService.flushIfNeeded();
+			fail("Expected IndexerESRecoverableException from the failed bulk");
+		} catch (IndexerESRecoverableException e) {
+			// expected
+		}
+		// the same bulk request is re-posted - without adding events again
+		Assert.assertTrue(elasticSearchBatchService.flushIfNeeded());
+		Mockito.verify(elasticSearchClientService, Mockito.times(1)).prepareBulk();
+		Mockito.verify(elasticSearchClientService, Mockito.times(2)).bulk(Matchers.any(BulkRequest.class));
+	}
+
+	@Test
+	public void testPostToElasticSearch_notPostedBulksAreKeptOnFailure() throws Exception {
+		elasticSearchBatchService.setMaxBulkActions(1);
+		elasticSearchBatchService.addEventToBulkRequest("test message 1", testIndexName, testIndexType, null, null);
+		elasticSearchBatchService.addEventToBulkRequest("test message 2", testIndexName, testIndexType, null, null);
+		Mockito.when(elasticSearchClientService.bulk(Matchers.any(BulkRequest.class)))
+			.thenThrow(new NoNodeAvailableException("Unit Test Exception"))
+			.thenReturn(mockedBulkResponse);
+		try {
+			elasticSearchBatchService.postToElasticSearch();
+			fail("Expected IndexerESRecoverableException from the failed bulk");
+		} catch (IndexerESRecoverableException e) {
+			// expected
+		}
+		Mockito.verify(elasticSearchClientService, Mockito.times(1)).bulk(Matchers.any(BulkRequest.class));
+		// both the failed bulk and the not posted one are re-posted
+		elasticSearchBatchService.postToElasticSearch();
+		Mockito.verify(elasticSearchClientService, Mockito.times(3)).bulk(Matchers.any(BulkRequest.class));
+	}
+
+	@Test
+	public void testDiscardFailedBulkRequests() throws Exception {
+		IDeadLetterSink deadLetterSink = Mockito.mock(IDeadLetterSink.class);
+		elasticSearchBatchService.setDeadLetterSink(deadLetterSink);
+		BulkRequestBuilder bulkRequestBuilder = new BulkRequestBuilder(null, BulkAction.INSTANCE);
+		Mockito.when(elasticSearchClientService.prepareBulk()).thenReturn(bulkRequestBuilder);
+		ConsumerRecord<String, String> sourceRecord = new ConsumerRecord<>("testTopic", 0, 100L, "key1", "{\"message\":1}");
+		elasticSearchBatchService.addActionToBulkRequest(new IndexRequest(testIndexName, testIndexType, "key1")
+			.source("{\"message\":1}", XContentType.JSON), sourceRecord);
+		Mockito.when(elasticSearchClientService.bulk(Matchers.any(BulkRequest.class)))
+			.thenThrow(new NoNodeAvailableException("Unit Test Exception"));
+		try {
+			elasticSearchBatchService.flushIfNeeded();
+			fail("Expected IndexerESRecoverableException from the failed bulk");
+		} catch (IndexerESRecoverableException e) {
+			// expected
+		}
+
+		Assert.assertEquals(1, elasticSearchBatchService.discardFailedBulkRequests("gave up"));
+		Mockito.verify(deadLetterSink, Mockito.times(1)).sendFailedEvent(sourceRecord, "gave up");
+		// the failed bulk request is not re-posted by the next flush
+		Assert.assertTrue(elasticSearchBatchService.flushIfNeeded());
+		Mockito.verify(elasticSearchClientService, Mockito.times(1)).bulk(Matchers.any(BulkRequest.class));
+		Assert.assertEquals(0, elasticSearchBatchService.discardFailedBulkRequests("gave up"));
+	}
+
+	@Test
+	public void testFlushIfNeeded_onlyFailedItemsAreRetried() throws Exception {
+		// use real bulk/index request builders - to check which requests end up in the re-try bulk
+		List<BulkRequestBuilder> createdBulkRequestBuilders = new ArrayList<>();
+		Mockito.when(elasticSearchClientService.prepareBulk()).thenAnswer(invocation -> {
+			BulkRequestBuilder bulkRequestBuilder = new BulkRequestBuilder(null, BulkAction.INSTANCE);
+			createdBulkRequestBuilders.add(bulkRequestBuilder);
+			return bulkRequestBuilder;
+		});
+		Mockito.when(elasticSearchClientService.prepareIndex(Matchers.anyString(), Matchers.anyString(), Matchers.anyString()))
+			.thenAnswer(invocation -> new IndexRequestBuilder(null, IndexAction.INSTANCE)
+				.setIndex(testIndexName).setType(testIndexType));
+		for (int i = 0; i < 3; i++) {
+			elasticSearchBatchService.addEventToBulkRequest("{\"message\":" + i + "}", testIndexName, testIndexType, null, null);
+		}
+		// second item fails with SERVICE_UNAVAILABLE, the others are indexed OK
+		BulkItemResponse[] itemResponses = new BulkItemResponse[3];
+		for (int i = 0; i < 3; i++) {
+			itemResponses[i] = (i == 1) ?
+				new BulkItemResponse(i, OpType.INDEX, new Failure(testIndexName, testIndexType, null,
+					new IllegalStateException("Unit Test Exception"), RestStatus.SERVICE_UNAVAILABLE)) :
+				new BulkItemResponse(i, OpType.INDEX,
+					new IndexResponse(new ShardId(testIndexName, "_na_", 0), testIndexType, "id" + i, 1L, 1L, 1L, true));
+		}
+		BulkResponse partiallyFailedResponse = new BulkResponse(itemResponses, 1L);
+		Mockito.when(elasticSearchClientService.bulk(Matchers.any(BulkRequest.class))).thenAnswer(invocation ->
+			invocation.getArguments()[0] == createdBulkRequestBuilders.get(0).request() ? partiallyFailedResponse : mockedBulkResponse);
+
+		try {
+			elasticSearchBatchService.flushIfNeeded();
+			fail("Expected IndexerESRecoverableException from the partially failed bulk");
+		} catch (IndexerESRecoverableException e) {
+			// expected
+		}
+		Assert.assertEquals(2, createdBulkRequestBuilders.size());
+		BulkRequestBuilder retryBulkRequestBuilder = createdBulkRequestBuilders.get(1);
+		Assert.assertEquals(1, retryBulkRequestBuilder.numberOfActions());
+		IndexRequest retriedRequest = (IndexRequest) retryBulkRequestBuilder.request().requests().get(0);
+		Assert.assertEquals("{\"message\":1}", retriedRequest.source().utf8ToString());
+
+		Mockito.when(mockedBulkResponse.hasFailures()).thenReturn(false);
+		Assert.assertTrue(elasticSearchBatchService.flushIfNeeded());
+		Mockito.verify(elasticSearchClientService, Mockito.times(1)).bulk(Matchers.same(retryBulkRequestBuilder.request()));
+		Mockito.verify(elasticSearchClientService, Mockito.times(1)).bulk(Matchers.same(createdBulkRequestBuilders.get(0).request()));
+	}
+
+	@Test
+	public void testFlushIfNeeded_rejectedItemsAreRetriedWithinTimeBudget() throws Exception {
+		elasticSearchBatchService.setBulkRetryInitialBackoffMs(1L);
+		elasticSearchBatchService.setBulkRetryMaxBackoffMs(10L);
+		elasticSearchBatchService.setBulkRetryTimeBudgetMs(10000L);
+		List<BulkRequestBuilder> createdBulkRequestBuilders = new ArrayList<>();
+		Mockito.when(elasticSearchClientService.prepareBulk()).thenAnswer(invocation -> {
+			BulkRequestBuilder bulkRequestBuilder = new BulkRequestBuilder(null, BulkAction.INSTANCE);
+			createdBulkRequestBuilders.add(bulkRequestBuilder);
+			return bulkRequestBuilder;
+		});
+		Mockito.when(elasticSearchClientService.prepareIndex(Matchers.anyString(), Matchers.anyString(), Matchers.anyString()))
+			.thenAnswer(invocation -> new IndexRequestBuilder(null, IndexAction.INSTANCE)
+				.setIndex(testIndexName).setType(testIndexType));
+		elasticSearchBatchService.addEventToBulkRequest("{\"message\":0}", testIndexName, testIndexType, null, null);
+		// the only item is rejected because the write thread pool queue of ES is full
+		BulkItemResponse[] itemResponses = new BulkItemResponse[] {
+			new BulkItemResponse(0, OpType.INDEX, new Failure(testIndexName, testIndexType, null,
+				new IllegalStateException("es_rejected_execution_exception"), RestStatus.TOO_MANY_REQUESTS))
+		};
+		BulkResponse rejectedResponse = new BulkResponse(itemResponses, 1L);
+		Mockito.when(elasticSearchClientService.bulk(Matchers.any(BulkRequest.class))).thenAnswer(invocation ->
+			invocation.getArguments()[0] == createdBulkRequestBuilders.get(0).request() ? rejectedResponse : mockedBulkResponse);
+		Mockito.when(mockedBulkResponse.hasFailures()).thenReturn(false);
+
+		// rejected item is re-tried within the same flush
+		Assert.assertTrue(elasticSearchBatchService.flushIfNeeded());
+		Assert.assertEquals(2, createdBulkRequestBuilders.size());
+		Assert.assertEquals(1, createdBulkRequestBuilders.get(1).numberOfActions());
+		Mockito.verify(elasticSearchClientService, Mockito.times(1)).bulk(Matchers.same(createdBulkRequestBuilders.get(1).request()));
+	}
+
+	@Test
+	public void testFlushIfNeeded_notRecoverableFailedItemsAreSentToDeadLetterSink() throws Exception {
+		IDeadLetterSink deadLetterSink = Mockito.mock(IDeadLetterSink.class);
+		elasticSearchBatchService.setDeadLetterSink(deadLetterSink);
+		BulkRequestBuilder bulkRequestBuilder = new BulkRequestBuilder(null, BulkAction.INSTANCE);
+		Mockito.when(elasticSearchClientService.prepareBulk()).thenReturn(bulkRequestBuilder);
+		Mockito.when(elasticSearchClientService.prepareIndex(Matchers.anyString(), Matchers.anyString(), Matchers.anyString()))
+			.thenAnswer(invocation -> new IndexRequestBuilder(null, IndexAction.INSTANCE)
+				.setIndex(testIndexName).setType(testIndexType));
+		List<ConsumerRecord<String, String>> sourceRecords = new ArrayList<>();
+		for (int i = 0; i < 2; i++) {
+			ConsumerRecord<String, String> sourceRecord = new ConsumerRecord<>("testTopic", 0, 100L + i, "key" + i, "{\"message\":" + i + "}");
+			sourceRecords.add(sourceRecord);
+			elasticSearchBatchService.addEventToBulkRequest(sourceRecord.value(), testIndexName, testIndexType, null, null, sourceRecord);
+		}
+		// second item is rejected by ES with a not recoverable error
+		BulkItemResponse[] itemResponses = new BulkItemResponse[] {
+			new BulkItemResponse(0, OpType.INDEX,
+				new IndexResponse(new ShardId(testIndexName, "_na_", 0), testIndexType, "id0", 1L, 1L, 1L, true)),
+			new BulkItemResponse(1, OpType.INDEX, new Failure(testIndexName, testIndexType, null,
+				new IllegalArgumentException("mapper_parsing_exception"), RestStatus.BAD_REQUEST))
+		};
+		Mockito.when(elasticSearchClientService.bulk(Matchers.any(BulkRequest.class))).thenReturn(new BulkResponse(itemResponses, 1L));
+
+		// not recoverable failures do not stop the batch from being committed
+		Assert.assertTrue(elasticSearchBatchService.flushIfNeeded());
+		Mockito.verify(deadLetterSink, Mockito.times(1)).sendFailedEvent(
+			Matchers.same(sourceRecords.get(1)), Matchers.contains("BAD_REQUEST"));
+		Mockito.verifyNoMoreInteractions(deadLetterSink);
+	}
+
+	@Test
+	public void testAddEventToBulkRequest_rawBytesAreUsedAsSource() throws Exception {
+		BulkRequestBuilder bulkRequestBuilder = new BulkRequestBuilder(null, BulkAction.INSTANCE);
+		Mockito.when(elasticSearchClientService.prepareBulk()).thenReturn(bulkRequestBuilder);
+		Mockito.when(elasticSearchClientService.prepareIndex(Matchers.anyString(), Matchers.anyString(), Matchers.anyString()))
+			.thenAnswer(invocation -> new IndexRequestBuilder(null, IndexAction.INSTANCE)
+				.setIndex(testIndexName).setType(testIndexType));
+		byte[] message = "{\"message\":1}".getBytes(StandardCharsets.UTF_8);
+		ConsumerRecord<String, byte[]> sourceRecord = new ConsumerRecord<>("test-topic", 0, 1L, null, message);
+		elasticSearchBatchService.addEventToBulkRequest(message, testIndexName, testIndexType, "id1", null, sourceRecord);
+		IndexRequest indexRequest = (IndexRequest) bulkRequestBuilder.request().requests().get(0);
+		// the source wraps the consumed bytes - they are not copied
+		Assert.assertSame(message, indexRequest.source().toBytesRef().bytes);
+		Assert.assertSame(sourceRecord, bulkRequestBuilder.request().payloads().get(0));
+	}
+
+	@Test
+	public void testAddEventToBulkRequest_coalescingKeepsLastVersionOfDocument() throws Exception {
+		elasticSearchBatchService.setCoalescingEnabled(true);
+		BulkRequestBuilder bulkRequestBuilder = new BulkRequestBuilder(null, BulkAction.INSTANCE);
+		Mockito.when(elasticSearchClientService.prepareBulk()).thenReturn(bulkRequestBuilder);
+		Mockito.when(elasticSearchClientService.prepareIndex(Matchers.anyString(), Matchers.anyString(), Matchers.anyString()))
+			.thenAnswer(invocation -> new IndexRequestBuilder(null, IndexAction.INSTANCE)
+				.setIndex((String) invocation.getArguments()[0]).setType(testIndexType)
+				.setId((String) invocation.getArguments()[2]));
+		String[][] events = new String[][] {
+			{testIndexName, "id1"}, {testIndexName, "id2"}, {testIndexName, "id1"}, {"otherIndex", "id1"},
+			{testIndexName, null}, {testIndexName, null}, {testIndexName, "id1"}
+		};
+		List<ConsumerRecord<String, String>> sourceRecords = new ArrayList<>();
+		for (int i = 0; i < events.length; i++) {
+			ConsumerRecord<String, String> sourceRecord = new ConsumerRecord<>("testTopic", 0, 100L + i, events[i][1], "{\"version\":" + i + "}");
+			sourceRecords.add(sourceRecord);
+			elasticSearchBatchService.addEventToBulkRequest(sourceRecord.value(), events[i][0], testIndexType, events[i][1], null, sourceRecord);
+		}
+		// id1 in the test index is replaced in place by its last version; the same id in another index
+		// and events without an id are not coalesced
+		BulkRequest bulkRequest = bulkRequestBuilder.request();
+		Assert.assertEquals(5, bulkRequest.numberOfActions());
+		Assert.assertEquals(2, elasticSearchBatchService.getNumberOfCoalescedEvents());
+		Assert.assertEquals("{\"version\":6}", ((IndexRequest) bulkRequest.requests().get(0)).source().utf8ToString());
+		Assert.assertSame(sourceRecords.get(6), bulkRequest.payloads().get(0));
+		Assert.assertSame(sourceRecords.get(1), bulkRequest.payloads().get(1));
+		Assert.assertSame(sourceRecords.get(3), bulkRequest.payloads().get(2));
+		Assert.assertEquals("otherIndex", bulkRequest.requests().get(2).index());
+	}
+
+	@Test
+	public void testAddDeleteToBulkRequest() throws Exception {
+		BulkRequestBuilder bulkRequestBuilder = new BulkRequestBuilder(null, BulkAction.INSTANCE);
+		Mockito.when(elasticSearchClientService.prepareBulk()).thenReturn(bulkRequestBuilder);
+		ConsumerRecord<String, String> tombstone = new ConsumerRecord<>("testTopic", 0, 100L, "key1", null);
+		elasticSearchBatchService.addDeleteToBulkRequest(testIndexName, testIndexType, "key1", "r1", tombstone);
+		elasticSearchBatchService.addActionToBulkRequest(new UpdateRequest(testIndexName, testIndexType, "key2")
+			.doc("{\"message\":2}", XContentType.JSON), null);
+
+		BulkRequest bulkRequest = bulkRequestBuilder.request();
+		Assert.assertEquals(2, bulkRequest.numberOfActions());
+		DeleteRequest deleteRequest = (DeleteRequest) bulkRequest.requests().get(0);
+		Assert.assertEquals(testIndexName, deleteRequest.index());
+		Assert.assertEquals("key1", deleteRequest.id());
+		Assert.assertEquals("r1", deleteRequest.routing());
+		Assert.assertSame(tombstone, bulkRequest.payloads().get(0));
+		Assert.assertEquals(OpType.UPDATE, bulkRequest.requests().get(1).opType());
+		Mockito.verify(elasticSearchClientService, Mockito.never()).prepareIndex(Matchers.anyString(), Matchers.anyString(), Matchers.anyString());
+	}
+
+	@Test
+	public void testAddActionToBulkRequest_externalVersioningSkipsCreate() throws Exception {
+		elasticSearchBatchService.setExternalVersioningEnabled(true);
+		BulkRequestBuilder bulkRequestBuilder = new BulkRequestBuilder(null, BulkAction.INSTANCE);
+		Mockito.when(elasticSearchClientService.prepareBulk()).thenReturn(bulkRequestBuilder);
+		// create op from the op type header
+		elasticSearchBatchService.addActionToBulkRequest(new IndexRequest(testIndexName, testIndexType, "key1")
+			.source("{\"message\":1}", XContentType.JSON).opType(OpType.CREATE),
+			new ConsumerRecord<>("testTopic", 0, 100L, "key1", "{\"message\":1}"));
+		elasticSearchBatchService.addActionToBulkRequest(new IndexRequest(testIndexName, testIndexType, "key2")
+			.source("{\"message\":2}", XContentType.JSON),
+			new ConsumerRecord<>("testTopic", 0, 101L, "key2", "{\"message\":2}"));
+
+		BulkRequest bulkRequest = bulkRequestBuilder.request();
+		Assert.assertEquals(VersionType.INTERNAL, bulkRequest.requests().get(0).versionType());
+		Assert.assertEquals(VersionType.EXTERNAL, bulkRequest.requests().get(1).versionType());
+		Assert.assertNull(bulkRequest.validate());
+	}
+
+	@Test
+	public void testFlushIfNeeded_externalVersionConflictsAreNotFailures() throws Exception {
+		elasticSearchBatchService.setExternalVersioningEnabled(true);
+		IDeadLetterSink deadLetterSink = Mockito.mock(IDeadLetterSink.class);
+		elasticSearchBatchService.setDeadLetterSink(deadLetterSink);
+		BulkRequestBuilder bulkRequestBuilder = new BulkRequestBuilder(null, BulkAction.INSTANCE);
+		Mockito.when(elasticSearchClientService.prepareBulk()).thenReturn(bulkRequestBuilder);
+		Mockito.when(elasticSearchClientService.prepareIndex(Matchers.anyString(), Matchers.anyString(), Matchers.anyString()))
+			.thenAnswer(invocation -> new IndexRequestBuilder(null, IndexAction.INSTANCE)
+				.setIndex(testIndexName).setType(testIndexType).setId((String) invocation.getArguments()[2]));
+		elasticSearchBatchService.addEventToBulkRequest("{\"message\":1}", testIndexName, testIndexType, "key1", null,
+			new ConsumerRecord<>("testTopic", 0, 100L, "key1", "{\"message\":1}"));
+		// no id - ES generates one, versioning does not apply
+		elasticSearchBatchService.addEventToBulkRequest("{\"message\":2}", testIndexName, testIndexType, null, null,
+			new ConsumerRecord<>("testTopic", 0, 101L, null, "{\"message\":2}"));
+		DocWriteRequest<?> versionedRequest = bulkRequestBuilder.request().requests().get(0);
+		Assert.assertEquals(100L, versionedRequest.version());
+		Assert.assertEquals(VersionType.EXTERNAL, versionedRequest.versionType());
+		Assert.assertEquals(VersionType.INTERNAL, bulkRequestBuilder.request().requests().get(1).versionType());
+
+		// the first event was re-processed - ES has its version already
+		BulkItemResponse[] itemResponses = new BulkItemResponse[] {
+			new BulkItemResponse(0, OpType.INDEX, new Failure(testIndexName, testIndexType, "key1",
+				new IllegalStateException("version_conflict_engine_exception"), RestStatus.CONFLICT))
+		};
+		Mockito.when(elasticSearchClientService.bulk(Matchers.any(BulkRequest.class))).thenReturn(new BulkResponse(itemResponses, 1L));
+		Assert.assertTrue(elasticSearchBatchService.flushIfNeeded());
+		Assert.assertEquals(1L, elasticSearchBatchService.getNumberOfStaleVersionEvents());
+		Mockito.verifyZeroInteractions(deadLetterSink);
+	}
+
 }
@@ -0,0 +1,143 @@
+package org.elasticsearch.kafka.indexer.service;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.google.common.base.Ticker;
+
+public class EnrichmentCacheTest {
+
+	private final AtomicLong timeNanos = new AtomicLong();
+	private final AtomicInteger numLookups = new AtomicInteger();
+	private EnrichmentCache<String, String> enrichmentCache = new EnrichmentCache<>();
+
+	@Before
+	public void setUp() {
+		enrichmentCache.setTicker(new Ticker() {
+			@Override
+			public long read() {
+				return timeNanos.get();
+			}
+		});
+		enrichmentCache.setTtlMs(60000L);
+		enrichmentCache.setEnrichmentLookup(key -> {
+			numLookups.incrementAndGet();
+			if (key.startsWith("missing")) {
+				return null;
+			}
+			if (key.startsWith("failing")) {
+				throw new IllegalStateException("lookup failed: " + key);
+			}
+			return "value-" + key;
+		});
+	}
+
+	private void advanceTimeMs(long timeMs) {
+		timeNanos.addAndGet(TimeUnit.MILLISECONDS.toNanos(timeMs));
+	}
+
+	@Test
+	public void testGet() throws Exception {
+		enrichmentCache.init();
+		Assert.assertEquals("value-k1", enrichmentCache.get("k1"));
+		Assert.assertEquals("value-k1", enrichmentCache.get("k1"));
+		Assert.assertEquals(1, numLookups.get());
+		Assert.assertEquals(1L, enrichmentCache.getNumberOfHits());
+		Assert.assertEquals(1L, enrichmentCache.getNumberOfMisses());
+
+		// expired after the TTL
+		advanceTimeMs(60000L);
+		Assert.assertEquals("value-k1", enrichmentCache.get("k1"));
+		Assert.assertEquals(2, numLookups.get());
+
+		// failures are not cached
+		for (int i = 0; i < 2; i++) {
+			try {
+				enrichmentCache.get("failing1");
+				Assert.fail("the lookup failure must be thrown");
+			} catch (IllegalStateException e) {
+				Assert.assertEquals("lookup failed: failing1", e.getMessage());
+			}
+		}
+		Assert.assertEquals(4, numLookups.get());
+		Assert.assertEquals(2L, enrichmentCache.getNumberOfFailedLookups());
+	}
+
+	@Test
+	public void testGet_maxSize() throws Exception {
+		enrichmentCache.setMaxSize(2L);
+		enrichmentCache.init();
+		for (int i = 0; i < 5; i++) {
+			enrichmentCache.get("k" + i);
+		}
+		Assert.assertTrue(enrichmentCache.getSize() <= 2L);
+		Assert.assertTrue(enrichmentCache.getNumberOfEvictions() >= 3L);
+	}
+
+	@Test
+	public void testGet_negativeCache() throws Exception {
+		// not cached by default
+		enrichmentCache.init();
+		Assert.assertNull(enrichmentCache.get("missing1"));
+		Assert.assertNull(enrichmentCache.get("missing1"));
+		Assert.assertEquals(2, numLookups.get());
+		Assert.assertEquals(0L, enrichmentCache.getSize());
+
+		enrichmentCache.setNegativeTtlMs(5000L);
+		enrichmentCache.init();
+		Assert.assertNull(enrichmentCache.get("missing1"));
+		Assert.assertNull(enrichmentCache.get("missing1"));
+		Assert.assertEquals(3, numLookups.get());
+
+		// looked up again after the negative TTL - before the TTL of the cache
+		advanceTimeMs(5000L);
+		Assert.assertNull(enrichmentCache.get("missing1"));
+		Assert.assertEquals(4, numLookups.get());
+		Assert.assertNull(enrichmentCache.get("missing1"));
+		Assert.assertEquals(4, numLookups.get());
+		// the get() of the expired negative entry is counted as a miss only
+		Assert.assertEquals(2L, enrichmentCache.getNumberOfHits());
+		Assert.assertEquals(2L, enrichmentCache.getNumberOfMisses());
+		Assert.assertEquals(0.5, enrichmentCache.getHitRate(), 0.0);
+	}
+
+	@Test
+	public void testGet_concurrentMissesAreCoalesced() throws Exception {
+		CountDownLatch lookupStarted = new CountDownLatch(1);
+		CountDownLatch lookupReleased = new CountDownLatch(1);
+		enrichmentCache.setEnrichmentLookup(key -> {
+			numLookups.incrementAndGet();
+			lookupStarted.countDown();
+			lookupReleased.await();
+			return "value-" + key;
+		});
+		enrichmentCache.init();
+		ExecutorService executor = Executors.newFixedThreadPool(4);
+		try {
+			Future<?>[] results = new Future<?>[4];
+			for (int i = 0; i < results.length; i++) {
+				results[i] = executor.submit(() -> enrichmentCache.get("k1"));
+				if (i == 0) {
+					Assert.assertTrue(lookupStarted.await(5, TimeUnit.SECONDS));
+				}
+			}
+			lookupReleased.countDown();
+			for (Future<?> result : results) {
+				Assert.assertEquals("value-k1", result.get(5, TimeUnit.SECONDS));
+			}
+		} finally {
+			executor.shutdownNow();
+		}
+		Assert.assertEquals(1, numLookups.get());
+	}
+
+}
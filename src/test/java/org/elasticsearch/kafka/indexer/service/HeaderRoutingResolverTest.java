@@ -0,0 +1,60 @@
+package org.elasticsearch.kafka.indexer.service;
+
+import java.nio.charset.StandardCharsets;
+
+import org.apache.kafka.clients.consumer.ConsumerRecord;
+import org.apache.kafka.common.header.internals.RecordHeaders;
+import org.apache.kafka.common.record.TimestampType;
+import org.elasticsearch.action.DocWriteRequest;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+public class HeaderRoutingResolverTest {
+
+	private HeaderRoutingResolver headerRoutingResolver = new HeaderRoutingResolver();
+
+	@Before
+	public void setUp() {
+		headerRoutingResolver.setIndexNameHeaders("tenant, eventType");
+		headerRoutingResolver.setIndexNamePrefix("events-");
+		headerRoutingResolver.setDocumentIdHeader("entityId");
+		headerRoutingResolver.setRoutingHeader("tenant");
+		headerRoutingResolver.setOpTypeHeader("opType");
+		headerRoutingResolver.init();
+	}
+
+	private ConsumerRecord<String, String> createRecord(String... headerNamesAndValues) {
+		RecordHeaders headers = new RecordHeaders();
+		for (int i = 0; i < headerNamesAndValues.length; i += 2) {
+			headers.add(headerNamesAndValues[i], headerNamesAndValues[i + 1].getBytes(StandardCharsets.UTF_8));
+		}
+		return new ConsumerRecord<>("testTopic", 0, 100L, 0L, TimestampType.CREATE_TIME, null, 0, 0, "key1", "not JSON", headers);
+	}
+
+	@Test
+	public void testGetHeaderRouting() {
+		HeaderRoutingResolver.HeaderRouting headerRouting = headerRoutingResolver.getHeaderRouting(
+			createRecord("tenant", "Acme", "eventType", "order", "entityId", "o-1", "opType", "CREATE"));
+		Assert.assertEquals("events-acme-order", headerRouting.getIndexName());
+		Assert.assertEquals("o-1", headerRouting.getDocumentId());
+		Assert.assertEquals("Acme", headerRouting.getRoutingValue());
+		Assert.assertEquals(DocWriteRequest.OpType.CREATE, headerRouting.getOpType());
+
+		// missing headers - the defaults apply
+		headerRouting = headerRoutingResolver.getHeaderRouting(createRecord("tenant", "acme", "entityId", ""));
+		Assert.assertNull(headerRouting.getIndexName());
+		Assert.assertNull(headerRouting.getDocumentId());
+		Assert.assertEquals("acme", headerRouting.getRoutingValue());
+		Assert.assertEquals(DocWriteRequest.OpType.INDEX, headerRouting.getOpType());
+
+		Assert.assertEquals(DocWriteRequest.OpType.DELETE,
+			headerRoutingResolver.getHeaderRouting(createRecord("opType", "delete")).getOpType());
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void testGetHeaderRouting_unsupportedOpType() {
+		headerRoutingResolver.getHeaderRouting(createRecord("opType", "update"));
+	}
+
+}
@@ -0,0 +1,48 @@
+package org.elasticsearch.kafka.indexer.service;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class JsonFieldExtractorTest {
+
+	private static final String EVENT = "{\"id\":\"e1\",\"customer\":{\"id\":7,\"name\":\"n\",\"region\":null}," +
+		"\"items\":[{\"sku\":\"s0\"},{\"sku\":\"s1\"}],\"a/b\":true,\"m~n\":1.5,\"message\":\"m\"}";
+
+	@Test
+	public void testExtract() throws Exception {
+		JsonFieldExtractor extractor = new JsonFieldExtractor(
+			"/customer/id", "id", "/items/1/sku", "/a~1b", "/m~0n", "/customer/region", "/customer", "/missing", "/items/5/sku");
+		String[] expected = { "7", "e1", "s1", "true", "1.5", null, null, null, null };
+		Assert.assertArrayEquals(expected, extractor.extract(EVENT));
+		Assert.assertArrayEquals(expected, extractor.extract(EVENT.getBytes(StandardCharsets.UTF_8)));
+		Assert.assertArrayEquals(new String[9], extractor.extract(null));
+
+		// the same path twice
+		Assert.assertArrayEquals(new String[] { "e1", "e1" }, new JsonFieldExtractor("/id", "id").extract(EVENT));
+		// top level array
+		Assert.assertArrayEquals(new String[] { "b" }, new JsonFieldExtractor("/1").extract("[\"a\",\"b\"]"));
+	}
+
+	@Test
+	public void testExtract_stopsWhenAllPathsAreFound() throws Exception {
+		// the invalid JSON after the found fields is not read
+		JsonFieldExtractor extractor = new JsonFieldExtractor("/id", "/customer/id");
+		Assert.assertArrayEquals(new String[] { "e1", "7" },
+			extractor.extract("{\"id\":\"e1\",\"customer\":{\"name\":\"n\",\"id\":7,\"x\": !!!"));
+		try {
+			new JsonFieldExtractor("/id", "/missing").extract("{\"id\":\"e1\",\"customer\": !!!");
+			Assert.fail("the invalid JSON must be read");
+		} catch (IOException e) {
+			// expected
+		}
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void testInvalidPath() {
+		new JsonFieldExtractor("/");
+	}
+
+}
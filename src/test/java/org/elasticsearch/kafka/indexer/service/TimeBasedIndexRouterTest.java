@@ -0,0 +1,103 @@
+package org.elasticsearch.kafka.indexer.service;
+
+import java.nio.charset.StandardCharsets;
+import java.time.ZonedDateTime;
+import java.time.temporal.ChronoUnit;
+
+import org.apache.kafka.clients.consumer.ConsumerRecord;
+import org.apache.kafka.common.header.internals.RecordHeaders;
+import org.apache.kafka.common.record.TimestampType;
+import org.elasticsearch.ResourceAlreadyExistsException;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.Matchers;
+import org.mockito.Mockito;
+
+public class TimeBasedIndexRouterTest {
+
+	private static final long TIME_MS = ZonedDateTime.parse("2019-03-01T23:15:30Z").toInstant().toEpochMilli();
+
+	private IElasticSearchClientService elasticSearchClientService = Mockito.mock(IElasticSearchClientService.class);
+	private TimeBasedIndexRouter indexRouter = new TimeBasedIndexRouter();
+
+	@Before
+	public void setUp() {
+		indexRouter.setBaseIndexName("events");
+		indexRouter.setAliasName("events");
+		indexRouter.setNumPrecreatedBuckets(0);
+		indexRouter.setElasticSearchClientService(elasticSearchClientService);
+	}
+
+	@After
+	public void tearDown() {
+		indexRouter.cleanup();
+	}
+
+	private ConsumerRecord<String, String> createRecord(String value, String timeHeader) {
+		RecordHeaders headers = new RecordHeaders();
+		if (timeHeader != null) {
+			headers.add("timestamp", timeHeader.getBytes(StandardCharsets.UTF_8));
+		}
+		return new ConsumerRecord<>("testTopic", 0, 100L, TIME_MS, TimestampType.CREATE_TIME, null, 0, 0, null, value, headers);
+	}
+
+	@Test
+	public void testGetIndexName() {
+		indexRouter.init();
+		Assert.assertEquals("events-2019.03.01", indexRouter.getIndexName(TIME_MS));
+		Assert.assertEquals("events-2019.03.02", indexRouter.getIndexName(TIME_MS + 3600000L));
+		Assert.assertEquals("events-2019.03.01", indexRouter.getIndexName(TIME_MS - 3600000L));
+
+		indexRouter.setBucketUnit(ChronoUnit.HOURS);
+		indexRouter.setTimeFormat("yyyy.MM.dd.HH");
+		indexRouter.setTimeZone("America/New_York");
+		indexRouter.init();
+		Assert.assertEquals("events-2019.03.01.18", indexRouter.getIndexName(TIME_MS));
+	}
+
+	@Test
+	public void testGetIndexName_eventTimeSources() {
+		indexRouter.init();
+		Assert.assertEquals("events-2019.03.01", indexRouter.getIndexName(createRecord("{}", "2019-02-10T10:00:00Z")));
+
+		indexRouter.setTimeSource(TimeBasedIndexRouter.TimeSource.HEADER);
+		Assert.assertEquals("events-2019.02.10", indexRouter.getIndexName(createRecord("{}", "2019-02-10T10:00:00Z")));
+		Assert.assertEquals("events-2019.02.11", indexRouter.getIndexName(createRecord("{}", "1549886400000")));
+		// no header - the record timestamp is used
+		Assert.assertEquals("events-2019.03.01", indexRouter.getIndexName(createRecord("{}", null)));
+
+		indexRouter.setTimeSource(TimeBasedIndexRouter.TimeSource.FIELD);
+		indexRouter.setTimeField("time");
+		indexRouter.init();
+		Assert.assertEquals("events-2019.02.12",
+			indexRouter.getIndexName(createRecord("{\"message\":\"m\",\"time\":\"2019-02-12T01:00:00+01:00\"}", null)));
+		Assert.assertEquals("events-2019.03.01", indexRouter.getIndexName(createRecord("{\"time\":\"yesterday\"}", null)));
+
+		indexRouter.setTimeField("/meta/time");
+		indexRouter.init();
+		Assert.assertEquals("events-2019.02.13",
+			indexRouter.getIndexName(createRecord("{\"time\":\"0\",\"meta\":{\"time\":\"2019-02-13T01:00:00Z\"}}", null)));
+	}
+
+	@Test
+	public void testPrecreateIndices() {
+		indexRouter.setTimeFormat("yyyy.MM");
+		indexRouter.setBucketUnit(ChronoUnit.MONTHS);
+		// indices are pre-created by this test, not by the scheduler
+		indexRouter.init();
+		indexRouter.setNumPrecreatedBuckets(2);
+		Mockito.doThrow(new ResourceAlreadyExistsException("exists")).doNothing()
+			.doThrow(new IllegalStateException("timeout")).doNothing()
+			.when(elasticSearchClientService).createIndexAndAlias(Matchers.anyString(), Matchers.eq("events"));
+		indexRouter.precreateIndices();
+		Mockito.verify(elasticSearchClientService, Mockito.times(3)).createIndexAndAlias(Matchers.anyString(), Matchers.eq("events"));
+
+		// only the index that failed to be created is created again
+		Mockito.reset(elasticSearchClientService);
+		indexRouter.precreateIndices();
+		Mockito.verify(elasticSearchClientService, Mockito.times(1)).createIndexAndAlias(Matchers.anyString(), Matchers.eq("events"));
+	}
+
+}
@@ -0,0 +1,101 @@
+package org.elasticsearch.kafka.indexer.service.impl;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.Collections;
+
+import org.apache.avro.Schema;
+import org.apache.avro.generic.GenericData;
+import org.apache.avro.generic.GenericDatumWriter;
+import org.apache.avro.generic.GenericRecord;
+import org.apache.avro.io.BinaryEncoder;
+import org.apache.avro.io.EncoderFactory;
+import org.elasticsearch.common.Strings;
+import org.elasticsearch.common.xcontent.XContentBuilder;
+import org.elasticsearch.common.xcontent.XContentFactory;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+public class AvroValueConverterTest {
+
+	private static final String SCHEMA = "{\"type\":\"record\",\"name\":\"Event\",\"fields\":["
+		+ "{\"name\":\"id\",\"type\":\"long\"},"
+		+ "{\"name\":\"message\",\"type\":[\"null\",\"string\"]},"
+		+ "{\"name\":\"level\",\"type\":{\"type\":\"enum\",\"name\":\"Level\",\"symbols\":[\"INFO\",\"ERROR\"]}},"
+		+ "{\"name\":\"tags\",\"type\":{\"type\":\"array\",\"items\":\"string\"}},"
+		+ "{\"name\":\"counters\",\"type\":{\"type\":\"map\",\"values\":\"int\"}},"
+		+ "{\"name\":\"score\",\"type\":\"double\"}]}";
+
+	private File schemaDir;
+	private AvroValueConverter valueConverter;
+	private Schema schema;
+
+	@Before
+	public void setUp() throws Exception {
+		schemaDir = Files.createTempDirectory("schemas").toFile();
+		Files.write(new File(schemaDir, "42.avsc").toPath(), SCHEMA.getBytes(StandardCharsets.UTF_8));
+		schema = new Schema.Parser().parse(SCHEMA);
+		valueConverter = new AvroValueConverter();
+		valueConverter.setSchemaDir(schemaDir.getAbsolutePath());
+	}
+
+	@After
+	public void tearDown() throws Exception {
+		File[] files = schemaDir.listFiles();
+		if (files != null) {
+			Arrays.stream(files).forEach(File::delete);
+		}
+		schemaDir.delete();
+	}
+
+	private byte[] serialize(GenericRecord record, int schemaId) throws Exception {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		out.write(SchemaFileValueConverter.MAGIC_BYTE);
+		out.write(ByteBuffer.allocate(4).putInt(schemaId).array());
+		BinaryEncoder encoder = EncoderFactory.get().binaryEncoder(out, null);
+		new GenericDatumWriter<GenericRecord>(record.getSchema()).write(record, encoder);
+		encoder.flush();
+		return out.toByteArray();
+	}
+
+	@Test
+	public void testConvert() throws Exception {
+		GenericRecord record = new GenericData.Record(schema);
+		record.put("id", 7L);
+		record.put("message", "h\u00e9llo");
+		record.put("level", new GenericData.EnumSymbol(schema.getField("level").schema(), "ERROR"));
+		record.put("tags", Arrays.asList("a", "b"));
+		record.put("counters", Collections.singletonMap("x", 3));
+		record.put("score", 1.5);
+
+		XContentBuilder builder = XContentFactory.jsonBuilder();
+		valueConverter.convert(serialize(record, 42), builder);
+		Assert.assertEquals("{\"id\":7,\"message\":\"h\u00e9llo\",\"level\":\"ERROR\",\"tags\":[\"a\",\"b\"],"
+			+ "\"counters\":{\"x\":3},\"score\":1.5}", Strings.toString(builder));
+		// the schema is loaded once and cached by its id
+		Assert.assertSame(valueConverter.getSchema(42), valueConverter.getSchema(42));
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void testConvert_notInWireFormat() throws Exception {
+		valueConverter.convert("{\"id\":7}".getBytes(StandardCharsets.UTF_8), XContentFactory.jsonBuilder());
+	}
+
+	@Test(expected = java.io.IOException.class)
+	public void testConvert_unknownSchemaId() throws Exception {
+		GenericRecord record = new GenericData.Record(schema);
+		record.put("id", 7L);
+		record.put("level", new GenericData.EnumSymbol(schema.getField("level").schema(), "INFO"));
+		record.put("tags", Collections.emptyList());
+		record.put("counters", Collections.emptyMap());
+		record.put("score", 0.0);
+		valueConverter.convert(serialize(record, 43), XContentFactory.jsonBuilder());
+	}
+
+}
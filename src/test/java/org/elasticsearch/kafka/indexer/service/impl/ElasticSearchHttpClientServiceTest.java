@@ -0,0 +1,183 @@
+package org.elasticsearch.kafka.indexer.service.impl;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.zip.GZIPInputStream;
+
+import org.apache.http.HttpEntity;
+import org.apache.http.nio.ContentEncoder;
+import org.apache.http.nio.entity.HttpAsyncContentProducer;
+import org.apache.http.util.EntityUtils;
+import org.elasticsearch.action.bulk.BulkItemResponse;
+import org.elasticsearch.action.bulk.BulkRequest;
+import org.elasticsearch.action.bulk.BulkResponse;
+import org.elasticsearch.action.delete.DeleteRequest;
+import org.elasticsearch.action.index.IndexRequest;
+import org.elasticsearch.action.update.UpdateRequest;
+import org.elasticsearch.common.xcontent.XContentType;
+import org.elasticsearch.index.VersionType;
+import org.junit.Assert;
+import org.junit.Test;
+import org.mockito.Matchers;
+import org.mockito.Mockito;
+
+public class ElasticSearchHttpClientServiceTest {
+
+	private BulkRequest createTestBulkRequest() {
+		BulkRequest bulkRequest = new BulkRequest();
+		bulkRequest.add(new IndexRequest("testIndex", "testType", "id1").routing("r1")
+			.source("{\"message\":1}", XContentType.JSON));
+		// pretty printed source has to be collapsed into one line
+		bulkRequest.add(new IndexRequest("testIndex", "testType")
+			.source("{\n  \"message\" : 2\n}", XContentType.JSON));
+		bulkRequest.add(new DeleteRequest("testIndex", "testType", "id3").version(5L).versionType(VersionType.EXTERNAL));
+		bulkRequest.add(new UpdateRequest("testIndex", "testType", "id4").doc("{\"message\":4}", XContentType.JSON)
+			.docAsUpsert(true).retryOnConflict(3));
+		return bulkRequest;
+	}
+
+	private static final String EXPECTED_BULK_BODY =
+		"{\"index\":{\"_index\":\"testIndex\",\"_type\":\"testType\",\"_id\":\"id1\",\"routing\":\"r1\"}}\n" +
+		"{\"message\":1}\n" +
+		"{\"index\":{\"_index\":\"testIndex\",\"_type\":\"testType\"}}\n" +
+		"{\"message\":2}\n" +
+		"{\"delete\":{\"_index\":\"testIndex\",\"_type\":\"testType\",\"_id\":\"id3\",\"version\":5,\"version_type\":\"external\"}}\n" +
+		"{\"update\":{\"_index\":\"testIndex\",\"_type\":\"testType\",\"_id\":\"id4\",\"retry_on_conflict\":3}}\n" +
+		"{\"doc_as_upsert\":true,\"doc\":{\"message\":4}}\n";
+
+	@Test
+	public void testReInitElasticSearch_onlyOncePerFailedClient() throws Exception {
+		ElasticSearchHttpClientService httpClientService = new ElasticSearchHttpClientService();
+		httpClientService.setEsHttpHostList(Arrays.asList("http://localhost:9200"));
+		httpClientService.setSocketTimeoutMs(1000);
+		httpClientService.init();
+		try {
+			long failedClientGeneration = httpClientService.getClientGeneration();
+			httpClientService.reInitElasticSearch(failedClientGeneration);
+			long reInitClientGeneration = httpClientService.getClientGeneration();
+			Assert.assertNotEquals(failedClientGeneration, reInitClientGeneration);
+			// another worker whose request failed on the same client calls it later - the client is not re-created again
+			httpClientService.reInitElasticSearch(failedClientGeneration);
+			Assert.assertEquals(reInitClientGeneration, httpClientService.getClientGeneration());
+		} finally {
+			httpClientService.cleanup();
+		}
+	}
+
+	@Test
+	public void testBuildBulkEntity() throws Exception {
+		HttpEntity bulkEntity = ElasticSearchHttpClientService.buildBulkEntity(createTestBulkRequest(), false);
+		Assert.assertEquals("application/x-ndjson", bulkEntity.getContentType().getValue());
+		Assert.assertEquals(EXPECTED_BULK_BODY, EntityUtils.toString(bulkEntity, StandardCharsets.UTF_8));
+	}
+
+	@Test
+	public void testBuildBulkEntity_compressed() throws Exception {
+		HttpEntity bulkEntity = ElasticSearchHttpClientService.buildBulkEntity(createTestBulkRequest(), true);
+		ByteArrayOutputStream uncompressedBody = new ByteArrayOutputStream();
+		try (GZIPInputStream gzipStream = new GZIPInputStream(bulkEntity.getContent())) {
+			byte[] buffer = new byte[1024];
+			int read;
+			while ((read = gzipStream.read(buffer)) > 0) {
+				uncompressedBody.write(buffer, 0, read);
+			}
+		}
+		Assert.assertEquals(EXPECTED_BULK_BODY, new String(uncompressedBody.toByteArray(), StandardCharsets.UTF_8));
+	}
+
+	@Test
+	public void testBuildBulkEntity_producedForAsyncClient() throws Exception {
+		BulkRequest bulkRequest = createTestBulkRequest();
+		for (int i = 5; i < 2000; i++) {
+			bulkRequest.add(new IndexRequest("testIndex", "testType", "id" + i).source("{\"message\":" + i + "}", XContentType.JSON));
+		}
+		ElasticSearchHttpClientService.BulkRequestEntity bulkEntity = 
+			(ElasticSearchHttpClientService.BulkRequestEntity) ElasticSearchHttpClientService.buildBulkEntity(bulkRequest, false);
+		Assert.assertTrue(bulkEntity.isStreaming());
+		String producedBody = new String(produceContent(bulkEntity), StandardCharsets.UTF_8);
+		Assert.assertTrue(producedBody.startsWith(EXPECTED_BULK_BODY));
+		Assert.assertEquals(EntityUtils.toString(bulkEntity, StandardCharsets.UTF_8), producedBody);
+		// re-sent to another host
+		bulkEntity.close();
+		Assert.assertEquals(producedBody, new String(produceContent(bulkEntity), StandardCharsets.UTF_8));
+
+		HttpAsyncContentProducer compressedBulkEntity = 
+			(HttpAsyncContentProducer) ElasticSearchHttpClientService.buildBulkEntity(bulkRequest, true);
+		Assert.assertEquals(producedBody, gunzip(produceContent(compressedBulkEntity)));
+	}
+
+	/**
+	 * @return body produced by the entity for an encoder that takes up to 100 bytes per write
+	 */
+	private static byte[] produceContent(HttpAsyncContentProducer contentProducer) throws Exception {
+		ByteArrayOutputStream producedBody = new ByteArrayOutputStream();
+		ContentEncoder encoder = Mockito.mock(ContentEncoder.class);
+		Mockito.when(encoder.write(Matchers.any(ByteBuffer.class))).thenAnswer(invocation -> {
+			ByteBuffer chunk = (ByteBuffer) invocation.getArguments()[0];
+			int length = Math.min(100, chunk.remaining());
+			byte[] written = new byte[length];
+			chunk.get(written);
+			producedBody.write(written);
+			return length;
+		});
+		AtomicBoolean completed = new AtomicBoolean();
+		Mockito.doAnswer(invocation -> {
+			completed.set(true);
+			return null;
+		}).when(encoder).complete();
+		int numCalls = 0;
+		while (!completed.get()) {
+			contentProducer.produceContent(encoder, null);
+			Assert.assertTrue("content is never completed", ++numCalls < 100000);
+		}
+		return producedBody.toByteArray();
+	}
+
+	private static String gunzip(byte[] compressedBody) throws Exception {
+		ByteArrayOutputStream uncompressedBody = new ByteArrayOutputStream();
+		try (GZIPInputStream gzipStream = new GZIPInputStream(new ByteArrayInputStream(compressedBody))) {
+			byte[] buffer = new byte[1024];
+			int read;
+			while ((read = gzipStream.read(buffer)) > 0) {
+				uncompressedBody.write(buffer, 0, read);
+			}
+		}
+		return new String(uncompressedBody.toByteArray(), StandardCharsets.UTF_8);
+	}
+
+	@Test
+	public void testParseBulkResponse_onlyFailedItems() throws Exception {
+		// response filtered with filter_path=took,errors,items.*.status,items.*.error
+		String responseBody = "{\"took\":3,\"errors\":true,\"items\":[" +
+			"{\"index\":{\"status\":201}}," +
+			"{\"index\":{\"status\":503," +
+			"\"error\":{\"type\":\"unavailable_shards_exception\",\"reason\":\"primary shard is not active\"}}}," +
+			"{\"delete\":{\"status\":200}}]}";
+		BulkResponse bulkResponse = ElasticSearchHttpClientService.parseBulkResponse(
+			new ByteArrayInputStream(responseBody.getBytes(StandardCharsets.UTF_8)), createTestBulkRequest());
+		Assert.assertTrue(bulkResponse.hasFailures());
+		Assert.assertEquals(3L, bulkResponse.getTook().millis());
+		Assert.assertEquals(1, bulkResponse.getItems().length);
+		BulkItemResponse failedItem = bulkResponse.getItems()[0];
+		Assert.assertTrue(failedItem.isFailed());
+		Assert.assertEquals(1, failedItem.getItemId());
+		Assert.assertEquals("testIndex", failedItem.getIndex());
+		Assert.assertEquals("SERVICE_UNAVAILABLE", failedItem.getFailure().getStatus().name());
+		Assert.assertTrue(failedItem.getFailureMessage().contains("primary shard is not active"));
+	}
+
+	@Test
+	public void testParseBulkResponse_noErrors() throws Exception {
+		String responseBody = "{\"took\":3,\"errors\":false,\"items\":[" +
+			"{\"index\":{\"status\":201}},{\"index\":{\"status\":201}},{\"delete\":{\"status\":200}}]}";
+		BulkResponse bulkResponse = ElasticSearchHttpClientService.parseBulkResponse(
+			new ByteArrayInputStream(responseBody.getBytes(StandardCharsets.UTF_8)), createTestBulkRequest());
+		Assert.assertFalse(bulkResponse.hasFailures());
+		Assert.assertEquals(0, bulkResponse.getItems().length);
+	}
+
+}
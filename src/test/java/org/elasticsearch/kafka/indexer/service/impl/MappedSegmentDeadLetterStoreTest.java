@@ -0,0 +1,129 @@
+package org.elasticsearch.kafka.indexer.service.impl;
+
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.apache.kafka.clients.consumer.ConsumerRecord;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+public class MappedSegmentDeadLetterStoreTest {
+
+	private File storeDir;
+	private MappedSegmentDeadLetterStore deadLetterStore;
+
+	@Before
+	public void setUp() throws Exception {
+		storeDir = Files.createTempDirectory("dead_letter_store").toFile();
+		deadLetterStore = createStore(4096, 0);
+	}
+
+	@After
+	public void tearDown() throws Exception {
+		deadLetterStore.cleanup();
+		File[] files = storeDir.listFiles();
+		if (files != null) {
+			Arrays.stream(files).forEach(File::delete);
+		}
+		storeDir.delete();
+	}
+
+	private MappedSegmentDeadLetterStore createStore(int segmentSizeBytes, int maxSegments) throws Exception {
+		MappedSegmentDeadLetterStore store = new MappedSegmentDeadLetterStore();
+		store.setStoreDir(storeDir.getAbsolutePath());
+		store.setSegmentSizeBytes(segmentSizeBytes);
+		store.setMaxSegments(maxSegments);
+		store.init();
+		return store;
+	}
+
+	private List<ConsumerRecord<String, byte[]>> readAll() throws Exception {
+		List<ConsumerRecord<String, byte[]>> records = new ArrayList<>();
+		for (Long segmentId : MappedSegmentDeadLetterStore.listSegmentIds(storeDir)) {
+			MappedSegmentDeadLetterStore.readSegment(MappedSegmentDeadLetterStore.getSegmentFile(storeDir, segmentId), records::add);
+		}
+		return records;
+	}
+
+	private static String value(ConsumerRecord<String, byte[]> record) {
+		return new String(record.value(), StandardCharsets.UTF_8);
+	}
+
+	@Test
+	public void testWriteAndReadRecords() throws Exception {
+		deadLetterStore.sendFailedEvent(new ConsumerRecord<>("testTopic", 3, 100L, "key1", "{\"message\":1}"), "BAD_REQUEST");
+		deadLetterStore.sendFailedEvent(new ConsumerRecord<>("testTopic", 4, 101L, null, "{\"message\":2}"), null);
+
+		List<ConsumerRecord<String, byte[]>> records = readAll();
+		Assert.assertEquals(2, records.size());
+		Assert.assertEquals("testTopic", records.get(0).topic());
+		Assert.assertEquals(3, records.get(0).partition());
+		Assert.assertEquals(100L, records.get(0).offset());
+		Assert.assertEquals("key1", records.get(0).key());
+		Assert.assertEquals("{\"message\":1}", value(records.get(0)));
+		Assert.assertEquals(4, records.get(1).partition());
+		Assert.assertNull(records.get(1).key());
+		Assert.assertEquals("{\"message\":2}", value(records.get(1)));
+	}
+
+	@Test(expected = IllegalStateException.class)
+	public void testSendAfterCleanupFails() throws Exception {
+		deadLetterStore.cleanup();
+		deadLetterStore.sendFailedEvent(new ConsumerRecord<>("testTopic", 0, 1L, "key1", "{\"message\":1}"), "BAD_REQUEST");
+	}
+
+	@Test
+	public void testRawValuesAreStoredAsIs() throws Exception {
+		// not valid UTF-8 - for example, an Avro encoded event consumed in the raw bytes mode
+		byte[] rawValue = new byte[] {0, (byte) 0xC3, (byte) 0x28, (byte) 0xFF, 10};
+		deadLetterStore.sendFailedEvent(new ConsumerRecord<>("testTopic", 0, 1L, "key1", rawValue), "BAD_REQUEST");
+		deadLetterStore.sendFailedEvent(new ConsumerRecord<String, byte[]>("testTopic", 0, 2L, "key2", null), "BAD_REQUEST");
+
+		List<ConsumerRecord<String, byte[]>> records = readAll();
+		Assert.assertArrayEquals(rawValue, records.get(0).value());
+		Assert.assertNull(records.get(1).value());
+	}
+
+	@Test
+	public void testAppendAfterRestart() throws Exception {
+		deadLetterStore.sendFailedEvent(new ConsumerRecord<>("testTopic", 0, 1L, null, "event1"), "error");
+		deadLetterStore.cleanup();
+		deadLetterStore = createStore(4096, 0);
+		deadLetterStore.sendFailedEvent(new ConsumerRecord<>("testTopic", 0, 2L, null, "event2"), "error");
+
+		List<ConsumerRecord<String, byte[]>> records = readAll();
+		Assert.assertEquals(2, records.size());
+		Assert.assertEquals("event1", value(records.get(0)));
+		Assert.assertEquals("event2", value(records.get(1)));
+	}
+
+	@Test
+	public void testRollingAndRetention() throws Exception {
+		deadLetterStore.cleanup();
+		deadLetterStore = createStore(256, 2);
+		// each record takes ~100 bytes - so only 2 records fit into one segment
+		for (int i = 0; i < 10; i++) {
+			deadLetterStore.sendFailedEvent(new ConsumerRecord<>("testTopic", 0, i, null, String.format("%040d", i)), "error");
+		}
+		List<Long> segmentIds = MappedSegmentDeadLetterStore.listSegmentIds(storeDir);
+		Assert.assertEquals(Arrays.asList(4L, 5L), segmentIds);
+		List<ConsumerRecord<String, byte[]>> records = readAll();
+		Assert.assertEquals(4, records.size());
+		Assert.assertEquals(6L, records.get(0).offset());
+		Assert.assertEquals(9L, records.get(3).offset());
+	}
+
+	@Test(expected = java.io.IOException.class)
+	public void testRecordBiggerThanSegment() throws Exception {
+		char[] bigValue = new char[5000];
+		Arrays.fill(bigValue, 'a');
+		deadLetterStore.sendFailedEvent(new ConsumerRecord<>("testTopic", 0, 1L, null, new String(bigValue)), "error");
+	}
+
+}
@@ -0,0 +1,119 @@
+package org.elasticsearch.kafka.indexer.service.impl;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.util.Arrays;
+
+import org.elasticsearch.common.Strings;
+import org.elasticsearch.common.xcontent.XContentBuilder;
+import org.elasticsearch.common.xcontent.XContentFactory;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.google.protobuf.CodedOutputStream;
+import com.google.protobuf.DescriptorProtos.DescriptorProto;
+import com.google.protobuf.DescriptorProtos.FieldDescriptorProto;
+import com.google.protobuf.DescriptorProtos.FileDescriptorProto;
+import com.google.protobuf.DescriptorProtos.FileDescriptorSet;
+import com.google.protobuf.Descriptors.Descriptor;
+import com.google.protobuf.Descriptors.FileDescriptor;
+import com.google.protobuf.DynamicMessage;
+
+public class ProtobufValueConverterTest {
+
+	private File schemaDir;
+	private ProtobufValueConverter valueConverter;
+	private FileDescriptorProto fileDescriptorProto;
+
+	private static FieldDescriptorProto field(String name, int number, FieldDescriptorProto.Type type,
+			FieldDescriptorProto.Label label) {
+		return FieldDescriptorProto.newBuilder().setName(name).setNumber(number).setType(type).setLabel(label).build();
+	}
+
+	@Before
+	public void setUp() throws Exception {
+		// message Event { int64 id = 1; string message = 2; repeated string tags = 3; Source source = 4;
+		//   message Source { string host = 1; uint32 port = 2; } }
+		DescriptorProto sourceType = DescriptorProto.newBuilder().setName("Source")
+			.addField(field("host", 1, FieldDescriptorProto.Type.TYPE_STRING, FieldDescriptorProto.Label.LABEL_OPTIONAL))
+			.addField(field("port", 2, FieldDescriptorProto.Type.TYPE_UINT32, FieldDescriptorProto.Label.LABEL_OPTIONAL))
+			.build();
+		DescriptorProto eventType = DescriptorProto.newBuilder().setName("Event")
+			.addField(field("id", 1, FieldDescriptorProto.Type.TYPE_INT64, FieldDescriptorProto.Label.LABEL_OPTIONAL))
+			.addField(field("message", 2, FieldDescriptorProto.Type.TYPE_STRING, FieldDescriptorProto.Label.LABEL_OPTIONAL))
+			.addField(field("tags", 3, FieldDescriptorProto.Type.TYPE_STRING, FieldDescriptorProto.Label.LABEL_REPEATED))
+			.addField(field("source", 4, FieldDescriptorProto.Type.TYPE_MESSAGE, FieldDescriptorProto.Label.LABEL_OPTIONAL)
+				.toBuilder().setTypeName(".test.Event.Source").build())
+			.addNestedType(sourceType)
+			.build();
+		fileDescriptorProto = FileDescriptorProto.newBuilder().setName("event.proto").setPackage("test")
+			.setSyntax("proto3").addMessageType(eventType).build();
+
+		schemaDir = Files.createTempDirectory("schemas").toFile();
+		Files.write(new File(schemaDir, "7.desc").toPath(),
+			FileDescriptorSet.newBuilder().addFile(fileDescriptorProto).build().toByteArray());
+		valueConverter = new ProtobufValueConverter();
+		valueConverter.setSchemaDir(schemaDir.getAbsolutePath());
+	}
+
+	@After
+	public void tearDown() throws Exception {
+		File[] files = schemaDir.listFiles();
+		if (files != null) {
+			Arrays.stream(files).forEach(File::delete);
+		}
+		schemaDir.delete();
+	}
+
+	private byte[] serialize(DynamicMessage message, int schemaId, int... messageIndexes) throws Exception {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		out.write(SchemaFileValueConverter.MAGIC_BYTE);
+		out.write(ByteBuffer.allocate(4).putInt(schemaId).array());
+		CodedOutputStream codedOut = CodedOutputStream.newInstance(out);
+		codedOut.writeSInt32NoTag(messageIndexes.length);
+		for (int messageIndex : messageIndexes) {
+			codedOut.writeSInt32NoTag(messageIndex);
+		}
+		message.writeTo(codedOut);
+		codedOut.flush();
+		return out.toByteArray();
+	}
+
+	@Test
+	public void testConvert() throws Exception {
+		Descriptor eventType = FileDescriptor.buildFrom(fileDescriptorProto, new FileDescriptor[0]).findMessageTypeByName("Event");
+		Descriptor sourceType = eventType.findNestedTypeByName("Source");
+		DynamicMessage source = DynamicMessage.newBuilder(sourceType)
+			.setField(sourceType.findFieldByName("host"), "h1")
+			.setField(sourceType.findFieldByName("port"), -1)
+			.build();
+		DynamicMessage event = DynamicMessage.newBuilder(eventType)
+			.setField(eventType.findFieldByName("id"), 5L)
+			.addRepeatedField(eventType.findFieldByName("tags"), "a")
+			.addRepeatedField(eventType.findFieldByName("tags"), "b")
+			.setField(eventType.findFieldByName("source"), source)
+			.build();
+
+		XContentBuilder builder = XContentFactory.jsonBuilder();
+		valueConverter.convert(serialize(event, 7), builder);
+		// the message field has the default value - it is not written
+		Assert.assertEquals("{\"id\":5,\"tags\":[\"a\",\"b\"],\"source\":{\"host\":\"h1\",\"port\":4294967295}}",
+			Strings.toString(builder));
+
+		// nested message type - via the message indexes
+		builder = XContentFactory.jsonBuilder();
+		valueConverter.convert(serialize(source, 7, 0, 0), builder);
+		Assert.assertEquals("{\"host\":\"h1\",\"port\":4294967295}", Strings.toString(builder));
+	}
+
+	@Test(expected = java.io.IOException.class)
+	public void testConvert_invalidMessageIndex() throws Exception {
+		Descriptor eventType = FileDescriptor.buildFrom(fileDescriptorProto, new FileDescriptor[0]).findMessageTypeByName("Event");
+		valueConverter.convert(serialize(DynamicMessage.getDefaultInstance(eventType), 7, 1), XContentFactory.jsonBuilder());
+	}
+
+}